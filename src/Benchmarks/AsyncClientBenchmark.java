@@ -0,0 +1,101 @@
+package Benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.client.Client;
+import com.client.ClientFS;
+import com.client.ClientFS.FSReturnVals;
+import com.client.ClientRec;
+import com.client.FileHandle;
+import com.client.RID;
+import com.client.RecordCursor;
+import com.client.TinyRec;
+
+/**
+ * One application thread issuing TinyFS calls one after the other against the same
+ * thread issuing their Async variants all at once and waiting for the lot.
+ * Appends to one file contend for its last chunk, so they are issued with at most
+ * window of them in flight. Needs a running master and chunk server, run from
+ * their directory, e.g. java Benchmarks.AsyncClientBenchmark 5000 100 32
+ */
+public class AsyncClientBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int window = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+
+		ClientFS fs = new ClientFS();
+		ClientRec crec = new ClientRec();
+		Client client = new Client();
+		fs.CreateDir("/", "AsyncBench");
+		fs.CreateFile("/AsyncBench/", "records");
+		FileHandle fh = new FileHandle();
+		fs.OpenFile("/AsyncBench/records", fh);
+		byte[] payload = new byte[size];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			crec.AppendRecord(fh, payload, new RID());
+		}
+		report("AppendRecord", calls, start);
+
+		start = System.nanoTime();
+		List<CompletableFuture<FSReturnVals>> appends = new ArrayList<CompletableFuture<FSReturnVals>>(calls);
+		for (int i = 0; i < calls; i++) {
+			if (i >= window) appends.get(i - window).join();
+			appends.add(crec.AppendRecordAsync(fh, payload, new RID()));
+		}
+		join(appends);
+		report("AppendRecordAsync", calls, start);
+
+		int failed = 0;
+		for (CompletableFuture<FSReturnVals> f : appends) {
+			if (f.join() != FSReturnVals.Success) failed++;
+		}
+		RecordCursor cursor = crec.OpenCursor(fh, true);
+		int records = 0;
+		while (cursor.next(new TinyRec()) == FSReturnVals.Success) records++;
+		System.out.println("records " + records + " of " + 2 * calls + ", failed async appends " + failed);
+
+		RID last = new RID();
+		crec.AppendRecord(fh, payload, last);
+		String chunk = last.chunkHandle;
+
+		start = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			client.readChunk(chunk, 0, fh.chunkSize, fh.chunkSize);
+		}
+		report("readChunk", calls, start);
+
+		start = System.nanoTime();
+		List<CompletableFuture<byte[]>> reads = new ArrayList<CompletableFuture<byte[]>>(calls);
+		for (int i = 0; i < calls; i++) {
+			reads.add(client.readChunkAsync(chunk, 0, fh.chunkSize, fh.chunkSize));
+		}
+		join(reads);
+		report("readChunkAsync", calls, start);
+
+		start = System.nanoTime();
+		List<CompletableFuture<String[]>> listings = new ArrayList<CompletableFuture<String[]>>(calls);
+		for (int i = 0; i < calls; i++) {
+			listings.add(fs.ListDirAsync("/AsyncBench"));
+		}
+		join(listings);
+		report("ListDirAsync", calls, start);
+
+		fs.CloseFile(fh);
+	}
+
+	// wait for every call of the list
+	static void join(List<? extends CompletableFuture<?>> calls) {
+		CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).join();
+	}
+
+	static void report(String name, int calls, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-18s %8.0f calls/s%n", name, calls / seconds);
+	}
+}
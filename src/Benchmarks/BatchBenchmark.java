@@ -0,0 +1,116 @@
+package Benchmarks;
+
+import com.chunkserver.ChunkServer;
+import com.chunkserver.ChunkServerMaster;
+import com.client.Batch;
+import com.client.Client;
+import com.client.ClientFS;
+import com.client.ClientFS.FSReturnVals;
+import com.client.ClientRec;
+import com.client.ConnectionPool;
+import com.client.FileHandle;
+import com.client.Frame;
+import com.client.RID;
+
+/**
+ * Bursts of small independent requests sent one by one against the same requests in one batch:
+ * a CreateDir for every level of a directory chain, a GET_CHUNK_COMMAND for every chunk
+ * index of a file and a 4 byte header write followed by a payload write.
+ * Needs a running master and chunk server, run from their directory, e.g.
+ * java Benchmarks.BatchBenchmark 200 10
+ */
+public class BatchBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int bursts = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int depth = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		ClientFS fs = new ClientFS();
+		fs.CreateDir("/", "One");
+		fs.CreateDir("/", "Batched");
+
+		long start = System.nanoTime();
+		int failed = 0;
+		for (int b = 0; b < bursts; b++) {
+			String parent = "/One/";
+			for (int d = 0; d < depth; d++) {
+				if (fs.CreateDir(parent, "d" + b + "_" + d) != FSReturnVals.Success) failed++;
+				parent = parent + "d" + b + "_" + d + "/";
+			}
+		}
+		report("CreateDir", bursts * depth, start, failed);
+
+		start = System.nanoTime();
+		failed = 0;
+		for (int b = 0; b < bursts; b++) {
+			ClientFS.NamespaceBatch batch = fs.NewBatch();
+			String parent = "/Batched/";
+			for (int d = 0; d < depth; d++) {
+				batch.CreateDir(parent, "d" + b + "_" + d);
+				parent = parent + "d" + b + "_" + d + "/";
+			}
+			for (FSReturnVals result : batch.Execute()) {
+				if (result != FSReturnVals.Success) failed++;
+			}
+		}
+		report("batched CreateDir", bursts * depth, start, failed);
+
+		// a file with depth chunks
+		ClientRec crec = new ClientRec();
+		fs.CreateFile("/", "chunks", 64);
+		FileHandle fh = new FileHandle();
+		fs.OpenFile("/chunks", fh);
+		for (int d = 0; d < depth; d++) {
+			crec.AppendRecord(fh, new byte[40], new RID());
+		}
+		ConnectionPool master = ConnectionPool.of(ChunkServerMaster.MasterConfigFile);
+
+		start = System.nanoTime();
+		failed = 0;
+		for (int b = 0; b < bursts; b++) {
+			for (int d = 0; d < depth; d++) {
+				Frame reply = master.call(new Frame(ClientRec.GET_CHUNK_COMMAND).putString("/chunks").putInt(d), new Frame(0));
+				if (reply.getString() == null) failed++;
+			}
+		}
+		report("GET_CHUNK", bursts * depth, start, failed);
+
+		start = System.nanoTime();
+		failed = 0;
+		for (int b = 0; b < bursts; b++) {
+			Batch batch = new Batch();
+			for (int d = 0; d < depth; d++) {
+				batch.add(new Frame(ClientRec.GET_CHUNK_COMMAND).putString("/chunks").putInt(d));
+			}
+			for (Frame reply : batch.call(master)) {
+				if (reply.getString() == null) failed++;
+			}
+		}
+		report("batched GET_CHUNK", bursts * depth, start, failed);
+
+		Client client = new Client();
+		String chunk = client.createChunk("batch-bench", ChunkServer.ChunkSize);
+		byte[] header = new byte[4];
+		byte[] payload = new byte[100];
+
+		start = System.nanoTime();
+		failed = 0;
+		for (int b = 0; b < bursts; b++) {
+			if (!client.writeChunk(chunk, payload, 8, ChunkServer.ChunkSize)) failed++;
+			if (!client.writeChunk(chunk, header, 0, ChunkServer.ChunkSize)) failed++;
+		}
+		report("writeChunk", bursts * 2, start, failed);
+
+		start = System.nanoTime();
+		failed = 0;
+		for (int b = 0; b < bursts; b++) {
+			if (!client.writeChunks(chunk, new byte[][] { payload, header }, new int[] { 8, 0 }, ChunkServer.ChunkSize)) failed += 2;
+		}
+		report("writeChunks", bursts * 2, start, failed);
+	}
+
+	static void report(String name, int calls, long start, int failed) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-18s %8.0f calls/s  failed %d%n", name, calls / seconds, failed);
+	}
+}
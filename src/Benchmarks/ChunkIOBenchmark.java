@@ -0,0 +1,99 @@
+package Benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import com.chunkserver.ChunkServer;
+
+/**
+ * Compares per-call RandomAccessFile chunk I/O with the cached channel I/O of the ChunkServer.
+ * Each operation mirrors ClientRec.AppendRecord: two 4 byte reads followed by five writes.
+ * Run from the directory that holds csci485/, e.g. java Benchmarks.ChunkIOBenchmark 64 20000
+ */
+public class ChunkIOBenchmark {
+
+	static final String filePath = "csci485/";
+
+	public static void main(String[] args) throws IOException {
+		int numChunks = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int numOps = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		ChunkServer cs = new ChunkServer();
+		String[] handles = new String[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			handles[i] = cs.createChunk(cs.createChunk());
+		}
+
+		byte[] record = new byte[104];
+		byte[] header = new byte[4];
+
+		// warm up both paths before measuring
+		runLegacy(handles, numOps / 10, record, header);
+		runCached(cs, handles, numOps / 10, record, header);
+
+		long start = System.nanoTime();
+		runLegacy(handles, numOps, record, header);
+		double legacy = numOps / ((System.nanoTime() - start) / 1e9);
+
+		start = System.nanoTime();
+		runCached(cs, handles, numOps, record, header);
+		double cached = numOps / ((System.nanoTime() - start) / 1e9);
+
+		System.out.printf("RandomAccessFile per call: %.0f appends/sec%n", legacy);
+		System.out.printf("Cached FileChannel:        %.0f appends/sec (%.1fx)%n", cached, cached / legacy);
+		System.out.printf("Chunk pool: %d of %d chunks created from it%n", cs.getChunkPool().getHits(), cs.getChunkPool().getHits() + cs.getChunkPool().getMisses());
+
+		for (String handle : handles) {
+			new File(filePath + handle).delete();
+		}
+	}
+
+	static void runCached(ChunkServer cs, String[] handles, int numOps, byte[] record, byte[] header) {
+		for (int i = 0; i < numOps; i++) {
+			String handle = handles[i % handles.length];
+			int slot = i % 32;
+			cs.readChunk(handle, 0, 4);
+			cs.readChunk(handle, 4, 4);
+			cs.writeChunk(handle, ByteBuffer.wrap(header).putInt(0, 8 + slot * 108 + 4).array(), ChunkServer.ChunkSize - slot * 4 - 4);
+			cs.writeChunk(handle, ByteBuffer.wrap(header).putInt(0, slot + 1).array(), 0);
+			cs.writeChunk(handle, ByteBuffer.wrap(header).putInt(0, record.length).array(), 8 + slot * 108);
+			cs.writeChunk(handle, record, 8 + slot * 108 + 4);
+			cs.writeChunk(handle, ByteBuffer.wrap(header).putInt(0, 8 + (slot + 1) * 108).array(), 4);
+		}
+	}
+
+	static void runLegacy(String[] handles, int numOps, byte[] record, byte[] header) throws IOException {
+		for (int i = 0; i < numOps; i++) {
+			String handle = handles[i % handles.length];
+			int slot = i % 32;
+			legacyRead(handle, 0, 4);
+			legacyRead(handle, 4, 4);
+			legacyWrite(handle, ByteBuffer.wrap(header).putInt(0, 8 + slot * 108 + 4).array(), ChunkServer.ChunkSize - slot * 4 - 4);
+			legacyWrite(handle, ByteBuffer.wrap(header).putInt(0, slot + 1).array(), 0);
+			legacyWrite(handle, ByteBuffer.wrap(header).putInt(0, record.length).array(), 8 + slot * 108);
+			legacyWrite(handle, record, 8 + slot * 108 + 4);
+			legacyWrite(handle, ByteBuffer.wrap(header).putInt(0, 8 + (slot + 1) * 108).array(), 4);
+		}
+	}
+
+	// the original ChunkServer.readChunk
+	static byte[] legacyRead(String handle, int offset, int numberOfBytes) throws IOException {
+		if (!(new File(filePath + handle)).exists()) return null;
+		byte[] data = new byte[numberOfBytes];
+		RandomAccessFile raf = new RandomAccessFile(filePath + handle, "rw");
+		raf.seek(offset);
+		raf.read(data, 0, numberOfBytes);
+		raf.close();
+		return data;
+	}
+
+	// the original ChunkServer.writeChunk
+	static void legacyWrite(String handle, byte[] payload, int offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(filePath + handle, "rw");
+		raf.seek(offset);
+		raf.write(payload, 0, payload.length);
+		raf.close();
+	}
+}
@@ -0,0 +1,110 @@
+package Benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chunkserver.ChunkServer;
+import com.client.Frame;
+import com.client.FrameConnection;
+
+/**
+ * Load test of a running chunk server with a growing number of concurrent clients.
+ * Every client has its own connection and reads whole chunks for a fixed time; the
+ * clients share a few chunks so concurrent readers of the same chunk are exercised,
+ * and every tenth request appends a record to one of them.
+ * Run from the directory of the chunk server, e.g. java Benchmarks.ChunkServerLoadTest 32 5
+ */
+public class ChunkServerLoadTest {
+
+	static final int NumChunks = 4;
+
+	public static void main(String[] args) throws Exception {
+		int maxClients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int port = readPort();
+
+		Connection setup = new Connection(port);
+		for (int i = 0; i < NumChunks; i++) {
+			setup.createChunk("load-" + i);
+		}
+		setup.close();
+
+		double single = 0;
+		for (int clients = 1; clients <= maxClients; clients *= 2) {
+			double opsPerSecond = run(port, clients, seconds);
+			if (clients == 1) single = opsPerSecond;
+			System.out.printf("%3d clients: %10.0f requests/s  %5.1fx%n", clients, opsPerSecond, opsPerSecond / single);
+		}
+	}
+
+	static double run(final int port, int clients, final int seconds) throws InterruptedException {
+		final AtomicLong requests = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(clients);
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		for (int c = 0; c < clients; c++) {
+			final String handle = "load-" + (c % NumChunks);
+			new Thread(() -> {
+				try {
+					Connection conn = new Connection(port);
+					byte[] record = new byte[100];
+					long n = 0;
+					while (System.nanoTime() < end) {
+						if (n % 10 == 9) {
+							// the chunk fills up quickly, a full chunk still costs a round trip
+							conn.appendRecord(handle, record);
+						} else {
+							conn.readChunk(handle, 0, ChunkServer.ChunkSize);
+						}
+						n++;
+					}
+					requests.addAndGet(n);
+					conn.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		return requests.get() / (double) seconds;
+	}
+
+	static int readPort() throws IOException {
+		BufferedReader binput = new BufferedReader(new FileReader(ChunkServer.ClientConfigFile));
+		String port = binput.readLine();
+		binput.close();
+		return Integer.parseInt(port.substring(port.indexOf(':') + 1));
+	}
+
+	/**
+	 * One client connection speaking the chunk server protocol, the Client class shares a single connection.
+	 */
+	static class Connection {
+		final FrameConnection conn;
+
+		Connection(int port) throws IOException {
+			conn = new FrameConnection(new Socket("127.0.0.1", port));
+		}
+
+		void createChunk(String handle) throws IOException {
+			conn.call(new Frame(ChunkServer.CreateChunkCMD).putString(handle).putInt(ChunkServer.ChunkSize));
+		}
+
+		byte[] readChunk(String handle, int offset, int length) throws IOException {
+			return conn.call(new Frame(ChunkServer.ReadChunkCMD).putString(handle).putInt(offset).putInt(length)).getBlock();
+		}
+
+		int appendRecord(String handle, byte[] payload) throws IOException {
+			return conn.call(new Frame(ChunkServer.AppendRecordCMD).putString(handle).putInt(ChunkServer.ChunkSize).putBlock(payload)).getInt();
+		}
+
+		void close() throws IOException {
+			conn.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package Benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.chunkserver.ChunkServer;
+import com.chunkserver.FileChunkStore;
+import com.chunkserver.MappedChunkStore;
+import com.chunkserver.MemoryChunkStore;
+import com.chunkserver.SegmentChunkStore;
+import com.interfaces.ChunkStore;
+
+/**
+ * Runs the same chunk workload against every ChunkStore backend.
+ * The workload creates numChunks chunks, replays the AppendRecord access pattern
+ * (2 reads + 5 writes) numOps times and then reads every chunk in full.
+ * Run from the directory that holds csci485/, e.g. java Benchmarks.ChunkStoreBenchmark 1024 50000
+ */
+public class ChunkStoreBenchmark {
+
+	static final String benchPath = "csci485/bench/";
+
+	public static void main(String[] args) throws IOException {
+		int numChunks = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int numOps = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+		String[] names = {"file", "packed", "mmap", "memory"};
+		for (String name : names) {
+			clean();
+			new File(benchPath).mkdirs();
+			ChunkStore store = open(name);
+
+			long start = System.nanoTime();
+			for (int i = 1; i <= numChunks; i++) {
+				store.createChunk(String.valueOf(i), new byte[ChunkServer.ChunkSize]);
+			}
+			double creates = numChunks / ((System.nanoTime() - start) / 1e9);
+
+			byte[] record = new byte[104];
+			byte[] header = new byte[4];
+			start = System.nanoTime();
+			for (int i = 0; i < numOps; i++) {
+				String handle = String.valueOf(i % numChunks + 1);
+				int slot = i % 32;
+				store.readChunk(handle, 0, 4);
+				store.readChunk(handle, 4, 4);
+				store.writeChunk(handle, ByteBuffer.wrap(header).putInt(0, 8 + slot * 108 + 4).array(), ChunkServer.ChunkSize - slot * 4 - 4);
+				store.writeChunk(handle, ByteBuffer.wrap(header).putInt(0, slot + 1).array(), 0);
+				store.writeChunk(handle, ByteBuffer.wrap(header).putInt(0, record.length).array(), 8 + slot * 108);
+				store.writeChunk(handle, record, 8 + slot * 108 + 4);
+				store.writeChunk(handle, ByteBuffer.wrap(header).putInt(0, 8 + (slot + 1) * 108).array(), 4);
+			}
+			double appends = numOps / ((System.nanoTime() - start) / 1e9);
+
+			start = System.nanoTime();
+			for (int i = 1; i <= numChunks; i++) {
+				store.readChunk(String.valueOf(i), 0, ChunkServer.ChunkSize);
+			}
+			double scans = numChunks / ((System.nanoTime() - start) / 1e9);
+
+			store.close();
+			System.out.printf("%-7s creates/sec %10.0f   appends/sec %10.0f   chunk reads/sec %10.0f%n", name, creates, appends, scans);
+		}
+		clean();
+	}
+
+	static ChunkStore open(String name) throws IOException {
+		if (name.equals("packed")) return new SegmentChunkStore(benchPath);
+		if (name.equals("mmap")) return new MappedChunkStore(benchPath, ChunkServer.MaxOpenChunks);
+		if (name.equals("memory")) return new MemoryChunkStore();
+		return new FileChunkStore(benchPath, ChunkServer.MaxOpenChunks);
+	}
+
+	static void clean() {
+		File[] fs = new File(benchPath).listFiles();
+		if (fs != null) {
+			for (File f : fs) f.delete();
+		}
+		new File(benchPath).delete();
+	}
+}
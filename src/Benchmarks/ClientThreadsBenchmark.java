@@ -0,0 +1,80 @@
+package Benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.client.Client;
+import com.client.ClientFS;
+import com.client.ClientFS.FSReturnVals;
+import com.client.ClientRec;
+import com.client.ConnectionPool;
+import com.client.FileHandle;
+import com.client.RID;
+import com.client.TinyRec;
+
+/**
+ * Throughput of one client process shared by a growing number of application threads.
+ * Every thread mixes a ListDir at the master, a ReadFirstRecord through ClientRec and
+ * a readChunk at the chunk server on the same Client, ClientFS and ClientRec objects and
+ * checks every result, so interleaved bytes on a connection would show up as errors.
+ * Needs a running master and chunk server, run from their directory, e.g.
+ * java -Dtinyfs.client.connections=4 Benchmarks.ClientThreadsBenchmark 32 3
+ */
+public class ClientThreadsBenchmark {
+
+	static final int NumDirs = 10;
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		final ClientFS fs = new ClientFS();
+		final ClientRec crec = new ClientRec();
+		final Client client = new Client();
+		fs.CreateDir("/", "ThreadsBench");
+		for (int i = 0; i < NumDirs; i++) {
+			fs.CreateDir("/ThreadsBench/", "dir" + i);
+		}
+		fs.CreateFile("/ThreadsBench/", "records");
+		final FileHandle setup = new FileHandle();
+		fs.OpenFile("/ThreadsBench/records", setup);
+		RID first = new RID();
+		crec.AppendRecord(setup, new byte[] { 4, 8, 5 }, first);
+		final String chunk = first.chunkHandle;
+		final int chunkSize = setup.chunkSize;
+
+		System.out.println("at most " + ConnectionPool.MaxConnections + " connections per endpoint");
+		double single = 0;
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			final AtomicLong calls = new AtomicLong();
+			final AtomicLong errors = new AtomicLong();
+			final CountDownLatch done = new CountDownLatch(threads);
+			final long end = System.nanoTime() + seconds * 1000000000L;
+			for (int t = 0; t < threads; t++) {
+				new Thread(() -> {
+					FileHandle fh = new FileHandle();
+					fs.OpenFile("/ThreadsBench/records", fh);
+					long n = 0;
+					while (System.nanoTime() < end) {
+						String[] dirs = fs.ListDir("/ThreadsBench");
+						if (dirs == null || dirs.length != NumDirs) errors.incrementAndGet();
+
+						TinyRec rec = new TinyRec();
+						if (crec.ReadFirstRecord(fh, rec) != FSReturnVals.Success || rec.getPayload().length != 3) errors.incrementAndGet();
+
+						byte[] data = client.readChunk(chunk, 0, chunkSize, chunkSize);
+						if (data == null || data.length != chunkSize) errors.incrementAndGet();
+						n += 3;
+					}
+					calls.addAndGet(n);
+					done.countDown();
+				}).start();
+			}
+			done.await();
+			double callsPerSecond = calls.get() / (double) seconds;
+			if (threads == 1) single = callsPerSecond;
+			System.out.printf("%3d threads: %10.0f calls/s  %5.1fx  errors %d%n", threads, callsPerSecond, callsPerSecond / single, errors.get());
+		}
+		fs.CloseFile(setup);
+	}
+}
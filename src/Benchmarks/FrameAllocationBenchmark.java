@@ -0,0 +1,138 @@
+package Benchmarks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import com.chunkserver.ChunkServer;
+import com.client.Frame;
+import com.client.FrameConnection;
+
+/**
+ * Heap bytes allocated to decode one readChunk reply on the receiving thread.
+ * Compares the RecvPayload / ReadIntFromInputStream helpers the client used with
+ * object streams against frames received into a new frame per reply and frames
+ * received into one reused frame and copied into the caller's array.
+ * A writer thread sends the replies over loopback, only the reading thread is counted.
+ * Run with e.g. java Benchmarks.FrameAllocationBenchmark 20000 4096
+ */
+public class FrameAllocationBenchmark {
+
+	static final com.sun.management.ThreadMXBean Threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception {
+		int replies = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+		System.out.println(replies + " replies of " + size + " bytes");
+		legacy(replies / 10, size);
+		report("RecvPayload", legacy(replies, size), replies);
+		frames(replies / 10, size, false);
+		report("new frames", frames(replies, size, false), replies);
+		frames(replies / 10, size, true);
+		report("reused frame", frames(replies, size, true), replies);
+	}
+
+	static void report(String name, long[] bytesAndNanos, int replies) {
+		System.out.printf("%-13s %10.1f bytes/reply  %8.2f us/reply%n", name,
+			bytesAndNanos[0] / (double) replies, bytesAndNanos[1] / 1000.0 / replies);
+	}
+
+	// returns the bytes allocated and the nanoseconds spent by the calling thread since start
+	static long[] since(long startBytes, long startNanos) {
+		long id = Thread.currentThread().getId();
+		return new long[] { Threads.getThreadAllocatedBytes(id) - startBytes, System.nanoTime() - startNanos };
+	}
+
+	static long[] legacy(int replies, int size) throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread writer = new Thread(() -> {
+			try (Socket s = server.accept()) {
+				ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+				byte[] data = new byte[size];
+				for (int i = 0; i < replies; i++) {
+					out.writeInt(ChunkServer.PayloadSZ + size);
+					out.write(data);
+				}
+				out.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		writer.start();
+
+		Socket s = new Socket("127.0.0.1", server.getLocalPort());
+		ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+		long id = Thread.currentThread().getId();
+		long startBytes = Threads.getThreadAllocatedBytes(id);
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < replies; i++) {
+			int length = ReadIntFromInputStream(in) - ChunkServer.PayloadSZ;
+			RecvPayload(in, length);
+		}
+		long[] result = since(startBytes, startNanos);
+		writer.join();
+		s.close();
+		server.close();
+		return result;
+	}
+
+	static long[] frames(int replies, int size, boolean reuse) throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread writer = new Thread(() -> {
+			try (FrameConnection conn = new FrameConnection(server.accept())) {
+				Frame reply = new Frame(ChunkServer.ReadChunkCMD).putBlock(new byte[size]);
+				for (int i = 0; i < replies; i++) {
+					conn.send(reply);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		writer.start();
+
+		FrameConnection conn = new FrameConnection(new Socket("127.0.0.1", server.getLocalPort()));
+		Frame into = new Frame(0);
+		byte[] data = new byte[size];
+		long id = Thread.currentThread().getId();
+		long startBytes = Threads.getThreadAllocatedBytes(id);
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < replies; i++) {
+			if (reuse) {
+				conn.receive(into).getBlock(data, 0);
+			} else {
+				conn.receive().getBlock();
+			}
+		}
+		long[] result = since(startBytes, startNanos);
+		writer.join();
+		conn.close();
+		server.close();
+		return result;
+	}
+
+	// the decoding helpers of the object stream client
+	static byte[] RecvPayload(ObjectInputStream instream, int sz) throws IOException {
+		byte[] tmpbuf = new byte[sz];
+		byte[] InputBuff = new byte[sz];
+		int ReadBytes = 0;
+		while (ReadBytes != sz){
+			int cntr = instream.read( tmpbuf, 0, (sz-ReadBytes) );
+			if (cntr == -1) return null;
+			for (int j=0; j < cntr; j++){
+				InputBuff[ReadBytes+j]=tmpbuf[j];
+			}
+			ReadBytes += cntr;
+		}
+		return InputBuff;
+	}
+
+	static int ReadIntFromInputStream(ObjectInputStream instream) throws IOException {
+		byte[] InputBuff = RecvPayload(instream, 4);
+		return InputBuff == null ? -1 : ByteBuffer.wrap(InputBuff).getInt();
+	}
+}
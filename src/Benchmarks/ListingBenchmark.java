@@ -0,0 +1,87 @@
+package Benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import com.chunkserver.ChunkServerMaster;
+import com.client.ClientFS.FSReturnVals;
+
+/**
+ * Cost of listing a directory of 10 entries and of the emptiness check of deleteDir as the
+ * namespace grows, in process without the network. The namespace is filled with directories
+ * of 100 files each. "scan" is the stream over every key that listing used before, run on a
+ * copy of the keys up to 1M entries. Give the JVM room for the largest size, e.g.
+ * java -Xmx4g Benchmarks.ListingBenchmark 10000,100000,1000000,10000000
+ */
+public class ListingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : "10000,100000,1000000,10000000").split(",");
+		int scanLimit = 1000000;
+
+		ChunkServerMaster master = new ChunkServerMaster();
+		master.createDir("/", "probe");
+		for (int i = 0; i < 10; i++) {
+			master.createFile("/probe/", "f" + i);
+		}
+		TreeSet<String> keys = new TreeSet<String>();
+		int entries = 12;
+		int dirs = 0;
+		for (String size : sizes) {
+			int target = Integer.parseInt(size);
+			// fill up to the size, a directory and its files at a time
+			while (entries < target) {
+				String dir = "d" + dirs++;
+				master.createDir("/", dir);
+				if (target <= scanLimit) keys.add("/" + dir + "/");
+				for (int i = 0; i < 99; i++) {
+					master.createFile("/" + dir + "/", "f" + i);
+					if (target <= scanLimit) keys.add("/" + dir + "/f" + i);
+				}
+				entries += 100;
+			}
+
+			int reps = 20000;
+			long start = System.nanoTime();
+			int listed = 0;
+			for (int r = 0; r < reps; r++) {
+				List<String> result = new ArrayList<String>();
+				master.listDir("/probe/", result);
+				listed += result.size();
+			}
+			double list = (System.nanoTime() - start) / 1e3 / reps;
+			start = System.nanoTime();
+			int notEmpty = 0;
+			for (int r = 0; r < reps; r++) {
+				if (master.deleteDir("/", "probe") == FSReturnVals.DirNotEmpty) notEmpty++;
+			}
+			double check = (System.nanoTime() - start) / 1e3 / reps;
+			if (listed != 10 * reps || notEmpty != reps) System.out.println("wrong results");
+
+			String scan = "";
+			if (target <= scanLimit) {
+				keys.add("/probe/");
+				int scans = Math.max(3, 2000000 / target);
+				start = System.nanoTime();
+				for (int r = 0; r < scans; r++) {
+					listed = scan(keys, "/probe/").size();
+				}
+				scan = String.format("  scan %10.1f us", (System.nanoTime() - start) / 1e3 / scans);
+			}
+			System.out.printf("%9d entries: listDir %6.2f us  deleteDir check %6.2f us%s%n", entries, list, check, scan);
+		}
+	}
+
+	// the stream over every key that listDir and deleteDir ran before
+	static Set<String> scan(Set<String> keys, String prefix) {
+		int depth = (int) prefix.chars().filter(ch -> ch == '/').count();
+		return keys.stream()
+			.filter(s -> s.startsWith(prefix))
+			.filter(s -> s.chars().filter(ch -> ch == '/').count() >= depth + 1)
+			.map(s -> s.substring(0, s.length() - 1))
+			.collect(Collectors.toSet());
+	}
+}
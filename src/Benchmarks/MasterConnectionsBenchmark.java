@@ -0,0 +1,81 @@
+package Benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chunkserver.ChunkServerMaster;
+import com.client.ClientFS;
+import com.client.Frame;
+import com.client.FrameConnection;
+
+/**
+ * Throughput of a running master with a growing number of open client connections.
+ * All connections stay open and a few driver threads spread ListDir requests over them,
+ * so the master has to serve every connection at once; a master with a thread pool
+ * smaller than the number of connections stalls here.
+ * Run from the directory of the master, e.g. java Benchmarks.MasterConnectionsBenchmark 4096 3
+ * (start the master with -Dtinyfs.master.io=threads to compare the thread per connection front-end)
+ */
+public class MasterConnectionsBenchmark {
+
+	static final int Drivers = 8;
+
+	public static void main(String[] args) throws Exception {
+		int maxConnections = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		List<FrameConnection> open = new ArrayList<FrameConnection>();
+		for (int connections = 1; connections <= maxConnections; connections *= 4) {
+			long start = System.nanoTime();
+			while (open.size() < connections) {
+				open.add(FrameConnection.connect(ChunkServerMaster.MasterConfigFile));
+			}
+			double connectMs = (System.nanoTime() - start) / 1e6;
+			double opsPerSecond = run(open, seconds);
+			System.out.printf("%5d connections: %10.0f requests/s  (opened in %.0f ms)%n", connections, opsPerSecond, connectMs);
+		}
+		for (FrameConnection conn : open) {
+			conn.close();
+		}
+	}
+
+	// every driver sends a ListDir on each of its connections in turn, a connection only carries one request at a time
+	static double run(final List<FrameConnection> open, final int seconds) throws InterruptedException {
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(Drivers);
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		for (int d = 0; d < Drivers; d++) {
+			final int driver = d;
+			new Thread(() -> {
+				long n = 0;
+				Frame reply = new Frame(0);
+				try {
+					int i = driver;
+					while (System.nanoTime() < end) {
+						if (i >= open.size()) i = driver % open.size();
+						FrameConnection conn = open.get(i);
+						// drivers of fewer connections than drivers share them
+						synchronized (conn) {
+							conn.send(new Frame(ClientFS.LIST_DIR_COMMAND).putString("/"));
+							if (conn.receive(reply) == null || reply.getInt() < -1) errors.incrementAndGet();
+						}
+						n++;
+						i += Drivers;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					errors.incrementAndGet();
+				}
+				requests.addAndGet(n);
+				done.countDown();
+			}).start();
+		}
+		done.await();
+		if (errors.get() > 0) System.out.println("errors " + errors.get());
+		return requests.get() / (double) seconds;
+	}
+}
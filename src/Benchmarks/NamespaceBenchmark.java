@@ -0,0 +1,88 @@
+package Benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.chunkserver.ChunkServerMaster;
+import com.client.ClientFS.FSReturnVals;
+
+/**
+ * Metadata throughput of the master namespace by thread count, in process without the
+ * network: every thread creates files, adds a chunk to each and reads its chunk list, once
+ * in a directory of its own and once all in the same directory. "global lock" runs every
+ * operation under one lock on the master like the request handler used to, "path locks"
+ * leaves it to the locks the master takes on the paths of each operation.
+ * java Benchmarks.NamespaceBenchmark 20000 1,2,4,8
+ */
+public class NamespaceBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		String[] threads = (args.length > 1 ? args[1] : "1,2,4,8").split(",");
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores");
+
+		// warm up both paths before measuring
+		run(files, 2, true, false);
+		run(files, 2, false, false);
+		for (boolean shared : new boolean[] { false, true }) {
+			for (boolean global : new boolean[] { true, false }) {
+				double base = 0;
+				for (String t : threads) {
+					int n = Integer.parseInt(t);
+					double rate = run(files, n, global, shared);
+					if (base == 0) base = rate / n;
+					System.out.printf("%-12s %-15s %2d threads %10.0f ops/s  %5.2fx of one thread%n",
+							global ? "global lock" : "path locks", shared ? "one directory" : "own directories", n, rate, rate / base);
+				}
+			}
+		}
+	}
+
+	// operations per second of threads each creating files files
+	static double run(int files, int threads, boolean global, boolean shared) throws Exception {
+		ChunkServerMaster master = new ChunkServerMaster();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		int[] failed = new int[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			String dir = shared ? "/shared/" : "/dir" + t + "/";
+			master.createDir("/", dir.substring(1, dir.length() - 1));
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < files; i++) {
+					String name = "f" + id + "-" + i;
+					if (global) {
+						synchronized (master) {
+							if (master.createFile(dir, name) != FSReturnVals.Success) failed[id]++;
+						}
+						synchronized (master) {
+							master.addChunk(dir + name);
+						}
+						synchronized (master) {
+							if (master.getChunks(dir + name).size() != 1) failed[id]++;
+						}
+					} else {
+						if (master.createFile(dir, name) != FSReturnVals.Success) failed[id]++;
+						master.addChunk(dir + name);
+						if (master.getChunks(dir + name).size() != 1) failed[id]++;
+					}
+				}
+			});
+			workers[t].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		for (int f : failed) {
+			if (f != 0) System.out.println("failed operations: " + f);
+		}
+		return 3.0 * files * threads / seconds;
+	}
+}
@@ -0,0 +1,76 @@
+package Benchmarks;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import com.chunkserver.ChunkServerMaster;
+import com.chunkserver.OperationLog;
+import com.client.ClientFS.FSReturnVals;
+
+/**
+ * Durable metadata throughput of the master by thread count, in process without the network:
+ * every thread creates files in a directory of its own and adds a chunk to each, waiting for
+ * the operation log to be on disk after every mutation like a request handler does before it
+ * answers. Records per fsync shows how many mutations share a commit; one thread pays an fsync
+ * per mutation. The log goes to a fresh directory below the given one, e.g.
+ * java Benchmarks.OperationLogBenchmark 2000 1,4,16,64 /tmp
+ */
+public class OperationLogBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		String[] threads = (args.length > 1 ? args[1] : "1,4,16,64").split(",");
+		File base = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+
+		for (String t : threads) {
+			int n = Integer.parseInt(t);
+			File dir = new File(base, "tinyfs-log-" + System.nanoTime());
+			ChunkServerMaster master = new ChunkServerMaster();
+			master.openLog(dir.getPath());
+			OperationLog log = master.getLog();
+
+			CountDownLatch start = new CountDownLatch(1);
+			Thread[] workers = new Thread[n];
+			int[] failed = new int[n];
+			// the files of all threads add up to the same total
+			int each = Math.max(1, files / n);
+			for (int i = 0; i < n; i++) {
+				final int id = i;
+				master.createDir("/", "t" + id);
+				workers[i] = new Thread(() -> {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int f = 0; f < each; f++) {
+						if (master.createFile("/t" + id + "/", "f" + f) != FSReturnVals.Success) failed[id]++;
+						master.awaitLogged();
+						master.addChunk("/t" + id + "/f" + f);
+						master.awaitLogged();
+					}
+				});
+				workers[i].start();
+			}
+			master.awaitLogged();
+			long records = log.getRecords();
+			long syncs = log.getSyncs();
+			long begin = System.nanoTime();
+			start.countDown();
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			records = log.getRecords() - records;
+			syncs = log.getSyncs() - syncs;
+			int bad = 0;
+			for (int f : failed) bad += f;
+			System.out.printf("%3d threads: %8.0f durable mutations/s  %6.1f records per fsync  %6.2f ms per fsync  failed %d%n",
+					n, records / seconds, records / (double) syncs, seconds * 1e3 / syncs, bad);
+
+			master.closeLog();
+			for (File f : dir.listFiles()) f.delete();
+			dir.delete();
+		}
+	}
+}
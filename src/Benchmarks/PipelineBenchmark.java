@@ -0,0 +1,59 @@
+package Benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.chunkserver.ChunkServer;
+import com.client.Frame;
+import com.client.FrameConnection;
+
+/**
+ * Throughput of readChunk on one connection to a running chunk server with a
+ * growing number of requests in flight. A window of 1 is the blocking call every
+ * client used before; larger windows keep that many requests pipelined.
+ * Run from the directory of the chunk server, e.g. java Benchmarks.PipelineBenchmark 20000 4096
+ */
+public class PipelineBenchmark {
+
+	static final String Handle = "pipeline";
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+		FrameConnection conn = FrameConnection.connect(ChunkServer.ClientConfigFile);
+		conn.call(new Frame(ChunkServer.CreateChunkCMD).putString(Handle).putInt(ChunkServer.ChunkSize));
+		run(conn, requests / 10, size, 1);
+
+		double single = 0;
+		for (int window = 1; window <= 64; window *= 2) {
+			double opsPerSecond = run(conn, requests, size, window);
+			if (window == 1) single = opsPerSecond;
+			System.out.printf("%3d in flight: %10.0f requests/s  %5.1fx%n", window, opsPerSecond, opsPerSecond / single);
+		}
+		conn.close();
+	}
+
+	static double run(FrameConnection conn, int requests, int size, int window) throws Exception {
+		List<CompletableFuture<Frame>> inFlight = new ArrayList<CompletableFuture<Frame>>(Collections.nCopies(window, (CompletableFuture<Frame>) null));
+		Frame[] replies = new Frame[window];
+		for (int i = 0; i < window; i++) replies[i] = new Frame(0);
+		Frame request = new Frame(ChunkServer.ReadChunkCMD);
+		byte[] data = new byte[size];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			int slot = i % window;
+			// wait for the oldest request before its reply frame is used again
+			if (inFlight.get(slot) != null) inFlight.get(slot).get().getBlock(data, 0);
+			request.reset(ChunkServer.ReadChunkCMD).putString(Handle).putInt(0).putInt(size);
+			inFlight.set(slot, conn.submit(request, replies[slot]));
+		}
+		for (CompletableFuture<Frame> f : inFlight) {
+			if (f != null) f.get().getBlock(data, 0);
+		}
+		return requests / ((System.nanoTime() - start) / 1e9);
+	}
+}
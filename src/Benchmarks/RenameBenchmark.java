@@ -0,0 +1,87 @@
+package Benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.chunkserver.ChunkServerMaster;
+import com.client.ClientFS.FSReturnVals;
+import com.client.FileHandle;
+
+/**
+ * Renaming a directory as the subtree below it grows, in process without the network.
+ * "tree" is renameDir on the master, which moves the directory's node; "re-key" renames
+ * the same subtree in a map keyed by full path, rewriting the key of every descendant as
+ * the namespace had to before. Then openFile by path depth, paths resolving a component
+ * at a time. Give the JVM room for the largest subtree, e.g.
+ * java -Xmx4g Benchmarks.RenameBenchmark 1000,10000,100000,1000000
+ */
+public class RenameBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : "1000,10000,100000,1000000").split(",");
+
+		for (String size : sizes) {
+			int descendants = Integer.parseInt(size);
+			ChunkServerMaster master = new ChunkServerMaster();
+			ConcurrentSkipListMap<String, List<String>> flat = new ConcurrentSkipListMap<String, List<String>>();
+			master.createDir("/", "big");
+			flat.put("/big/", new ArrayList<String>());
+			// directories of 99 files each
+			for (int d = 0; d * 100 < descendants; d++) {
+				master.createDir("/big/", "d" + d);
+				flat.put("/big/d" + d + "/", new ArrayList<String>());
+				for (int f = 0; f < 99; f++) {
+					master.createFile("/big/d" + d + "/", "f" + f);
+					flat.put("/big/d" + d + "/f" + f, new ArrayList<String>());
+				}
+			}
+
+			int reps = 10000;
+			int failed = 0;
+			long start = System.nanoTime();
+			for (int r = 0; r < reps; r++) {
+				if (master.renameDir(r % 2 == 0 ? "/big" : "/moved", r % 2 == 0 ? "/moved" : "/big") != FSReturnVals.Success) failed++;
+			}
+			double tree = (System.nanoTime() - start) / 1e3 / reps;
+
+			int rekeys = Math.max(2, 200000 / descendants) & ~1;
+			start = System.nanoTime();
+			for (int r = 0; r < rekeys; r++) {
+				rekey(flat, r % 2 == 0 ? "/big/" : "/moved/", r % 2 == 0 ? "/moved/" : "/big/");
+			}
+			double rekey = (System.nanoTime() - start) / 1e3 / rekeys;
+			System.out.printf("%8d descendants: tree %8.2f us  re-key %12.1f us  failed %d%n", flat.size() - 1, tree, rekey, failed);
+		}
+
+		ChunkServerMaster master = new ChunkServerMaster();
+		String dir = "/";
+		for (int depth = 1; depth <= 32; depth++) {
+			master.createDir(dir, "level" + depth);
+			dir = dir + "level" + depth + "/";
+			master.createFile(dir, "file");
+			if (depth == 1 || depth == 4 || depth == 16 || depth == 32) {
+				FileHandle fh = new FileHandle();
+				int reps = 200000;
+				int failed = 0;
+				long start = System.nanoTime();
+				for (int r = 0; r < reps; r++) {
+					if (master.openFile(dir + "file", fh) != FSReturnVals.Success) failed++;
+				}
+				System.out.printf("openFile at depth %2d: %6.3f us  failed %d%n", depth, (System.nanoTime() - start) / 1e3 / reps, failed);
+			}
+		}
+	}
+
+	// move every key below from to below to
+	static void rekey(ConcurrentSkipListMap<String, List<String>> flat, String from, String to) {
+		ConcurrentNavigableMap<String, List<String>> subtree = flat.subMap(from, true, from.substring(0, from.length() - 1) + '0', false);
+		List<Map.Entry<String, List<String>>> moved = new ArrayList<Map.Entry<String, List<String>>>(subtree.entrySet());
+		subtree.clear();
+		for (Map.Entry<String, List<String>> e : moved) {
+			flat.put(to + e.getKey().substring(from.length()), e.getValue());
+		}
+	}
+}
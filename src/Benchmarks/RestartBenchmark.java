@@ -0,0 +1,106 @@
+package Benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.chunkserver.ChunkServerMaster;
+import com.client.ClientFS.FSReturnVals;
+
+/**
+ * Restart time of the master by namespace size, in process without the network. A namespace
+ * of directories of 100 files with one chunk each is logged, then the master is restarted
+ * from the log alone, a checkpoint is taken while another thread keeps creating files, and
+ * the master is restarted from the checkpoint and the short log written after it. The
+ * slowest createFile during the checkpoint shows mutations do not wait for it; what is left
+ * are pauses of the collector, the shadow namespace of the checkpoint doubles the heap.
+ * The log goes to a fresh directory below the given one; give the JVM room for two
+ * namespaces of the largest size, e.g.
+ * java -Xmx4g Benchmarks.RestartBenchmark 100000,1000000,4000000 /tmp
+ */
+public class RestartBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : "100000,1000000,4000000").split(",");
+		File base = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+		for (String size : sizes) {
+			int entries = Integer.parseInt(size);
+			File dir = new File(base, "tinyfs-restart-" + System.nanoTime());
+
+			ChunkServerMaster master = new ChunkServerMaster();
+			master.openLog(dir.getPath());
+			for (int d = 0; d * 100 < entries; d++) {
+				master.createDir("/", "d" + d);
+				for (int f = 0; f < 99; f++) {
+					master.createFile("/d" + d + "/", "f" + f);
+					master.addChunk("/d" + d + "/f" + f);
+				}
+			}
+			master.closeLog();
+			long logBytes = bytes(dir);
+			master = null;
+
+			long start = System.nanoTime();
+			master = new ChunkServerMaster();
+			master.openLog(dir.getPath());
+			double fromLog = (System.nanoTime() - start) / 1e6;
+			int count = count(master);
+
+			// a checkpoint while a client keeps creating files
+			ChunkServerMaster live = master;
+			live.createDir("/", "during");
+			long[] slowest = new long[1];
+			int[] created = new int[1];
+			boolean[] done = new boolean[1];
+			Thread client = new Thread(() -> {
+				while (!done[0]) {
+					long begin = System.nanoTime();
+					if (live.createFile("/during/", "f" + created[0]) == FSReturnVals.Success) created[0]++;
+					live.awaitLogged();
+					slowest[0] = Math.max(slowest[0], System.nanoTime() - begin);
+				}
+			});
+			client.start();
+			start = System.nanoTime();
+			master.checkpoint();
+			double checkpoint = (System.nanoTime() - start) / 1e6;
+			done[0] = true;
+			client.join();
+			// the log written after the checkpoint
+			for (int i = 0; i < 1000; i++) {
+				master.createFile("/during/", "tail" + i);
+			}
+			master.closeLog();
+			long checkpointBytes = bytes(dir);
+			master = null;
+
+			start = System.nanoTime();
+			master = new ChunkServerMaster();
+			master.openLog(dir.getPath());
+			double fromCheckpoint = (System.nanoTime() - start) / 1e6;
+			int recovered = count(master);
+			master.closeLog();
+
+			System.out.printf("%9d entries: restart from log %8.0f ms (%5.1f MB)  checkpoint %7.0f ms, %6d creates meanwhile, slowest %6.2f ms"
+					+ "  restart from checkpoint %7.0f ms (%5.1f MB)  %s%n",
+					count, fromLog, logBytes / 1048576.0, checkpoint, created[0], slowest[0] / 1e6, fromCheckpoint, checkpointBytes / 1048576.0,
+					recovered == count + 1 + created[0] + 1000 ? "ok" : "lost entries " + recovered);
+
+			for (File f : dir.listFiles()) f.delete();
+			dir.delete();
+		}
+	}
+
+	static int count(ChunkServerMaster master) {
+		List<String> all = new ArrayList<String>();
+		master.listDir("/", all);
+		return all.size();
+	}
+
+	static long bytes(File dir) {
+		long total = 0;
+		for (File f : dir.listFiles()) total += f.length();
+		return total;
+	}
+}
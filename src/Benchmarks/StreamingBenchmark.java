@@ -0,0 +1,119 @@
+package Benchmarks;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.client.Client;
+import com.client.ClientFS;
+import com.client.FileHandle;
+import com.client.TinyFileChannel;
+
+/**
+ * Moving a large blob in and out of TinyFS: one writeChunk and then one readChunk per chunk,
+ * strictly one after another like TestReadAndWrite and UnitTest5, against the streams and
+ * channels of ClientFS that keep a window of chunks in flight. Every byte read is checked.
+ * Needs a running master and chunk server, run from their directory, e.g.
+ * java Benchmarks.StreamingBenchmark 32 65536 1,4,16 2
+ */
+public class StreamingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+		String[] windows = (args.length > 2 ? args[2] : "1,4,16").split(",");
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+		byte[] blob = new byte[megabytes * 1024 * 1024];
+		for (int i = 0; i < blob.length; i++) {
+			blob[i] = (byte) (i * 31 + (i >> 12));
+		}
+		ClientFS fs = new ClientFS();
+		Client client = new Client();
+		fs.CreateDir("/", "Streams");
+
+		// the first round warms up both paths
+		for (int r = 0; r < rounds; r++) {
+			System.out.println("round " + r);
+			round(fs, client, blob, chunkSize, windows, "r" + r + "-" + chunkSize + "-" + megabytes);
+		}
+	}
+
+	static void round(ClientFS fs, Client client, byte[] blob, int chunkSize, String[] windows, String tag) throws Exception {
+		// one chunk at a time
+		int chunks = (blob.length + chunkSize - 1) / chunkSize;
+		String[] handles = new String[chunks];
+		long start = System.nanoTime();
+		for (int i = 0; i < chunks; i++) {
+			handles[i] = client.createChunk("stream-" + tag + "-" + i, chunkSize);
+			client.writeChunk(handles[i], Arrays.copyOfRange(blob, i * chunkSize, Math.min(blob.length, (i + 1) * chunkSize)), 0, chunkSize);
+		}
+		double write = seconds(start);
+		start = System.nanoTime();
+		int bad = 0;
+		for (int i = 0; i < chunks; i++) {
+			int length = Math.min(chunkSize, blob.length - i * chunkSize);
+			byte[] data = client.readChunk(handles[i], 0, length, chunkSize);
+			if (data == null || !Arrays.equals(data, 0, length, blob, i * chunkSize, i * chunkSize + length)) bad++;
+		}
+		report("chunk by chunk", blob.length, write, seconds(start), bad);
+
+		// streams with the default window
+		FileHandle fh = open(fs, "default-" + tag, chunkSize);
+		start = System.nanoTime();
+		try (OutputStream out = fs.OpenOutputStream(fh, false)) {
+			out.write(blob);
+		}
+		write = seconds(start);
+		start = System.nanoTime();
+		byte[] back;
+		try (InputStream in = fs.OpenInputStream(fh)) {
+			back = in.readAllBytes();
+		}
+		report("streams, window " + TinyFileChannel.DefaultWindow, blob.length, write, seconds(start), Arrays.equals(back, blob) ? 0 : 1);
+
+		// channels with each window, written in 1MB pieces and read into a 1MB buffer
+		for (String w : windows) {
+			int window = Integer.parseInt(w);
+			fh = open(fs, "window" + window + "-" + tag, chunkSize);
+			start = System.nanoTime();
+			try (TinyFileChannel channel = fs.OpenChannel(fh).setWindow(window)) {
+				for (int off = 0; off < blob.length; off += 1024 * 1024) {
+					channel.write(ByteBuffer.wrap(blob, off, Math.min(1024 * 1024, blob.length - off)));
+				}
+			}
+			write = seconds(start);
+			start = System.nanoTime();
+			ByteBuffer into = ByteBuffer.allocate(1024 * 1024);
+			bad = 0;
+			long offset = 0;
+			try (TinyFileChannel channel = fs.OpenChannel(fh).setWindow(window)) {
+				while (channel.read(into) != -1) {
+					into.flip();
+					if (!Arrays.equals(into.array(), 0, into.limit(), blob, (int) offset, (int) offset + into.limit())) bad++;
+					offset += into.limit();
+					into.clear();
+				}
+			}
+			if (offset != blob.length) bad++;
+			report("channel, window " + window, blob.length, write, seconds(start), bad);
+		}
+	}
+
+	static FileHandle open(ClientFS fs, String name, int chunkSize) {
+		fs.CreateFile("/Streams/", name, chunkSize);
+		FileHandle fh = new FileHandle();
+		fs.OpenFile("/Streams/" + name, fh);
+		return fh;
+	}
+
+	static double seconds(long start) {
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	static void report(String name, int bytes, double write, double read, int bad) {
+		double mb = bytes / (1024.0 * 1024.0);
+		System.out.printf("%-20s write %7.1f MB/s  read %7.1f MB/s  bad %d%n", name, mb / write, mb / read, bad);
+	}
+}
@@ -0,0 +1,83 @@
+package Benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+import com.chunkserver.ChunkServer;
+import com.client.Frame;
+import com.client.FrameConnection;
+
+/**
+ * Latency and client CPU of 4KB chunk reads from a chunk server on the same host,
+ * once over TCP and once over its Unix domain socket, in alternating rounds.
+ * Needs a chunk server started with -Dtinyfs.unixsocket=true, run from its directory, e.g.
+ * java Benchmarks.UnixSocketBenchmark 20000 3
+ */
+public class UnixSocketBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int reads = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		int port = -1;
+		String unixPath = null;
+		try (BufferedReader config = new BufferedReader(new FileReader(ChunkServer.ClientConfigFile))) {
+			String line = config.readLine();
+			port = Integer.parseInt(line.substring(line.indexOf(':') + 1));
+			while ((line = config.readLine()) != null) {
+				if (line.startsWith(FrameConnection.UnixPrefix))
+					unixPath = line.substring(FrameConnection.UnixPrefix.length());
+			}
+		}
+		if (unixPath == null) {
+			System.out.println("The chunk server does not listen on a Unix domain socket, start it with -Dtinyfs.unixsocket=true");
+			return;
+		}
+
+		FrameConnection tcp = new FrameConnection(new Socket("127.0.0.1", port));
+		FrameConnection unix = new FrameConnection(SocketChannel.open(UnixDomainSocketAddress.of(unixPath)));
+		String chunk = tcp.call(new Frame(ChunkServer.CreateChunkCMD)).getString();
+		tcp.call(new Frame(ChunkServer.WriteChunkCMD).putString(chunk).putInt(0).putBlock(new byte[ChunkServer.ChunkSize]));
+
+		// warm up both paths before measuring
+		read(tcp, chunk, reads / 4);
+		read(unix, chunk, reads / 4);
+		for (int r = 0; r < rounds; r++) {
+			report("tcp", tcp, chunk, reads);
+			report("unix", unix, chunk, reads);
+		}
+		tcp.close();
+		unix.close();
+	}
+
+	static void report(String name, FrameConnection conn, String chunk, int reads) throws Exception {
+		long cpu = processCpuNanos();
+		long start = System.nanoTime();
+		int failed = read(conn, chunk, reads);
+		long elapsed = System.nanoTime() - start;
+		cpu = processCpuNanos() - cpu;
+		System.out.printf("%-5s %7.1f us/read  %8.0f reads/s  client cpu %6.1f us/read  failed %d%n",
+				name, elapsed / 1e3 / reads, reads / (elapsed / 1e9), cpu / 1e3 / reads, failed);
+	}
+
+	// read the whole chunk reads times, one request in flight
+	static int read(FrameConnection conn, String chunk, int reads) throws Exception {
+		Frame request = new Frame(ChunkServer.ReadChunkCMD);
+		Frame reply = new Frame(0);
+		byte[] data = new byte[ChunkServer.ChunkSize];
+		int failed = 0;
+		for (int i = 0; i < reads; i++) {
+			request.reset(ChunkServer.ReadChunkCMD).putString(chunk).putInt(0).putInt(ChunkServer.ChunkSize);
+			if (conn.call(request, reply).getBlock(data, 0) != ChunkServer.ChunkSize) failed++;
+		}
+		return failed;
+	}
+
+	static long processCpuNanos() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+}
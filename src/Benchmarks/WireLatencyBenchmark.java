@@ -0,0 +1,116 @@
+package Benchmarks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import com.chunkserver.ChunkServer;
+import com.client.Frame;
+import com.client.FrameConnection;
+
+/**
+ * Small RPC latency of the old object stream encoding against the framed protocol.
+ * Both sides run in this process over loopback. The request has the shape of a
+ * 100 byte readChunk and the server answers with the bytes, so only the wire
+ * layer differs. Run with e.g. java Benchmarks.WireLatencyBenchmark 2000
+ */
+public class WireLatencyBenchmark {
+
+	static final String Handle = "12345";
+	static final byte[] Data = new byte[100];
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		report("object streams", objectStreams(calls));
+		report("frames", frames(calls));
+	}
+
+	static void report(String name, long[] nanos) {
+		Arrays.sort(nanos);
+		long total = 0;
+		for (long n : nanos) total += n;
+		System.out.printf("%-15s avg %8.1f us  p50 %8.1f us  p99 %8.1f us%n", name,
+			total / (double) nanos.length / 1000, nanos[nanos.length / 2] / 1000.0, nanos[nanos.length * 99 / 100] / 1000.0);
+	}
+
+	/**
+	 * The encoding every endpoint used before: <size - cmd - fields> through object streams.
+	 */
+	static long[] objectStreams(int calls) throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread t = new Thread(() -> {
+			try (Socket s = server.accept()) {
+				ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+				ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+				while (true) {
+					int size = in.readInt();
+					in.readInt();
+					in.readInt();
+					int length = in.readInt();
+					in.readFully(new byte[size - 16]);
+					out.writeInt(ChunkServer.PayloadSZ + length);
+					out.write(Data, 0, length);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// client is done
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+
+		Socket s = new Socket("127.0.0.1", server.getLocalPort());
+		ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+		ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+		byte[] handle = Handle.getBytes();
+		long[] nanos = new long[calls];
+		for (int i = -calls / 10; i < calls; i++) {
+			long start = System.nanoTime();
+			out.writeInt(ChunkServer.PayloadSZ + ChunkServer.CMDlength + 8 + handle.length);
+			out.writeInt(ChunkServer.ReadChunkCMD);
+			out.writeInt(0);
+			out.writeInt(Data.length);
+			out.write(handle);
+			out.flush();
+			in.readFully(new byte[in.readInt() - ChunkServer.PayloadSZ]);
+			if (i >= 0) nanos[i] = System.nanoTime() - start;
+		}
+		s.close();
+		server.close();
+		return nanos;
+	}
+
+	static long[] frames(int calls) throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread t = new Thread(() -> {
+			try (FrameConnection conn = new FrameConnection(server.accept())) {
+				Frame request;
+				while ((request = conn.receive()) != null) {
+					request.getString();
+					request.getInt();
+					int length = request.getInt();
+					conn.send(Frame.reply(request).putBlock(Arrays.copyOf(Data, length)));
+				}
+			} catch (IOException e) {
+				// client is done
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+
+		FrameConnection conn = new FrameConnection(new Socket("127.0.0.1", server.getLocalPort()));
+		long[] nanos = new long[calls];
+		for (int i = -calls / 10; i < calls; i++) {
+			long start = System.nanoTime();
+			conn.call(new Frame(ChunkServer.ReadChunkCMD).putString(Handle).putInt(0).putInt(Data.length)).getBlock();
+			if (i >= 0) nanos[i] = System.nanoTime() - start;
+		}
+		conn.close();
+		server.close();
+		return nanos;
+	}
+}
@@ -0,0 +1,59 @@
+package Benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import com.client.Client;
+
+/**
+ * Large sequential reads like the obama.jpg round trip of UnitTest5: a file of the given size
+ * is written into chunks of each chunk size and read back chunk by chunk with readChunk,
+ * checking every byte. Reads of at least tinyfs.transferthreshold bytes are sent by the chunk
+ * server straight from the chunk file to the socket; start the chunk server with
+ * -Dtinyfs.transferthreshold=2147483647 to compare with reads copied through its heap.
+ * Needs a running chunk server, run from its directory, e.g.
+ * java Benchmarks.ZeroCopyReadBenchmark 64 4096,65536,1048576 3
+ */
+public class ZeroCopyReadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		String[] sizes = (args.length > 1 ? args[1] : "4096,65536,1048576").split(",");
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		// the file is obama.jpg repeated up to the size
+		byte[] image = Files.readAllBytes(Paths.get("obama.jpg"));
+		Client client = new Client();
+
+		for (String size : sizes) {
+			int chunkSize = Integer.parseInt(size);
+			int chunks = (int) ((megabytes * 1024L * 1024L + chunkSize - 1) / chunkSize);
+			String[] handles = new String[chunks];
+			byte[][] expected = new byte[chunks][];
+			for (int i = 0; i < chunks; i++) {
+				expected[i] = new byte[chunkSize];
+				for (int j = 0; j < chunkSize; j++) {
+					expected[i][j] = image[(int) (((long) i * chunkSize + j) % image.length)];
+				}
+				handles[i] = client.createChunk("zerocopy-" + chunkSize + "-" + i, chunkSize);
+				client.writeChunk(handles[i], expected[i], 0, chunkSize);
+			}
+
+			byte[] into = new byte[chunkSize];
+			for (int r = 0; r < rounds; r++) {
+				int bad = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < chunks; i++) {
+					if (client.readChunk(handles[i], 0, chunkSize, chunkSize, into) != chunkSize || !Arrays.equals(into, expected[i])) bad++;
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("chunk %8d bytes: %8.1f MB/s  %7.1f us/read  bad %d%n",
+						chunkSize, chunks * (double) chunkSize / (1024 * 1024) / seconds, seconds * 1e6 / chunks, bad);
+			}
+			for (String handle : handles) {
+				client.deleteChunk(handle);
+			}
+		}
+	}
+}
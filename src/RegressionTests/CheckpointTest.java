@@ -0,0 +1,130 @@
+package RegressionTests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.chunkserver.ChunkServerMaster;
+import com.chunkserver.OperationLog;
+
+/**
+ * Restart of the master from a checkpoint and the log after it, in process without the
+ * network: a master whose log is not closed is left as a killed master leaves it. A segment
+ * the checkpoint replaced but a crash left behind must be deleted, not replayed. A damaged
+ * checkpoint whose segments are gone must keep the master from starting.
+ * java RegressionTests.CheckpointTest
+ */
+public class CheckpointTest {
+	static final String TestName = "CheckpointTest: ";
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("tinyfs-checkpoint").toFile();
+
+		System.out.println(TestName + "Log a namespace and checkpoint it.");
+		ChunkServerMaster master = new ChunkServerMaster();
+		master.openLog(dir.getPath());
+		for (int d = 0; d < 10; d++) {
+			master.createDir("/", "d" + d);
+			for (int f = 0; f < 10; f++) {
+				master.createFile("/d" + d + "/", "f" + f);
+				master.addChunk("/d" + d + "/f" + f);
+			}
+		}
+		master.setFileLength("/d0/f0", 1234);
+		// a name too long for a short length
+		char[] longName = new char[70000];
+		Arrays.fill(longName, 'n');
+		master.createDir("/d0/", new String(longName));
+		long checkpoint = master.checkpoint();
+
+		System.out.println(TestName + "Mutate after the checkpoint and crash.");
+		master.deleteFile("/d1/", "f1");
+		master.renameDir("/d2", "/d0/moved");
+		master.createDir("/", "late");
+		master.createFile("/late/", "file");
+		master.addChunk("/d3/f3");
+		master.addChunk("/late/file");
+		master.awaitLogged();
+		List<String> expected = snapshot(master);
+
+		// a segment the checkpoint replaced, as a crash before its deletion leaves it
+		File leftover = new File(dir, OperationLog.SegmentPrefix + checkpoint + OperationLog.SegmentSuffix);
+		FileOutputStream out = new FileOutputStream(leftover);
+		out.write(new byte[] { 0, 0, 0, 64, 1, 2, 3, 4 });
+		out.close();
+
+		System.out.println(TestName + "Restart from the checkpoint and compare the namespace.");
+		master = new ChunkServerMaster();
+		master.openLog(dir.getPath());
+		List<String> restarted = snapshot(master);
+		if (!restarted.equals(expected)) {
+			fail("restarted with " + restarted + " instead of " + expected);
+			return;
+		}
+		if (leftover.exists()) {
+			fail(leftover.getName() + " was not deleted");
+			return;
+		}
+		// chunk handles go on after the ones the checkpoint and the log gave out
+		String handle = master.addChunk("/late/file");
+		for (String entry : expected) {
+			if (entry.matches(".*[\\[ ]" + handle + "[,\\]].*")) {
+				fail("chunk handle " + handle + " was given out again");
+				return;
+			}
+		}
+		master.closeLog();
+
+		System.out.println(TestName + "Damage the checkpoint and verify the master does not start.");
+		File file = new File(dir, ChunkServerMaster.CheckpointPrefix + checkpoint);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() / 2);
+		int b = raf.read();
+		raf.seek(raf.length() / 2);
+		raf.write(b ^ 0xff);
+		raf.close();
+		master = new ChunkServerMaster();
+		try {
+			master.openLog(dir.getPath());
+			master.closeLog();
+			fail("the master started without the mutations of the damaged checkpoint");
+			return;
+		} catch (IOException e) {
+			System.out.println(TestName + e.getMessage());
+		}
+
+		System.out.println(TestName + "Success!");
+		clean(dir);
+	}
+
+	// every entry of the namespace, files with their chunk lists and lengths, sorted
+	static List<String> snapshot(ChunkServerMaster master) {
+		List<String> entries = new ArrayList<String>();
+		master.listDir("/", entries);
+		List<String> snapshot = new ArrayList<String>();
+		for (String entry : entries) {
+			List<String> chunks = master.getChunks(entry);
+			snapshot.add(chunks == null ? entry : entry + " " + chunks + " " + master.getFileLength(entry));
+		}
+		snapshot.sort(null);
+		return snapshot;
+	}
+
+	static void fail(String why) {
+		System.out.println(TestName + why);
+		System.out.println(TestName + "fail!");
+	}
+
+	static void clean(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) f.delete();
+		}
+		dir.delete();
+	}
+}
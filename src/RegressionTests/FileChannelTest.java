@@ -0,0 +1,107 @@
+package RegressionTests;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.client.ClientFS;
+import com.client.ClientFS.FSReturnVals;
+import com.client.FileHandle;
+import com.client.TinyFileChannel;
+
+/**
+ * Round trips through a TinyFileChannel: seek, write past the end, read back and truncate.
+ * A read of the last chunk keeps only the bytes that belong to the file, so a read after the
+ * file grew past that chunk must not use it. Runs against a master and a chunk server, from
+ * their directory: java RegressionTests.FileChannelTest
+ */
+public class FileChannelTest {
+	static final String TestName = "FileChannelTest: ";
+
+	public static void main(String[] args) throws IOException {
+		ClientFS cfs = new ClientFS();
+		if (cfs.CreateDir("/", "ChannelTest") != FSReturnVals.Success
+				|| cfs.CreateFile("/ChannelTest/", "bytes") != FSReturnVals.Success) {
+			fail("creating /ChannelTest/bytes failed");
+			return;
+		}
+		FileHandle fh = new FileHandle();
+		cfs.OpenFile("/ChannelTest/bytes", fh);
+		TinyFileChannel channel = cfs.OpenChannel(fh);
+		int chunkSize = channel.getChunkSize();
+		// the image the file must read as, grown along with it
+		byte[] expected = new byte[3 * chunkSize];
+
+		System.out.println(TestName + "Write 100 bytes and read them back.");
+		write(channel, expected, 0, 100, 1);
+		if (!check(channel, expected, 100)) return;
+
+		System.out.println(TestName + "Seek past the end, write there and read the whole file back.");
+		int far = chunkSize + chunkSize / 2;
+		write(channel, expected, far, 50, 2);
+		if (!check(channel, expected, far + 50)) return;
+
+		System.out.println(TestName + "Write into the hole and read the whole file back.");
+		write(channel, expected, chunkSize - 10, 20, 3);
+		if (!check(channel, expected, far + 50)) return;
+
+		System.out.println(TestName + "Truncate within the first chunk and read it back.");
+		channel.truncate(50);
+		for (int i = 50; i < expected.length; i++) expected[i] = 0;
+		if (channel.position() != 50 || !check(channel, expected, 50)) return;
+
+		System.out.println(TestName + "Grow the file over the truncated bytes, reopen it and read it back.");
+		write(channel, expected, 2 * chunkSize, 30, 4);
+		channel.close();
+		channel = cfs.OpenChannel(fh);
+		if (!check(channel, expected, 2 * chunkSize + 30)) return;
+		channel.close();
+		cfs.CloseFile(fh);
+
+		System.out.println(TestName + "Success!");
+	}
+
+	// write length bytes of seed at offset, to the file and to the expected image
+	static void write(TinyFileChannel channel, byte[] expected, int offset, int length, int seed) throws IOException {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (seed * 31 + i + 1);
+		}
+		System.arraycopy(data, 0, expected, offset, length);
+		channel.position(offset);
+		ByteBuffer src = ByteBuffer.wrap(data);
+		while (src.hasRemaining()) channel.write(src);
+	}
+
+	// read the whole file from its first byte and compare it to the expected image of size bytes
+	static boolean check(TinyFileChannel channel, byte[] expected, int size) throws IOException {
+		if (channel.size() != size) {
+			fail("the file is " + channel.size() + " bytes long instead of " + size);
+			return false;
+		}
+		ByteBuffer dst = ByteBuffer.allocate(size + 1);
+		channel.position(0);
+		try {
+			while (channel.read(dst) > 0);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			fail("reading the file failed");
+			return false;
+		}
+		if (dst.position() != size) {
+			fail("read " + dst.position() + " bytes of " + size);
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			if (dst.get(i) != expected[i]) {
+				fail("byte " + i + " differs");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static void fail(String why) {
+		System.out.println(TestName + why);
+		System.out.println(TestName + "fail!");
+	}
+}
@@ -0,0 +1,117 @@
+package RegressionTests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.chunkserver.ChunkServerMaster;
+import com.chunkserver.OperationLog;
+
+/**
+ * Recovery of the master from its operation log, in process without the network: a master
+ * whose log is not closed is left as a killed master leaves it. The last record of the log
+ * is torn, a master opened on the directory must replay everything before it and cut it off.
+ * java RegressionTests.OperationLogTest
+ */
+public class OperationLogTest {
+	static final String TestName = "OperationLogTest: ";
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("tinyfs-log").toFile();
+
+		System.out.println(TestName + "Log directories, files and chunks, then crash.");
+		ChunkServerMaster master = new ChunkServerMaster();
+		master.openLog(dir.getPath());
+		master.createDir("/", "Log");
+		master.createDir("/Log/", "sub");
+		master.createDir("/", "gone");
+		master.createFile("/Log/sub/", "records");
+		master.createFile("/Log/", "tmp");
+		for (int i = 0; i < 3; i++) {
+			master.addChunk("/Log/sub/records");
+		}
+		master.deleteFile("/Log/", "tmp");
+		master.deleteDir("/", "gone");
+		master.renameDir("/Log", "/Moved");
+		master.awaitLogged();
+		List<String> expected = snapshot(master);
+
+		System.out.println(TestName + "Log one more file and tear its record.");
+		master.createFile("/Moved/", "torn");
+		master.awaitLogged();
+		File segment = lastSegment(dir);
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		System.out.println(TestName + "Reopen the log and verify the replayed namespace.");
+		master = new ChunkServerMaster();
+		master.openLog(dir.getPath());
+		List<String> replayed = snapshot(master);
+		if (!replayed.equals(expected)) {
+			fail("replayed " + replayed + " instead of " + expected);
+			return;
+		}
+
+		System.out.println(TestName + "Log after the cut record, close and verify the namespace again.");
+		master.createFile("/Moved/", "after");
+		master.closeLog();
+		expected.add("/Moved/after " + new ArrayList<String>());
+		expected.sort(null);
+		master = new ChunkServerMaster();
+		master.openLog(dir.getPath());
+		replayed = snapshot(master);
+		master.closeLog();
+		if (!replayed.equals(expected)) {
+			fail("replayed " + replayed + " instead of " + expected);
+			return;
+		}
+
+		System.out.println(TestName + "Success!");
+		clean(dir);
+	}
+
+	// every entry of the namespace, files with their chunk lists, sorted
+	static List<String> snapshot(ChunkServerMaster master) {
+		List<String> entries = new ArrayList<String>();
+		master.listDir("/", entries);
+		List<String> snapshot = new ArrayList<String>();
+		for (String entry : entries) {
+			List<String> chunks = master.getChunks(entry);
+			snapshot.add(chunks == null ? entry : entry + " " + chunks);
+		}
+		snapshot.sort(null);
+		return snapshot;
+	}
+
+	static File lastSegment(File dir) {
+		File last = null;
+		long highest = -1;
+		for (File f : dir.listFiles()) {
+			String name = f.getName();
+			if (!name.startsWith(OperationLog.SegmentPrefix) || !name.endsWith(OperationLog.SegmentSuffix)) continue;
+			long n = Long.parseLong(name.substring(OperationLog.SegmentPrefix.length(), name.length() - OperationLog.SegmentSuffix.length()));
+			if (n > highest) {
+				highest = n;
+				last = f;
+			}
+		}
+		return last;
+	}
+
+	static void fail(String why) {
+		System.out.println(TestName + why);
+		System.out.println(TestName + "fail!");
+	}
+
+	static void clean(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) f.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,176 @@
+package RegressionTests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.chunkserver.EmptyChunkPool;
+import com.chunkserver.SegmentChunkStore;
+
+/**
+ * Recovery of the SegmentChunkStore after a crash, in process without servers: a store that
+ * is not closed is left as a killed chunk server leaves it, its writes are in the files but
+ * the index is not checkpointed. A second store opened on the directory must see them.
+ * A compaction copies chunks while they are written, no write may get lost.
+ * java RegressionTests.SegmentStoreTest
+ */
+public class SegmentStoreTest {
+	static final String TestName = "SegmentStoreTest: ";
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String dir = Files.createTempDirectory("tinyfs-segments").toString() + File.separator;
+
+		System.out.println(TestName + "Create 10 chunks, close the store, delete chunk 3 and crash.");
+		SegmentChunkStore store = new SegmentChunkStore(dir);
+		for (int i = 0; i < 10; i++) {
+			store.createChunk(String.valueOf(i), chunk(i));
+		}
+		store.close();
+		store = new SegmentChunkStore(dir);
+		store.deleteChunk("3");
+
+		System.out.println(TestName + "Reopen the store and verify chunk 3 stays deleted.");
+		store = new SegmentChunkStore(dir);
+		if (store.readChunk("3", 0, 16) != null || store.size() != 9) {
+			fail("deleted chunk 3 is back");
+			return;
+		}
+		for (int i = 0; i < 10; i++) {
+			if (i != 3 && !same(store.readChunk(String.valueOf(i), 0, 4096), chunk(i))) {
+				fail("chunk " + i + " differs");
+				return;
+			}
+		}
+		store.close();
+
+		System.out.println(TestName + "Fill a chunk pool and close the store, so the checkpoint lists the pool chunks.");
+		store = new SegmentChunkStore(dir);
+		EmptyChunkPool pool = new EmptyChunkPool(store, 4);
+		pool.prepare(4096);
+		if (!filled(store, 4)) {
+			fail("the pool did not fill up");
+			return;
+		}
+		pool.shutdown();
+		store.close();
+
+		System.out.println(TestName + "Claim a chunk from the chunk pool, write a record into it and crash.");
+		store = new SegmentChunkStore(dir);
+		pool = new EmptyChunkPool(store, 4);
+		pool.prepare(4096);
+		// the pool adopts the chunks of the checkpoint in the background
+		boolean claimed = false;
+		for (int wait = 0; wait < 100 && !claimed; wait++) {
+			claimed = pool.claim("100", 4096);
+			if (!claimed) Thread.sleep(50);
+		}
+		if (!claimed || !store.writeChunk("100", chunk(100), 0)) {
+			fail("claiming chunk 100 failed");
+			return;
+		}
+		filled(store, 4);
+		pool.shutdown();
+
+		System.out.println(TestName + "Reopen the store with a pool refilling it and verify the claimed chunk.");
+		store = new SegmentChunkStore(dir);
+		pool = new EmptyChunkPool(store, 4);
+		pool.prepare(4096);
+		filled(store, 4);
+		if (!same(store.readChunk("100", 0, 4096), chunk(100))) {
+			fail("chunk 100 lost its data");
+			return;
+		}
+		pool.shutdown();
+		store.close();
+
+		System.out.println(TestName + "Delete every other chunk of 200, compact the segment while the rest are written and crash.");
+		store = new SegmentChunkStore(dir);
+		for (int i = 200; i < 400; i++) {
+			store.createChunk(String.valueOf(i), chunk(i));
+		}
+		for (int i = 200; i < 400; i += 2) {
+			store.deleteChunk(String.valueOf(i));
+		}
+		final SegmentChunkStore compacted = store;
+		final byte[][] written = new byte[400][];
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(() -> {
+			try {
+				for (int n = 0; !done.get(); n++) {
+					int i = 201 + 2 * (n % 100);
+					written[i] = chunk(n);
+					compacted.writeChunk(String.valueOf(i), written[i], 0);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		writer.start();
+		store.compact(1);
+		done.set(true);
+		writer.join();
+
+		System.out.println(TestName + "Reopen the store and verify the compacted chunks.");
+		store = new SegmentChunkStore(dir);
+		if (new File(dir + "segment.1").exists()) {
+			fail("segment 1 was not compacted");
+			return;
+		}
+		for (int i = 200; i < 400; i++) {
+			byte[] expected = i % 2 == 0 ? null : written[i] != null ? written[i] : chunk(i);
+			byte[] image = store.readChunk(String.valueOf(i), 0, 4096);
+			if (expected == null ? image != null : !same(image, expected)) {
+				fail("chunk " + i + " differs after the compaction");
+				return;
+			}
+		}
+		if (!same(store.readChunk("100", 0, 4096), chunk(100))) {
+			fail("chunk 100 lost its data in the compaction");
+			return;
+		}
+		store.close();
+
+		System.out.println(TestName + "Success!");
+		clean(dir);
+	}
+
+	static byte[] chunk(int i) {
+		byte[] image = new byte[4096];
+		for (int b = 0; b < image.length; b++) {
+			image[b] = (byte) (i * 31 + b);
+		}
+		return image;
+	}
+
+	// wait until the pool holds n formatted chunks
+	static boolean filled(SegmentChunkStore store, int n) throws InterruptedException {
+		for (int wait = 0; wait < 100; wait++) {
+			boolean all = true;
+			for (int i = 0; i < n; i++) {
+				all &= store.contains("pool-4096-" + i);
+			}
+			if (all) return true;
+			Thread.sleep(50);
+		}
+		return false;
+	}
+
+	static boolean same(byte[] a, byte[] b) {
+		return a != null && Arrays.equals(a, b);
+	}
+
+	static void fail(String why) {
+		System.out.println(TestName + why);
+		System.out.println(TestName + "fail!");
+	}
+
+	static void clean(String dir) {
+		File[] files = new File(dir).listFiles();
+		if (files != null) {
+			for (File f : files) f.delete();
+		}
+		new File(dir).delete();
+	}
+}
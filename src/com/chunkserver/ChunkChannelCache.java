@@ -0,0 +1,90 @@
+package com.chunkserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of open chunk file channels.
+ * Keeps hot chunks open so a read or write is a positional access on an
+ * already open channel instead of an open/seek/close per call.
+ */
+public class ChunkChannelCache {
+	private final String directory;
+	private final int capacity;
+
+	// access ordered so the eldest entry is the least recently used chunk
+	private final LinkedHashMap<String, FileChannel> channels;
+
+	public ChunkChannelCache(String directory, int capacity) {
+		this.directory = directory;
+		this.capacity = capacity;
+		this.channels = new LinkedHashMap<String, FileChannel>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest) {
+				if (size() <= ChunkChannelCache.this.capacity) {
+					return false;
+				}
+				close(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Return an open channel for the chunk.
+	 * If create is false and the chunk file does not exist then return null.
+	 */
+	public synchronized FileChannel get(String chunkHandle, boolean create) throws IOException {
+		FileChannel channel = channels.get(chunkHandle);
+		if (channel != null && channel.isOpen()) {
+			return channel;
+		}
+
+		try {
+			channel = create
+				? FileChannel.open(Paths.get(directory + chunkHandle), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(Paths.get(directory + chunkHandle), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		channels.put(chunkHandle, channel);
+		return channel;
+	}
+
+	/**
+	 * Close and forget the channel of the chunk, if it is open.
+	 */
+	public synchronized void evict(String chunkHandle) {
+		close(channels.remove(chunkHandle));
+	}
+
+	/**
+	 * Close every cached channel.
+	 */
+	public synchronized void clear() {
+		for (FileChannel channel : channels.values()) {
+			close(channel);
+		}
+		channels.clear();
+	}
+
+	public synchronized int size() {
+		return channels.size();
+	}
+
+	private static void close(FileChannel channel) {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Error (ChunkChannelCache): Failed to close a chunk channel.");
+		}
+	}
+}
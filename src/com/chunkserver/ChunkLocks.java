@@ -0,0 +1,29 @@
+package com.chunkserver;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks guarding the chunks of a chunk server.
+ * Every chunk handle maps to one of a fixed number of locks, so unrelated
+ * chunks rarely contend and no lock objects are created per chunk.
+ */
+public class ChunkLocks {
+	private final ReadWriteLock[] stripes;
+
+	public ChunkLocks(int numStripes) {
+		stripes = new ReadWriteLock[numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Return the lock guarding the chunk.
+	 */
+	public ReadWriteLock get(String chunkHandle) {
+		int h = chunkHandle.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+}
@@ -1,20 +1,27 @@
 package com.chunkserver;
 
-import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.channels.ServerSocketChannel;
 //import java.util.Arrays;
 
-import com.client.Client;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+
+import com.client.ClientRec;
+import com.client.Frame;
+import com.client.FrameConnection;
+import com.client.RID;
+import com.client.TinyRec;
 import com.interfaces.ChunkServerInterface;
+import com.interfaces.ChunkStore;
 
 /**
  * implementation of interfaces at the chunkserver side
@@ -25,10 +32,21 @@ import com.interfaces.ChunkServerInterface;
 public class ChunkServer implements ChunkServerInterface {
 	final static String filePath = "csci485/";	//or C:\\newfile.txt
 	public final static String ClientConfigFile = "ClientConfig.txt";
+	//Socket file of the chunk server with -Dtinyfs.unixsocket=true, for clients on the same host
+	public final static String UnixSocketFile = "ChunkServer.sock";
 	
 	//Used for the file system
 	public static long counter;
 	
+	//Maximum number of chunk files kept open by the chunk server
+	public static final int MaxOpenChunks = Integer.getInteger("tinyfs.openchunks", 256);
+	
+	//Reads of at least this many bytes go from the chunk store to the socket without a copy, set with -Dtinyfs.transferthreshold
+	public static final int TransferThreshold = Integer.getInteger("tinyfs.transferthreshold", 128 * 1024);
+	
+	//Number of formatted empty chunks of the default chunk size kept ready, 0 disables the pool
+	public static final int ChunkPoolSize = Integer.getInteger("tinyfs.chunkpool", 16);
+	
 	public static int PayloadSZ = Integer.SIZE/Byte.SIZE;  //Number of bytes in an integer
 	public static int CMDlength = Integer.SIZE/Byte.SIZE;  //Number of bytes in an integer  
 	
@@ -36,85 +54,153 @@ public class ChunkServer implements ChunkServerInterface {
 	public static final int CreateChunkCMD = 101;
 	public static final int ReadChunkCMD = 102;
 	public static final int WriteChunkCMD = 103;
+	public static final int DeleteChunkCMD = 104;
+	public static final int AppendRecordCMD = 105;
+	public static final int ScanChunkCMD = 106;
 	
 	//Replies provided by the server
 	public static final int TRUE = 1;
 	public static final int FALSE = 0;
 	
+	//Replies to AppendRecordCMD other than the slot number of the record
+	public static final int ChunkFull = -1;
+	public static final int ChunkMissing = -2;
+	
+	//Storage engine holding the chunks, selected with -Dtinyfs.store=file|packed|mmap|memory
+	private final ChunkStore store;
+	
+	//Formatted empty chunks handed out by createChunk
+	private final EmptyChunkPool pool;
+	
+	//Per chunk locks: reads share a chunk, writes, appends, creates and deletes own it
+	private final ChunkLocks locks = new ChunkLocks(256);
+	
+	//Serves every client connection on its own thread
+	public final ExecutorService threadPool = Executors.newCachedThreadPool();
+	
 	/**
 	 * Initialize the chunk server
 	 */
 	public ChunkServer(){
-		File dir = new File(filePath);
-		File[] fs = dir.listFiles();
-
-		if(fs.length == 0){
-			counter = 0;
-		}else{
-			long[] cntrs = new long[fs.length];
-			for (int j=0; j < cntrs.length; j++)
-				cntrs[j] = Long.valueOf( fs[j].getName() ); 
-			Arrays.sort(cntrs);
-			counter = cntrs[cntrs.length - 1];
+		this(System.getProperty("tinyfs.store", "file"));
+	}
+	
+	/**
+	 * Initialize the chunk server on top of the named chunk store
+	 */
+	public ChunkServer(String storeName){
+		store = openStore(storeName);
+		counter = store.highestHandle();
+		pool = new EmptyChunkPool(store, ChunkPoolSize);
+		pool.prepare(DefaultChunkSize);
+	}
+	
+	/**
+	 * Open the chunk store with the given name, the file-per-chunk store by default
+	 */
+	public static ChunkStore openStore(String storeName) {
+		if ("packed".equals(storeName)) {
+			try {
+				return new SegmentChunkStore(filePath);
+			} catch (IOException ex) {
+				System.out.println("Error (ChunkServer): Failed to open the segment files in " + filePath + ", using one file per chunk.");
+				ex.printStackTrace();
+			}
+		} else if ("mmap".equals(storeName)) {
+			return new MappedChunkStore(filePath, MaxOpenChunks);
+		} else if ("memory".equals(storeName)) {
+			return new MemoryChunkStore();
+		} else if (!"file".equals(storeName)) {
+			System.out.println("Error (ChunkServer): Unknown chunk store " + storeName + ", using one file per chunk.");
 		}
+		return new FileChunkStore(filePath, MaxOpenChunks);
 	}
 	
 	/**
-	 * Each chunk is corresponding to a file.
-	 * Return the chunk handle of the last chunk in the file.
+	 * Return the chunk handle for a newly created chunk.
 	 */
-	public String createChunk() {
+	public synchronized String createChunk() {
 		counter++;
 		return String.valueOf(counter);
 	}
 	
 	// SP : Added for ClientRec
 	/**
-	 * Each chunk is corresponding to a file.
-	 * Return the chunk handle of the last chunk in the file.
+	 * Create the chunk of the default chunk size with an empty record directory.
+	 * Return the chunk handle of the created chunk.
 	 */
 	public String createChunk(String chunkhandle) {
+		return createChunk(chunkhandle, DefaultChunkSize);
+	}
+	
+	/**
+	 * Create the chunk of chunkSize bytes with an empty record directory.
+	 * Return the chunk handle of the created chunk.
+	 */
+	public String createChunk(String chunkhandle, int chunkSize) {
+		if (chunkSize <= 0 || chunkSize > MaxChunkSize) {
+			System.out.println("Error in ChunkServer.createChunk: invalid chunk size " + chunkSize);
+			return null;
+		}
+		Lock lock = locks.get(chunkhandle).writeLock();
+		lock.lock();
 		try 
 		{
-			RandomAccessFile raf = new RandomAccessFile(filePath + chunkhandle, "rw");
-			//create a new chunk
-			byte [] chunk = new byte [ChunkSize];
-			ByteBuffer buffer = ByteBuffer.wrap(chunk);
-			//chunk num records
-			buffer.putInt(0);
-			//chunk offset (first free record space)
-			buffer.putInt(8);
-			while (buffer.remaining() >= 4)
-			{
-				buffer.putInt(-1);
-			}
-			raf.write(chunk);
-			raf.close();
+			create(chunkhandle, chunkSize);
 			return chunkhandle;
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			lock.unlock();
+		}
 		return null;
 	}
 	
+	// create the empty chunk, the caller holds its write lock
+	private void create(String chunkhandle, int chunkSize) throws IOException {
+		//Take a formatted chunk from the pool, format one here if none is ready
+		if (!pool.claim(chunkhandle, chunkSize))
+			store.createChunk(chunkhandle, formatChunk(chunkSize));
+	}
+	
+	/**
+	 * Return the image of an empty chunk of chunkSize bytes:
+	 * no records, free space right after the header and every slot set to -1.
+	 */
+	public static byte[] formatChunk(int chunkSize) {
+		byte [] chunk = new byte [chunkSize];
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		//chunk num records
+		buffer.putInt(0);
+		//chunk offset (first free record space)
+		buffer.putInt(8);
+		while (buffer.remaining() >= 4)
+		{
+			buffer.putInt(-1);
+		}
+		return chunk;
+	}
+	
 	
 	/**
 	 * Write the byte array to the chunk at the offset
 	 * The byte array size should be no greater than 4KB
 	 */
 	public boolean writeChunk(String ChunkHandle, byte[] payload, int offset) {
+		Lock lock = locks.get(ChunkHandle).writeLock();
+		lock.lock();
 		try {
-			//If the file corresponding to ChunkHandle does not exist then create it before writing into it
-			RandomAccessFile raf = new RandomAccessFile(filePath + ChunkHandle, "rw");
-			raf.seek(offset);
-			raf.write(payload, 0, payload.length);
-			raf.close();
-			return true;
+			//If the chunk corresponding to ChunkHandle does not exist then the store creates it before writing into it
+			return store.writeChunk(ChunkHandle, payload, offset);
 		} catch (IOException ex) {
 			ex.printStackTrace();
 			return false;
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -122,40 +208,199 @@ public class ChunkServer implements ChunkServerInterface {
 	 * read the chunk at the specific offset
 	 */
 	public byte[] readChunk(String ChunkHandle, int offset, int NumberOfBytes) {
+		Lock lock = locks.get(ChunkHandle).readLock();
+		lock.lock();
 		try {
-			//If the file for the chunk does not exist the return null
-			boolean exists = (new File(filePath + ChunkHandle)).exists();
-			if (exists == false) return null;
-			
-			//File for the chunk exists then go ahead and read it
-			byte[] data = new byte[NumberOfBytes];
-			RandomAccessFile raf = new RandomAccessFile(filePath + ChunkHandle, "rw");
-			raf.seek(offset);
-			raf.read(data, 0, NumberOfBytes);
-			raf.close();
-			return data;
+			//If the chunk does not exist the store returns null
+			return store.readChunk(ChunkHandle, offset, NumberOfBytes);
 		} catch (IOException ex){
 			ex.printStackTrace();
 			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Send NumberOfBytes of the chunk starting at offset on the connection as the data block of
+	 * the reply, straight from the chunk store to the socket. The chunk stays read locked until
+	 * its bytes are sent. Return false and send nothing if the chunk does not exist.
+	 */
+	public boolean transferChunk(String ChunkHandle, int offset, int NumberOfBytes, FrameConnection conn, Frame reply) throws IOException {
+		Lock lock = locks.get(ChunkHandle).readLock();
+		lock.lock();
+		try {
+			reply.putInt(NumberOfBytes);
+			return conn.sendTransfer(reply, NumberOfBytes, (head, channel) -> store.transferChunk(ChunkHandle, offset, NumberOfBytes, head, channel));
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Append the record to the chunk of chunkSize bytes with the slotted page layout of ClientRec.
+	 * The whole append happens under the lock of the chunk so concurrent appends get distinct slots.
+	 * Return the slot number of the record, ChunkFull if the record does not fit in the chunk
+	 * or ChunkMissing if the chunk is not chunkSize bytes long: the slot directory is placed by
+	 * the length of the stored chunk.
+	 * A chunk that does not exist yet is created by its first append. Clients append to the chunks
+	 * the master added to the file, so whichever client appends first creates the chunk and no
+	 * client finds a chunk the master knows missing here.
+	 */
+	public int appendRecord(String ChunkHandle, byte[] payload, int chunkSize) {
+		if (chunkSize < ClientRec.MIN_CHUNK_SIZE || chunkSize > MaxChunkSize) return ChunkMissing;
+		Lock lock = locks.get(ChunkHandle).writeLock();
+		lock.lock();
+		try {
+			int length = store.chunkLength(ChunkHandle);
+			if (length == -1) {
+				create(ChunkHandle, chunkSize);
+				length = chunkSize;
+			}
+			if (length != chunkSize) return ChunkMissing;
+			//get number of records and offset of next available record space, bytes #0-8 of the chunk
+			byte[] header = store.readChunk(ChunkHandle, 0, ClientRec.CHUNK_HEADER_SIZE);
+			if (header == null) return ChunkMissing;
+			ByteBuffer buffer = ByteBuffer.wrap(header);
+			int numRecords = buffer.getInt(0);
+			int offset = buffer.getInt(4);
+			
+			//see if the chunk has enough space for the record
+			if (offset + ClientRec.RECORD_HEADER_SIZE + payload.length + ClientRec.RECORD_SLOT_SIZE > chunkSize - numRecords * ClientRec.RECORD_SLOT_SIZE)
+				return ChunkFull;
+			
+			//record size followed by the record data, then its slot, then the chunk header
+			byte[] record = new byte[ClientRec.RECORD_HEADER_SIZE + payload.length];
+			ByteBuffer.wrap(record).putInt(payload.length).put(payload);
+			byte[] slot = ByteBuffer.allocate(ClientRec.RECORD_SLOT_SIZE).putInt(offset + ClientRec.RECORD_HEADER_SIZE).array();
+			buffer.putInt(0, numRecords + 1);
+			buffer.putInt(4, offset + record.length);
+			
+			if (!store.writeChunk(ChunkHandle, record, offset)
+					|| !store.writeChunk(ChunkHandle, slot, chunkSize - numRecords * ClientRec.RECORD_SLOT_SIZE - ClientRec.RECORD_SLOT_SIZE)
+					|| !store.writeChunk(ChunkHandle, header, 0))
+				return ChunkMissing;
+			return numRecords + 1;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return ChunkMissing;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Return the live records of the chunk of chunkSize bytes, parsing its slot directory on the server.
+	 * Going forward the scan starts at startSlot (1 for the first record), going backward it starts
+	 * at startSlot and walks down (0 for the last record). Deleted slots are skipped and at most
+	 * maxRecords records are returned, 0 for no limit. Return null if the chunk does not exist
+	 * or is not chunkSize bytes long.
+	 */
+	public List<TinyRec> scanChunk(String ChunkHandle, int chunkSize, int startSlot, boolean forward, int maxRecords) {
+		Lock lock = locks.get(ChunkHandle).readLock();
+		lock.lock();
+		try {
+			if (store.chunkLength(ChunkHandle) != chunkSize) return null;
+			byte[] header = store.readChunk(ChunkHandle, 0, ClientRec.CHUNK_HEADER_SIZE);
+			if (header == null) return null;
+			int numRecords = ByteBuffer.wrap(header).getInt(0);
+			
+			List<TinyRec> records = new ArrayList<TinyRec>();
+			if (numRecords <= 0) return records;
+			
+			//the slot directory grows down from the end of the chunk, slot 1 is the last four bytes
+			int dirSize = numRecords * ClientRec.RECORD_SLOT_SIZE;
+			ByteBuffer slots = ByteBuffer.wrap(store.readChunk(ChunkHandle, chunkSize - dirSize, dirSize));
+			
+			int slot = forward ? Math.max(startSlot, 1) : (startSlot <= 0 ? numRecords : Math.min(startSlot, numRecords));
+			int step = forward ? 1 : -1;
+			for (; slot >= 1 && slot <= numRecords; slot += step) {
+				int recordOffset = slots.getInt(dirSize - slot * ClientRec.RECORD_SLOT_SIZE);
+				if (recordOffset == -1)
+					continue;
+				
+				int recordSize = ByteBuffer.wrap(store.readChunk(ChunkHandle, recordOffset - ClientRec.RECORD_HEADER_SIZE, ClientRec.RECORD_HEADER_SIZE)).getInt();
+				TinyRec rec = new TinyRec();
+				rec.setRID(new RID(ChunkHandle, slot));
+				rec.setPayload(store.readChunk(ChunkHandle, recordOffset, recordSize));
+				records.add(rec);
+				if (records.size() == maxRecords)
+					break;
+			}
+			return records;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Delete the chunk and release its storage
+	 */
+	public boolean deleteChunk(String ChunkHandle) {
+		Lock lock = locks.get(ChunkHandle).writeLock();
+		lock.lock();
+		try {
+			return store.deleteChunk(ChunkHandle);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * The pool of formatted empty chunks, with its hit and miss counts
+	 */
+	public EmptyChunkPool getChunkPool() {
+		return pool;
+	}
+	
+	/**
+	 * Flush and release the chunk store
+	 */
+	public void close() {
+		pool.shutdown();
+		try {
+			store.close();
+		} catch (IOException ex) {
+			System.out.println("Error (ChunkServer): Failed to close the chunk store.");
+			ex.printStackTrace();
 		}
 	}
 	
 	public static void ReadAndProcessRequests()
 	{
-		ChunkServer cs = new ChunkServer();
+		final ChunkServer cs = new ChunkServer();
+		//Flush the chunk store when the server is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> cs.close()));
 		
 		//Used for communication with the Client via the network
 		int ServerPort = 0; //Set to 0 to cause ServerSocket to allocate the port 
 		ServerSocket commChanel = null;
-		ObjectOutputStream WriteOutput = null;
-		ObjectInputStream ReadInput = null;
+		ServerSocketChannel unixChanel = null;
 		
 		try {
-			//Allocate a port and write it to the config file for the Client to consume
-			commChanel = new ServerSocket(ServerPort);
+			//Allocate a port and write it to the config file for the Client to consume,
+			//accepted sockets come with a channel that chunk reads are transferred to
+			commChanel = ServerSocketChannel.open().socket();
+			commChanel.bind(new InetSocketAddress(ServerPort));
 			ServerPort=commChanel.getLocalPort();
 			PrintWriter outWrite=new PrintWriter(new FileOutputStream(ClientConfigFile));
 			outWrite.println("localhost:"+ServerPort);
+			//Clients on this host connect to the Unix domain socket instead
+			if (FrameConnection.UnixSocket) {
+				try {
+					unixChanel = FrameConnection.listenUnix(UnixSocketFile);
+					outWrite.println(FrameConnection.unixConfigLine(unixChanel));
+				} catch (IOException | UnsupportedOperationException ex) {
+					System.out.println("Error (ChunkServer): Failed to listen on " + UnixSocketFile + ", serving TCP only.");
+					ex.printStackTrace();
+				}
+			}
 			outWrite.close();
 		} catch (IOException ex) {
 			System.out.println("Error, failed to open a new socket to listen on.");
@@ -163,96 +408,42 @@ public class ChunkServer implements ChunkServerInterface {
 		}
 		
 		System.out.printf("Chunk Server running on port %d...\n", ServerPort);
+		if (unixChanel != null) {
+			final ServerSocketChannel unix = unixChanel;
+			new Thread(() -> acceptUnix(unix, cs), "chunkserver-unix-accept").start();
+		}
 		
-		boolean done = false;
-		Socket ClientConnection = null;  //A client's connection to the server
-
-		while (!done){
-			try {
-				ClientConnection = commChanel.accept();
-				ReadInput = new ObjectInputStream(ClientConnection.getInputStream());
-				WriteOutput = new ObjectOutputStream(ClientConnection.getOutputStream());
-				
-				//Use the existing input and output stream as long as the client is connected
-				while (!ClientConnection.isClosed()) {
-					int payloadsize =  Client.ReadIntFromInputStream("ChunkServer", ReadInput);
-					if (payloadsize == -1) 
-						break;
-					int CMD = Client.ReadIntFromInputStream("ChunkServer", ReadInput);
-					switch (CMD){
-					case CreateChunkCMD:
-//						String chunkhandle = cs.createChunk();
-//						byte[] CHinbytes = chunkhandle.getBytes();
-						int chunkhandleSize =  Client.ReadIntFromInputStream("ChunkServer", ReadInput);
-						byte [] CHinbytes =  Client.RecvPayload("ChunkServer", ReadInput, chunkhandleSize);
-						byte [] chunkhandle = cs.createChunk(new String (CHinbytes)).getBytes();
-						WriteOutput.writeInt(chunkhandle.length);
-						WriteOutput.write(chunkhandle);
-						WriteOutput.flush();
-						break;
-
-					case ReadChunkCMD:
-						int offset =  Client.ReadIntFromInputStream("ChunkServer", ReadInput);
-						int payloadlength =  Client.ReadIntFromInputStream("ChunkServer", ReadInput);
-						int chunkhandlesize = payloadsize - ChunkServer.PayloadSZ - ChunkServer.CMDlength - (2 * 4);
-						if (chunkhandlesize < 0)
-							System.out.println("Error in ChunkServer.java, ReadChunkCMD has wrong size.");
-						byte[] CHinBytes = Client.RecvPayload("ChunkServer", ReadInput, chunkhandlesize);
-						String ChunkHandle = (new String(CHinBytes)).toString();
-						
-						byte[] res = cs.readChunk(ChunkHandle, offset, payloadlength);
-						
-						if (res == null)
-							WriteOutput.writeInt(ChunkServer.PayloadSZ);
-						else {
-							WriteOutput.writeInt(ChunkServer.PayloadSZ + res.length);
-							WriteOutput.write(res);
-						}
-						WriteOutput.flush();
-						break;
-
-					case WriteChunkCMD:
-						offset =  Client.ReadIntFromInputStream("ChunkServer", ReadInput);
-						payloadlength =  Client.ReadIntFromInputStream("ChunkServer", ReadInput);
-						byte[] payload = Client.RecvPayload("ChunkServer", ReadInput, payloadlength);
-						chunkhandlesize = payloadsize - ChunkServer.PayloadSZ - ChunkServer.CMDlength - (2 * 4) - payloadlength;
-						if (chunkhandlesize < 0)
-							System.out.println("Error in ChunkServer.java, WriteChunkCMD has wrong size.");
-						CHinBytes = Client.RecvPayload("ChunkServer", ReadInput, chunkhandlesize);
-						ChunkHandle = (new String(CHinBytes)).toString();
-
-						//Call the writeChunk command
-						if (cs.writeChunk(ChunkHandle, payload, offset))
-							WriteOutput.writeInt(ChunkServer.TRUE);
-						else WriteOutput.writeInt(ChunkServer.FALSE);
-						
-						WriteOutput.flush();
-						break;
+		//Serve every client connection on its own thread
+		try {
+			while (true) {
+				cs.threadPool.execute(new ChunkServerThread(new FrameConnection(commChanel.accept()), cs));
+			}
+		} catch (IOException ex) {
+			System.out.println("Error (ChunkServer): Failed to accept a client connection.");
+			ex.printStackTrace();
+		} finally {
+			cs.threadPool.shutdown();
+		}
+	}
 
-					default:
-						System.out.println("Error in ChunkServer, specified CMD "+CMD+" is not recognized.");
-						break;
-					}
-				}
-			} catch (IOException ex){
-				System.out.println("Client Disconnected");
-			} finally {
-				try {
-					if (ClientConnection != null)
-						ClientConnection.close();
-					if (ReadInput != null)
-						ReadInput.close();
-					if (WriteOutput != null) WriteOutput.close();
-				} catch (IOException fex){
-					System.out.println("Error (ChunkServer):  Failed to close either a valid connection or its input/output stream.");
-					fex.printStackTrace();
-				}
+	//Serve every client connection of the Unix domain socket on its own thread
+	private static void acceptUnix(ServerSocketChannel unixChanel, ChunkServer cs)
+	{
+		try {
+			while (true) {
+				cs.threadPool.execute(new ChunkServerThread(new FrameConnection(unixChanel.accept()), cs));
 			}
+		} catch (IOException ex) {
+			System.out.println("Error (ChunkServer): Failed to accept a Unix domain socket connection.");
+			ex.printStackTrace();
 		}
 	}
 
 	public static void main(String args[])
 	{
+		//The chunk store may also be named on the command line, e.g. ChunkServer memory
+		if (args.length > 0)
+			System.setProperty("tinyfs.store", args[0]);
 		ReadAndProcessRequests();
 	}
 }
@@ -1,25 +1,40 @@
 package com.chunkserver;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
+import com.client.ClientFS;
 import com.client.ClientRec;
 import com.client.ClientFS.FSReturnVals;
 import com.client.FileHandle;
+import com.client.Frame;
+import com.client.FrameConnection;
 
+import com.interfaces.ChunkServerInterface;
 import com.interfaces.ChunkServerMasterInterface;
 
 /**
@@ -34,36 +49,101 @@ public class ChunkServerMaster implements ChunkServerMasterInterface {
 	private int port;
 
 	public final static String MasterConfigFile = "MasterConfig.txt";
+	// Socket file of the master with -Dtinyfs.unixsocket=true, for clients on the same host
+	public final static String UnixSocketFile = "Master.sock";
+
 	
 	// SP: This enables us to create new chunkhandles
-	private int ChunkIndex = 1;
+	private final AtomicInteger ChunkIndex = new AtomicInteger(1);
+
+	// The namespace is a tree of inodes: a directory maps the names of its entries to their
+	// nodes, a file holds its chunk handles. Paths resolve one component at a time, renaming a
+	// directory moves its node to another parent whatever lies below it.
+	// Requests run concurrently, every operation locks the paths it touches (see NamespaceLocks);
+	// a file's chunk list is only read or changed under the lock of its path
+	private final Node root = new Node();
+
+	private final NamespaceLocks locks = new NamespaceLocks(1024);
+
+	// Directory of the operation log, set with -Dtinyfs.master.dir
+	public final static String LogDirectory = System.getProperty("tinyfs.master.dir", "master/");
+
+	// Mutations are logged before they are acknowledged, null while recovering or without a log
+	private OperationLog log;
+	private File logDirectory;
+
+	// Checkpoint once the current log segment holds this many bytes, set with -Dtinyfs.master.checkpointbytes
+	public final static long CheckpointBytes = Long.getLong("tinyfs.master.checkpointbytes", 64L * 1024 * 1024);
+
+	// Checkpoint n holds the namespace as of the end of log segment n
+	public final static String CheckpointPrefix = "checkpoint.";
+
+	private Thread checkpointer;
+	// one checkpoint at a time
+	private final Object checkpointLock = new Object();
+
+	// Inode of the namespace tree
+	private static class Node {
+		// entries of a directory by name, sorted for listing; null for a file
+		final ConcurrentSkipListMap<String, Node> children;
+		// chunk handles of a file in order
+		final List<String> chunks;
+		// chunk size of a file, chosen when the file is created
+		final int chunkSize;
+		// length in bytes of a file written as a byte stream, see TinyFileChannel
+		long length;
+
+		// a directory
+		Node() {
+			this.children = new ConcurrentSkipListMap<String, Node>();
+			this.chunks = null;
+			this.chunkSize = 0;
+		}
 
-	// CL: This should be a map of paths to potential chunk handle lists
-	// CL: Thinking if List value is empty -> directory
-	// CL:          else -> file
-	private Map<String, List<String>> namespace;
+		// a file
+		Node(int chunkSize) {
+			this.children = null;
+			this.chunks = new ArrayList<String>();
+			this.chunkSize = chunkSize;
+		}
+	}
 
-	// Thread executor pool
-	public final ExecutorService threadPool = Executors.newFixedThreadPool(10);
+	// nio serves every connection from one selector thread (see MasterEventLoop),
+	// threads serves every connection on a thread of its own; set with -Dtinyfs.master.io
+	public final static String IO = System.getProperty("tinyfs.master.io", "nio");
+
+	// Thread executor pool of the threads mode
+	public final ExecutorService threadPool = Executors.newCachedThreadPool();
 
 	public ChunkServerMaster() {
-		this.namespace = new TreeMap<String, List<String>>() {{
-			put("/", null);
-		}};
 	}
 
 	
 	public void serve() {
 		// port allocation and config writing
 		int servePort = 0;
+		ServerSocketChannel serveChannel = null;
 		ServerSocket serveSocket = null;
+		ServerSocketChannel unixChannel = null;
 		try {
-			serveSocket = new ServerSocket(servePort);
+			serveChannel = ServerSocketChannel.open();
+			serveSocket = serveChannel.socket();
+			serveSocket.bind(new InetSocketAddress(servePort), 1024);
 			servePort = serveSocket.getLocalPort();
 
 			// if successful, write to config
 			PrintWriter configOut = new PrintWriter(new FileOutputStream(MasterConfigFile));
 			configOut.println("localhost:" + servePort);
+			// clients on this host connect to the Unix domain socket instead
+			if (FrameConnection.UnixSocket) {
+				try {
+					unixChannel = FrameConnection.listenUnix(UnixSocketFile);
+					configOut.println(FrameConnection.unixConfigLine(unixChannel));
+				} catch (IOException | UnsupportedOperationException e) {
+					System.out.println("ERR: Failed to listen on " + UnixSocketFile + ", serving TCP only!");
+					e.printStackTrace();
+				}
+			}
 			configOut.close();
 		} catch (IOException e) {
 			System.out.println("ERR: Failed to open new server socket!");
@@ -73,14 +153,26 @@ public class ChunkServerMaster implements ChunkServerMasterInterface {
 		System.out.printf("Chunk Server Master running on port %d...\n", servePort);
 
 		// accept connections from clients
-		Socket conn = null;
-		ObjectInputStream ois = null;
-		ObjectOutputStream oos = null;
+		if (IO.equals("nio")) {
+			try {
+				if (unixChannel != null)
+					new MasterEventLoop(this, serveChannel, unixChannel).run();
+				else new MasterEventLoop(this, serveChannel).run();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		if (unixChannel != null) {
+			final ServerSocketChannel unix = unixChannel;
+			new Thread(() -> acceptUnix(unix), "master-unix-accept").start();
+		}
 
 		// main serve loop
 		try {
 			while (true) {
-				threadPool.execute(new ChunkServerMasterThread(serveSocket.accept(), this));
+				threadPool.execute(new ChunkServerMasterThread(new FrameConnection(serveSocket.accept()), this));
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -89,6 +181,17 @@ public class ChunkServerMaster implements ChunkServerMasterInterface {
 		}
 	}
 
+	// threads mode: serve the Unix domain socket connections like the TCP ones
+	private void acceptUnix(ServerSocketChannel unixChannel) {
+		try {
+			while (true) {
+				threadPool.execute(new ChunkServerMasterThread(new FrameConnection(unixChannel.accept()), this));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 ***********
 	 * FS API *
@@ -96,146 +199,215 @@ public class ChunkServerMaster implements ChunkServerMasterInterface {
 	 */
 
 	public FSReturnVals createDir(String src, String dirname) {
-		// err if src dir not existent
-		if (!dirExists(src)) {
-			return FSReturnVals.SrcDirNotExistent;
-		}
+		NamespaceLocks.Held held = locks.write(src + dirname + "/");
+		try {
+			// err if src dir not existent
+			Node parent = dir(src);
+			if (parent == null) {
+				return FSReturnVals.SrcDirNotExistent;
+			}
 
-		// err if dest dir (full path) exists
-		if (dirExists(src + dirname + "/")) {
-			return FSReturnVals.DestDirExists;
-		}
+			// err if dest dir (full path) exists, or a file of that name
+			if (parent.children.containsKey(dirname)) {
+				return FSReturnVals.DestDirExists;
+			}
 
-		// init join(src,dirname) to namespace
-		addNamespaceEntry(src + dirname + "/", null);
+			// init join(src,dirname) to namespace
+			parent.children.put(dirname, new Node());
+			logged(new Frame(ClientFS.CREATE_DIR_COMMAND).putString(src).putString(dirname));
 
-		// do something that communicates over server to client Success
-		return FSReturnVals.Success;
+			// do something that communicates over server to client Success
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
+		}
 	}
 
 	public FSReturnVals deleteDir(String src, String dirname) {
-		// see if src dir exists
-		if (!dirExists(src)) {
-			return FSReturnVals.SrcDirNotExistent;
-		}
+		NamespaceLocks.Held held = locks.write(src + dirname + "/");
+		try {
+			// see if src dir exists
+			Node parent = dir(src);
+			if (parent == null) {
+				return FSReturnVals.SrcDirNotExistent;
+			}
 
-		// see if dest dir exists
-		if (!dirExists(src + dirname + "/")) {
-			return FSReturnVals.DestDirNotExistent;
-		}
+			// see if dest dir exists
+			Node target = dir(src + dirname + "/");
+			if (target == null) {
+				return FSReturnVals.DestDirNotExistent;
+			}
 
-		// see if dest dir has children
-		// only time target dir not empty is if size of list returned from util fn
-		// is greater than 1
-		Set<String> descendants = findImmediateNamespaceDescendants(src + dirname + "/");
-		if (descendants.size() > 0) {
-			return FSReturnVals.DirNotEmpty;
-		}
+			// see if dest dir has children
+			if (!target.children.isEmpty()) {
+				return FSReturnVals.DirNotEmpty;
+			}
 
-		// delete dest dir
-		namespace.remove(src + dirname + "/");
-		
-		// success
-		return FSReturnVals.Success;
+			// delete dest dir
+			parent.children.remove(dirname);
+			logged(new Frame(ClientFS.DELETE_DIR_COMMAND).putString(src).putString(dirname));
+
+			// success
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
+		}
 	}
 
 	public FSReturnVals renameDir(String src, String newName) {
-		// see if src dir exists
-		if (!dirExists(src + "/")) {
-			return FSReturnVals.SrcDirNotExistent;
-		}
+		NamespaceLocks.Held held = locks.write(src + "/", newName + "/");
+		try {
+			// see if src dir exists
+			Node target = dir(src + "/");
+			Node oldParent = dir(src.substring(0, src.lastIndexOf('/') + 1));
+			if (target == null || oldParent == null) {
+				return FSReturnVals.SrcDirNotExistent;
+			}
 
-		// see if new name exists already
-		if (dirExists(newName + "/")) {
-			return FSReturnVals.DestDirExists;
-		}
+			// see if new name exists already
+			if (resolve(newName) != null) {
+				return FSReturnVals.DestDirExists;
+			}
 
-		// rename
-		namespace.put(newName + "/", namespace.get(src + "/"));
-		namespace.remove(src + "/");
-		
-		// success
-		return FSReturnVals.Success;
+			// the new parent has to exist and cannot lie inside the renamed dir
+			Node newParent = dir(newName.substring(0, newName.lastIndexOf('/') + 1));
+			if (newParent == null) {
+				return FSReturnVals.DestDirNotExistent;
+			}
+			if ((newName + "/").startsWith(src + "/")) {
+				return FSReturnVals.Fail;
+			}
+
+			// rename: move the node, its subtree comes along
+			newParent.children.put(newName.substring(newName.lastIndexOf('/') + 1), target);
+			oldParent.children.remove(src.substring(src.lastIndexOf('/') + 1));
+			logged(new Frame(ClientFS.RENAME_DIR_COMMAND).putString(src).putString(newName));
+
+			// success
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
+		}
 	}
 
 	public FSReturnVals listDir(String target, List<String> result) {
-		// see if src dir exists
-		if (!dirExists(target)) {
-			return FSReturnVals.SrcDirNotExistent;
-		}
+		NamespaceLocks.Held held = locks.read(target);
+		try {
+			// see if src dir exists
+			Node node = dir(target);
+			if (node == null) {
+				return FSReturnVals.SrcDirNotExistent;
+			}
+
+			// every entry below the directory, directories without their trailing slash
+			listNamespaceDescendants(target, node, result);
 
-		// obtain immediate namespace descendant set
-		// convert to array and populate result
-		Set<String> resultSet = findAllNamespaceDescendants(target);
-		for (String s : resultSet) {
-			result.add(s);
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
 		}
-		
-		return FSReturnVals.Success;
 	}
 
 	public FSReturnVals createFile(String parent, String filename) {
-		// err if parent dir not existent
-		if (!dirExists(parent)) {
-			return FSReturnVals.SrcDirNotExistent;
+		return createFile(parent, filename, 0);
+	}
+
+	public FSReturnVals createFile(String parent, String filename, int chunkSize) {
+		// a chunk size of 0 picks the cluster default
+		if (chunkSize == 0) {
+			chunkSize = ChunkServerInterface.DefaultChunkSize;
 		}
 
-		// err if file exists
-		if (fileExists(parent + filename)) {
-			return FSReturnVals.FileExists;
+		// err if a chunk cannot hold a single record
+		if (chunkSize < ClientRec.MIN_CHUNK_SIZE || chunkSize > ChunkServerInterface.MaxChunkSize) {
+			return FSReturnVals.Fail;
 		}
 
-		// create file in namespace
-		addNamespaceEntry(parent + filename, new ArrayList<String>());
+		NamespaceLocks.Held held = locks.write(parent + filename);
+		try {
+			// err if parent dir not existent
+			Node dir = dir(parent);
+			if (dir == null) {
+				return FSReturnVals.SrcDirNotExistent;
+			}
+
+			// err if file exists, or a directory of that name
+			if (dir.children.containsKey(filename)) {
+				return FSReturnVals.FileExists;
+			}
 
-		// TODO CL: store info about chunks associated with file?
+			// create file in namespace
+			dir.children.put(filename, new Node(chunkSize));
+			logged(new Frame(ClientFS.CREATE_FILE_COMMAND).putString(parent).putString(filename).putInt(chunkSize));
 
-		// return success
-		return FSReturnVals.Success;
+			// return success
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
+		}
 	}
 
 	public FSReturnVals deleteFile(String parent, String filename) {
-		// err if parent dir does not exist
-		if (!dirExists(parent)) {
-			return FSReturnVals.SrcDirNotExistent;
-		}
+		NamespaceLocks.Held held = locks.write(parent + filename);
+		try {
+			// err if parent dir does not exist
+			Node dir = dir(parent);
+			if (dir == null) {
+				return FSReturnVals.SrcDirNotExistent;
+			}
 
-		// err if file does not exist
-		if (!fileExists(parent + filename)) {
-			return FSReturnVals.FileDoesNotExist;
-		}
+			// err if file does not exist
+			if (file(parent + filename) == null) {
+				return FSReturnVals.FileDoesNotExist;
+			}
 
-		// remove file from namespace
-		removeNamespaceEntry(parent + filename);
+			// remove file from namespace
+			dir.children.remove(filename);
+			logged(new Frame(ClientFS.DELETE_FILE_COMMAND).putString(parent).putString(filename));
 
-		// TODO CL: invalidate any chunks associated with this filename
-		// return success
-		return FSReturnVals.Success;
+			// TODO CL: invalidate any chunks associated with this filename
+			// return success
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
+		}
 	}
 
 	public FSReturnVals openFile(String filename, FileHandle fh) {
-		// check if file exists
-		if (!fileExists(filename)) {
-			return FSReturnVals.FileDoesNotExist;
-		}
+		NamespaceLocks.Held held = locks.read(filename);
+		try {
+			// check if file exists
+			Node file = file(filename);
+			if (file == null) {
+				return FSReturnVals.FileDoesNotExist;
+			}
 
-		// TODO CL: probably more lock stuff here
+			// TODO CL: probably more lock stuff here
 
-		// grant lease (CL: right now this is just allowing the filehandle to use the name)
-		fh.setFilePath(filename);
+			// grant lease (CL: right now this is just allowing the filehandle to use the name)
+			fh.setFilePath(filename);
+			fh.setChunkSize(file.chunkSize);
 
-		return FSReturnVals.Success;
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
+		}
 	}
 
 	public FSReturnVals closeFile(FileHandle fh) {
-		// check if file exists
-		if (!fileExists(fh.filepath)) {
-			return FSReturnVals.FileDoesNotExist;
-		}
+		NamespaceLocks.Held held = locks.read(fh.filepath);
+		try {
+			// check if file exists
+			if (file(fh.filepath) == null) {
+				return FSReturnVals.FileDoesNotExist;
+			}
 
-		// release locks
+			// release locks
 
-		return FSReturnVals.Success;
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
+		}
 	}
 
 	/**
@@ -243,68 +415,75 @@ public class ChunkServerMaster implements ChunkServerMasterInterface {
 	 * FS Util Functions *
 	 ********************
 	 */
-	private boolean dirExists(String path) {
-		return
-			this.namespace.containsKey(path)		// entry exists in namespace
-			&& this.namespace.get(path) == null;		// entry is a directory
-	}
-
-	private boolean fileExists(String path) {
-		return
-			this.namespace.containsKey(path)		// entry exists in namespace
-			&& this.namespace.get(path) != null;		// entry is a file
-	}
 
-	private void addNamespaceEntry(String path, List<String> chunkHandles) {
-		if (chunkHandles == null) {
-		// the entry is a directory
-			namespace.put(path, null);
-		} else {
-		// the entry is a file
-			namespace.put(path, new ArrayList<String>());
+	// walk the tree a path component at a time, null if a component is missing,
+	// empty ("//") or below a file
+	private Node resolve(String path) {
+		if (path == null || !path.startsWith("/")) {
+			return null;
 		}
+		Node node = root;
+		int from = 1;
+		while (from < path.length()) {
+			if (node.children == null) {
+				return null;
+			}
+			int slash = path.indexOf('/', from);
+			int end = slash == -1 ? path.length() : slash;
+			if (end == from) {
+				return null;
+			}
+			node = node.children.get(path.substring(from, end));
+			if (node == null) {
+				return null;
+			}
+			from = end + 1;
+		}
+		return node;
 	}
 
-	private void removeNamespaceEntry(String path) {
-		namespace.remove(path);
+	// the directory of a path ending in '/' ("/a/b/"), null if there is none
+	private Node dir(String path) {
+		Node node = path.endsWith("/") ? resolve(path) : null;
+		return node != null && node.children != null ? node : null;
 	}
 
-	private Set<String> findImmediateNamespaceDescendants(String prefix) {
-		int depth = (int) prefix.chars().filter(ch -> ch == '/').count();
-		return namespace.keySet()
-			.stream()
-			.filter(s -> s.startsWith(prefix))
-			.filter(s -> s.chars().filter(ch -> ch == '/').count() == depth + 1)
-			.map(s -> s.substring(0, s.length() - 1))
-			.collect(Collectors.toSet());
+	// the file of a path not ending in '/' ("/a/b/f"), null if there is none
+	private Node file(String path) {
+		Node node = path.endsWith("/") ? null : resolve(path);
+		return node != null && node.children == null ? node : null;
 	}
 
-	private Set<String> findAllNamespaceDescendants(String prefix) {
-		int depth = (int) prefix.chars().filter(ch -> ch == '/').count();
-		return namespace.keySet()
-			.stream()
-			.filter(s -> s.startsWith(prefix))
-			.filter(s -> s.chars().filter(ch -> ch == '/').count() >= depth + 1)
-			.map(s -> s.substring(0, s.length() - 1))
-			.collect(Collectors.toSet());
+	// depth first, a directory before its entries, each directory's entries in name order
+	private void listNamespaceDescendants(String prefix, Node dir, List<String> result) {
+		for (Map.Entry<String, Node> e : dir.children.entrySet()) {
+			String path = prefix + e.getKey();
+			result.add(path);
+			if (e.getValue().children != null) {
+				listNamespaceDescendants(path + "/", e.getValue(), result);
+			}
+		}
 	}
 	
 	// SP: Added for appendRecord functionality
 	public String getLastChunk (String filepath) {
 		String s = "None";
-		if (this.namespace.containsKey(filepath)) {
-			List<String> chunks = this.namespace.get(filepath);
-			if (chunks.size() != 0)
+		NamespaceLocks.Held held = locks.read(filepath);
+		try {
+			Node file = file(filepath);
+			if (file != null && file.chunks.size() != 0)
 			{
-				return chunks.get(chunks.size()-1);
+				return file.chunks.get(file.chunks.size()-1);
 			}
+		} finally {
+			held.close();
 		}
 		return s;
 	}
 
 	public void reset() {
 		// reset namespace
-		namespace.clear();
+		root.children.clear();
 
 		// reset chunk to file/address mappings
 	}
@@ -312,10 +491,17 @@ public class ChunkServerMaster implements ChunkServerMasterInterface {
 	// SP: Added for appendRecord functionality
 	public String addChunk(String filepath) {
 		String newChunkhandle = null;
-		if (this.namespace.containsKey(filepath)) {
-			newChunkhandle = String.valueOf(ChunkIndex);
-			this.namespace.get(filepath).add(newChunkhandle);
-			ChunkIndex +=1;
+		NamespaceLocks.Held held = locks.write(filepath);
+		try {
+			Node file = file(filepath);
+			if (file != null) {
+				newChunkhandle = String.valueOf(ChunkIndex.getAndIncrement());
+				file.chunks.add(newChunkhandle);
+				// the handle is logged, records of different files may be in another order than their handles
+				logged(new Frame(ClientRec.ADD_CHUNK_COMMAND).putString(filepath).putString(newChunkhandle));
+			}
+		} finally {
+			held.close();
 		}
 		return newChunkhandle;
 	}
@@ -327,42 +513,407 @@ public class ChunkServerMaster implements ChunkServerMasterInterface {
 		{
 			return null;
 		}
-		String s = null;
-		if (this.namespace.containsKey(filepath)) {
-			List<String> chunks = this.namespace.get(filepath);
-			if ((chunks.size() != 0) && chunkIndex < chunks.size())
-			{
-				return chunks.get(chunkIndex);
-			}
-			else
+		NamespaceLocks.Held held = locks.read(filepath);
+		try {
+			Node file = file(filepath);
+			if (file != null && chunkIndex >= 0 && chunkIndex < file.chunks.size())
 			{
-				return null;
+				return file.chunks.get(chunkIndex);
 			}
+			return null;
+		} finally {
+			held.close();
 		}
-		return s;
 	}
 
 	// SP: Added for getNextRecord functionality
 		public int getChunkIndex (String filepath, String chunkHandle) {
-			if (this.namespace.containsKey(filepath))
-			{
-				List<String> chunks = this.namespace.get(filepath);
-				return chunks.indexOf(chunkHandle);
-				
+			NamespaceLocks.Held held = locks.read(filepath);
+			try {
+				Node file = file(filepath);
+				if (file != null)
+				{
+					return file.chunks.indexOf(chunkHandle);
+				}
+			} finally {
+				held.close();
 			}
 			return -1;
 		}	
 	
 	
+	// whole chunk list so record cursors resolve chunks locally, null if the file does not exist
+	public List<String> getChunks (String filepath) {
+		NamespaceLocks.Held held = locks.read(filepath);
+		try {
+			Node file = file(filepath);
+			if (file == null) {
+				return null;
+			}
+			return new ArrayList<String>(file.chunks);
+		} finally {
+			held.close();
+		}
+	}
+	
+	// byte length of a file written as a stream, -1 if the file does not exist
+	public long getFileLength (String filepath) {
+		NamespaceLocks.Held held = locks.read(filepath);
+		try {
+			Node file = file(filepath);
+			if (file == null) {
+				return -1;
+			}
+			return file.length;
+		} finally {
+			held.close();
+		}
+	}
+
+	// the writer of a stream publishes the length once its chunks are written
+	public FSReturnVals setFileLength (String filepath, long length) {
+		if (length < 0) {
+			return FSReturnVals.Fail;
+		}
+		NamespaceLocks.Held held = locks.write(filepath);
+		try {
+			Node file = file(filepath);
+			if (file == null) {
+				return FSReturnVals.FileDoesNotExist;
+			}
+			file.length = length;
+			logged(new Frame(ClientFS.SET_FILE_LENGTH_COMMAND).putString(filepath).putLong(length));
+			return FSReturnVals.Success;
+		} finally {
+			held.close();
+		}
+	}
+
 	// SP: Added for getFirstRecord functionality
 	public int getNumChunks (String filepath) {
-		if (this.namespace.containsKey(filepath)) {
-			List<String> chunks = this.namespace.get(filepath);
-			return chunks.size();
+		NamespaceLocks.Held held = locks.read(filepath);
+		try {
+			Node file = file(filepath);
+			if (file != null) {
+				return file.chunks.size();
+			}
+		} finally {
+			held.close();
 		}
 		return -1;
 	}	
 	
+	/**
+	 ****************
+	 * Operation Log *
+	 **************
+	 */
+
+	/**
+	 * Rebuild the namespace from the newest checkpoint and the operation log in the directory
+	 * and log every mutation from now on; checkpoints are taken in the background once a log
+	 * segment holds CheckpointBytes. Without a log the namespace lives in memory only.
+	 */
+	public void openLog(String dir) throws IOException {
+		File directory = new File(dir);
+		directory.mkdirs();
+		long checkpoint = loadCheckpoint(directory);
+		log = OperationLog.open(directory, checkpoint, this::replay);
+		logDirectory = directory;
+
+		checkpointer = new Thread(this::checkpointLoop, "master-checkpointer");
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+	}
+
+	/**
+	 * Stop taking checkpoints and close the operation log once everything appended is on disk.
+	 */
+	public void closeLog() throws IOException {
+		if (log == null) {
+			return;
+		}
+		// not while a checkpoint runs, an interrupt would close the files it reads
+		synchronized (checkpointLock) {
+			checkpointer.interrupt();
+			log.close();
+		}
+	}
+
+	public OperationLog getLog() {
+		return log;
+	}
+
+	// called by every mutation while it holds its namespace locks
+	private void logged(Frame record) {
+		if (log != null) {
+			log.append(record);
+		}
+	}
+
+	/**
+	 * Wait until the mutations of the calling thread's last request are on disk, see whenLogged.
+	 */
+	public void awaitLogged() {
+		if (log != null) {
+			log.await(answerable());
+		}
+	}
+
+	/**
+	 * Run the action once the mutations of the calling thread's last request are on disk.
+	 * A request that mutated nothing may have seen the mutations of others that are not on
+	 * disk yet, its action waits for every record appended so far: no client is told of a
+	 * mutation a crash can still undo.
+	 */
+	public void whenLogged(Runnable action) {
+		if (log == null) {
+			action.run();
+		} else {
+			log.whenDurable(answerable(), action);
+		}
+	}
+
+	// the record the reply to the calling thread's last request waits for
+	private long answerable() {
+		long seq = log.takeAppended();
+		return seq != 0 ? seq : log.lastAppended();
+	}
+
+	// execute a logged mutation again while the log is opened, before mutations are logged
+	private void replay(Frame record) {
+		switch (record.opcode) {
+			case ClientFS.CREATE_DIR_COMMAND:
+				createDir(record.getString(), record.getString());
+				break;
+			case ClientFS.DELETE_DIR_COMMAND:
+				deleteDir(record.getString(), record.getString());
+				break;
+			case ClientFS.RENAME_DIR_COMMAND:
+				renameDir(record.getString(), record.getString());
+				break;
+			case ClientFS.CREATE_FILE_COMMAND:
+				createFile(record.getString(), record.getString(), record.getInt());
+				break;
+			case ClientFS.DELETE_FILE_COMMAND:
+				deleteFile(record.getString(), record.getString());
+				break;
+			case ClientFS.SET_FILE_LENGTH_COMMAND:
+				setFileLength(record.getString(), record.getLong());
+				break;
+			case ClientRec.ADD_CHUNK_COMMAND:
+				Node file = file(record.getString());
+				String handle = record.getString();
+				if (file != null) {
+					file.chunks.add(handle);
+				}
+				// new handles continue after the highest one handed out
+				int index = Integer.parseInt(handle);
+				ChunkIndex.accumulateAndGet(index + 1, Math::max);
+				break;
+			default:
+				System.out.println("Error (ChunkServerMaster), unknown operation log record " + record.opcode);
+				break;
+		}
+	}
+
+	/**
+	 **************
+	 * Checkpoints *
+	 ************
+	 */
+
+	/**
+	 * Write a checkpoint of the namespace as of the end of the current log segment, which is
+	 * sealed. The checkpoint is built in a shadow namespace from the last checkpoint and the
+	 * sealed segments, the live namespace is not touched and mutations go on meanwhile.
+	 * Once the checkpoint reads back whole it replaces those segments and older checkpoints.
+	 * Return its number.
+	 */
+	public long checkpoint() throws IOException {
+		synchronized (checkpointLock) {
+			long sealed = log.roll();
+
+			ChunkServerMaster shadow = new ChunkServerMaster();
+			long from = shadow.loadCheckpoint(logDirectory);
+			OperationLog.replay(logDirectory, from, sealed, shadow::replay);
+			File file = new File(logDirectory, CheckpointPrefix + sealed);
+			shadow.writeCheckpoint(file);
+			if (!new ChunkServerMaster().readCheckpoint(file)) {
+				file.delete();
+				throw new IOException("Checkpoint " + sealed + " does not read back, the log segments it replaces are kept");
+			}
+
+			OperationLog.deleteSegments(logDirectory, sealed);
+			for (long n : checkpoints(logDirectory)) {
+				if (n < sealed) {
+					new File(logDirectory, CheckpointPrefix + n).delete();
+				}
+			}
+			return sealed;
+		}
+	}
+
+	// take a checkpoint whenever the current log segment has grown past CheckpointBytes
+	private void checkpointLoop() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(1000);
+				synchronized (checkpointLock) {
+					// closeLog interrupts while it holds the lock
+					if (Thread.interrupted()) {
+						return;
+					}
+					if (log.getSegmentBytes() >= CheckpointBytes) {
+						checkpoint();
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				System.out.println("ERR: Failed to write a checkpoint, the log keeps growing!");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// numbers of the checkpoints in the directory, in order
+	private static long[] checkpoints(File dir) {
+		String[] names = dir.list();
+		if (names == null) {
+			return new long[0];
+		}
+		return Arrays.stream(names)
+			.filter(name -> name.startsWith(CheckpointPrefix) && name.substring(CheckpointPrefix.length()).matches("[0-9]+"))
+			.mapToLong(name -> Long.parseLong(name.substring(CheckpointPrefix.length())))
+			.sorted()
+			.toArray();
+	}
+
+	/*
+	 * Checkpoint format, big endian:
+	 * <magic - version - next chunk index - root directory - CRC32 of everything before it>
+	 * directory: <entry count - entry*>, entries in name order
+	 * entry: <name length as int - UTF-8 name - 0 and a directory | 1 and a file>
+	 * file: <chunk size - length as long - chunk count - chunk handle as int*>
+	 * Version 1 wrote the name length as a short, it is still read.
+	 */
+	private static final int CheckpointMagic = 0x54465343;
+	private static final int CheckpointVersion = 2;
+
+	// write the namespace to a new file next to the checkpoint and move it in place once it is on disk
+	private void writeCheckpoint(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream raw = new FileOutputStream(tmp)) {
+			CheckedOutputStream checked = new CheckedOutputStream(raw, new CRC32());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1024 * 1024));
+			out.writeInt(CheckpointMagic);
+			out.writeInt(CheckpointVersion);
+			out.writeInt(ChunkIndex.get());
+			writeCheckpointDir(out, root);
+			out.flush();
+			new DataOutputStream(raw).writeInt((int) checked.getChecksum().getValue());
+			raw.getChannel().force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		OperationLog.syncDirectory(file.getParentFile());
+	}
+
+	private void writeCheckpointDir(DataOutputStream out, Node dir) throws IOException {
+		out.writeInt(dir.children.size());
+		for (Map.Entry<String, Node> e : dir.children.entrySet()) {
+			byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(name.length);
+			out.write(name);
+			Node node = e.getValue();
+			if (node.children != null) {
+				out.writeByte(0);
+				writeCheckpointDir(out, node);
+			} else {
+				out.writeByte(1);
+				out.writeInt(node.chunkSize);
+				out.writeLong(node.length);
+				out.writeInt(node.chunks.size());
+				for (String handle : node.chunks) {
+					out.writeInt(Integer.parseInt(handle));
+				}
+			}
+		}
+	}
+
+	// load the newest whole checkpoint of the directory into the empty namespace, return its number, 0 if none.
+	// An older checkpoint stands in for a damaged one only while the log segments between the two are
+	// all there; without them the mutations the damaged checkpoint held are lost and the master does not start.
+	private long loadCheckpoint(File dir) throws IOException {
+		long[] numbers = checkpoints(dir);
+		for (int i = numbers.length - 1; i >= 0; i--) {
+			if (readCheckpoint(new File(dir, CheckpointPrefix + numbers[i]))) {
+				return numbers[i];
+			}
+			long older = i > 0 ? numbers[i - 1] : 0;
+			if (!OperationLog.hasSegments(dir, older + 1, numbers[i])) {
+				throw new IOException("Checkpoint " + numbers[i] + " is damaged and the log segments after " + (older == 0 ? "the start" : "checkpoint " + older) + " are gone, mutations would be lost");
+			}
+			System.out.println("Error (ChunkServerMaster), replaying the log segments after " + (older == 0 ? "the start" : "checkpoint " + older) + " instead of checkpoint " + numbers[i]);
+		}
+		return 0;
+	}
+
+	// load the checkpoint into the empty namespace, false and the namespace left empty if it is not whole
+	private boolean readCheckpoint(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int version = in.limit() < 16 ? 0 : in.getInt(4);
+			if (in.limit() < 16 || in.getInt(0) != CheckpointMagic || (version != 1 && version != CheckpointVersion)) {
+				System.out.println("Error (ChunkServerMaster), " + file + " is not a checkpoint");
+				return false;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(in.slice(0, in.limit() - 4));
+			if ((int) crc.getValue() != in.getInt(in.limit() - 4)) {
+				System.out.println("Error (ChunkServerMaster), the checksum of " + file + " does not match");
+				return false;
+			}
+			in.position(8);
+			ChunkIndex.set(in.getInt());
+			try {
+				readCheckpointDir(in, root, new byte[256], version);
+			} catch (RuntimeException e) {
+				System.out.println("Error (ChunkServerMaster), " + file + " does not parse");
+				e.printStackTrace();
+				root.children.clear();
+				ChunkIndex.set(1);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	private void readCheckpointDir(ByteBuffer in, Node dir, byte[] name, int version) {
+		int count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			int length = version == 1 ? in.getShort() & 0xffff : in.getInt();
+			if (name.length < length) {
+				name = new byte[length];
+			}
+			in.get(name, 0, length);
+			String key = new String(name, 0, length, StandardCharsets.UTF_8);
+			Node node;
+			if (in.get() == 0) {
+				node = new Node();
+				readCheckpointDir(in, node, name, version);
+			} else {
+				node = new Node(in.getInt());
+				node.length = in.getLong();
+				int chunks = in.getInt();
+				for (int c = 0; c < chunks; c++) {
+					node.chunks.add(String.valueOf(in.getInt()));
+				}
+			}
+			dir.children.put(key, node);
+		}
+	}
+
 	/**
 	 *********
 	 * Main *
@@ -370,6 +921,13 @@ public class ChunkServerMaster implements ChunkServerMasterInterface {
 	 */
 	public static void main(String[] args) {
 		ChunkServerMaster csm = new ChunkServerMaster();
+		try {
+			csm.openLog(LogDirectory);
+		} catch (IOException e) {
+			System.out.println("ERR: Failed to open the operation log in " + LogDirectory + ", the master does not start!");
+			e.printStackTrace();
+			return;
+		}
 		csm.serve();
 	}
 }
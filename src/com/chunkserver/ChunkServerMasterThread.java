@@ -1,223 +1,222 @@
 package com.chunkserver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.client.Client;
 import com.client.ClientFS;
 import com.client.ClientFS.FSReturnVals;
 import com.client.ClientRec;
 import com.client.FileHandle;
+import com.client.Frame;
+import com.client.FrameConnection;
 
 public class ChunkServerMasterThread implements Runnable
 {
-	private Socket connection;
+	private FrameConnection conn;
 	private ChunkServerMaster master;
 
-	private ObjectInputStream ois;
-	private ObjectOutputStream oos;
-
-	public ChunkServerMasterThread(Socket socket, ChunkServerMaster master) {
-		this.connection = socket;
+	/**
+	 * Serve the accepted connection, TCP or Unix domain socket.
+	 */
+	public ChunkServerMasterThread(FrameConnection conn, ChunkServerMaster master) {
+		this.conn = conn;
 		this.master = master;
 	}
 
+	/**
+	 * Request handler without a connection of its own, see MasterEventLoop.
+	 */
+	public ChunkServerMasterThread(ChunkServerMaster master) {
+		this(null, master);
+	}
+
 	public void run() {
 		try {
-			ois = new ObjectInputStream(connection.getInputStream());
-			oos = new ObjectOutputStream(connection.getOutputStream());
+			// every request of the connection is received into the same frame and answered from the same frame
+			Frame request = new Frame(0);
+			Frame reply = new Frame(0);
 			System.out.println("Started a new connection");
 
-			while (!connection.isClosed()) {
-				// handle initial payload size and command before mux
-				int payloadSize = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-				if (payloadSize == -1) break;
-
-				int command = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-
-				// mux switch
-				switch(command) {
-					case ClientFS.CREATE_DIR_COMMAND:
-						// req format: <srcLen - srcBytes - destLen - destBytes>
-						int srcLen1 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String src1 = new String(Client.RecvPayload("ChunkServerMaster", ois, srcLen1));
-
-						int destLen1 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String dest1 = new String(Client.RecvPayload("ChunkServerMaster", ois, destLen1));
-
-						// resp format: <FSReturnVal.ordinal()>
-						oos.writeInt(master.createDir(src1, dest1).ordinal());
-						oos.flush();
-
-						break;
-					case ClientFS.LIST_DIR_COMMAND:
-						// req format: <dirname>
-						int destLen2 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String dest2 = new String(Client.RecvPayload("ChunkServerMaster", ois, destLen2));
-
-						// resp format: <resultsLen - string-1-len - string-1 - string-2-len - string-2 -
-						// ... - string-resultsLen-len - string-resultsLen>
-						List<String> results = new ArrayList<String>();
-						FSReturnVals code = master.listDir(dest2 + "/", results);
-
-						if (code == FSReturnVals.Success) {
-							oos.writeInt(results.size());
-
-							for (String result : results) {
-								byte[] resultBuf = result.getBytes();
-
-								oos.writeInt(resultBuf.length);
-								oos.write(resultBuf);
-							}
-						} else {
-							// TODO CL: is this good enough off case handling
-							oos.writeInt(-1);
-						}
-						oos.flush();
-
-						break;
-					case ClientFS.DELETE_DIR_COMMAND:
-						// req format: <srcLen - srcBytes - destLen - destBytes>
-						int srcLen3 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String src3 = new String(Client.RecvPayload("ChunkServerMaster", ois, srcLen3));
-
-						int destLen3 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String dest3 = new String(Client.RecvPayload("ChunkServerMaster", ois, destLen3));
-
-						// resp format: <FSReturnVal.ordinal()>
-						oos.writeInt(master.deleteDir(src3, dest3).ordinal());
-						oos.flush();
-
-						break;
-					case ClientFS.RENAME_DIR_COMMAND:
-						// req format: <origLen - origBytes - newNameLen - newNameBytes>
-						int srcLen4 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String src4 = new String(Client.RecvPayload("ChunkServerMaster", ois, srcLen4));
-
-						int destLen4 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String dest4 = new String(Client.RecvPayload("ChunkServerMaster", ois, destLen4));
-
-						// resp format: <FSReturnVal.ordinal()>
-						oos.writeInt(master.renameDir(src4, dest4).ordinal());
-						oos.flush();
-
-						break;
-					case ClientFS.CREATE_FILE_COMMAND:
-						// req format: <parentLen - parentBytes - nameLen - nameBytes>
-						int parentLen1 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String parent1 = new String(Client.RecvPayload("ChunkServerMaster", ois, parentLen1));
-
-						int nameLen1 = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String name1 = new String(Client.RecvPayload("ChunkServerMaster", ois, nameLen1));
-
-						// resp format: <FSReturnVal.ordinal()>
-						oos.writeInt(master.createFile(parent1, name1).ordinal());
-						oos.flush();
-
-						break;
-					case ClientFS.OPEN_FILE_COMMAND:
-						// req format: <filenameLen - filename>
-						int filename6Len = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String filename6 = new String(Client.RecvPayload("ChunkServerMaster", ois, filename6Len));
-						FileHandle fh = new FileHandle();
-
-						// resp format: <FSReturnVal.ordinal() - success?filehandlelen - success?filehandle>
-						FSReturnVals res = master.openFile(filename6, fh);
-						oos.writeInt(res.ordinal());
-
-						// if we successfully created a file, there will be an associated filehandle that comes with it
-						if (res == FSReturnVals.Success) {
-							ByteArrayOutputStream bos = new ByteArrayOutputStream();
-							ObjectOutputStream out = new ObjectOutputStream(bos);
-							out.writeObject(fh);
-							out.flush();
-							
-							byte[] bfh = bos.toByteArray();
-							
-							oos.writeInt(bfh.length);
-							oos.write(bfh);
-						}
-
-						oos.flush();
-
-						break;
-					case ClientFS.CLOSE_FILE_COMMAND:
-						int fileHandleLen = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						ObjectInputStream deserializer = new ObjectInputStream(new ByteArrayInputStream(Client.RecvPayload("ChunkServerMaster", ois, fileHandleLen)));
-						FileHandle filehandle = (FileHandle) deserializer.readObject();
-
-						oos.writeInt(master.closeFile(filehandle).ordinal());
-						oos.flush();
-
-						break;
-					case ClientRec.GET_LAST_CHUNK_COMMAND:
-						int filenameLen = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String filename = new String(Client.RecvPayload("ChunkServerMaster", ois, filenameLen));
-						byte [] chunkhandle = master.getLastChunk(filename).getBytes();
-						oos.writeInt(chunkhandle.length);
-						oos.write(chunkhandle);
-						oos.flush();
-						break;
-						
-					case ClientRec.ADD_CHUNK_COMMAND:
-						int filename2Len = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String filename2 = new String(Client.RecvPayload("ChunkServerMaster", ois, filename2Len));
-						byte [] chunkhandle2 = master.addChunk(filename2).getBytes();
-						oos.writeInt(chunkhandle2.length);
-						oos.write(chunkhandle2);
-						oos.flush();
-						break;
-						
-					case ClientRec.GET_NUM_CHUNKS_COMMAND:
-						int filename3Len = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String filename3 = new String(Client.RecvPayload("ChunkServerMaster", ois, filename3Len));
-						oos.writeInt(master.getNumChunks(filename3));
-						oos.flush();
-						break;
-								
-					case ClientRec.GET_CHUNK_COMMAND:
-						int filename4Len = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String filename4 = new String(Client.RecvPayload("ChunkServerMaster", ois, filename4Len));
-						int chunkIndex = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						byte [] chunkhandleName = master.getChunk(filename4, chunkIndex).getBytes();
-						oos.writeInt(chunkhandleName.length);
-						oos.write(chunkhandleName);
-						oos.flush();	
-						break;
-						
-					case ClientRec.GET_CHUNK_INDEX_COMMAND:
-						int filename5Len = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String filename5 = new String(Client.RecvPayload("ChunkServerMaster", ois, filename5Len));
-						int chunkHandleSize = Client.ReadIntFromInputStream("ChunkServerMaster", ois);
-						String chunkHandle =  new String(Client.RecvPayload("ChunkServerMaster", ois, chunkHandleSize));
-						int nextChunkIndex = master.getChunkIndex(filename5, chunkHandle);
-						oos.writeInt(nextChunkIndex);
-						oos.flush();			
-						break;						
-					default:
-						break;
-				}
+			while (!conn.isClosed()) {
+				if (conn.receive(request) == null) break;
+
+				process(request, reply.replyTo(request));
+				// a reply is sent once the log records of what the request did or saw are on disk
+				master.awaitLogged();
+				conn.send(reply);
 			}
-		} catch(IOException | ClassNotFoundException e){
+		} catch(IOException e){
 			e.printStackTrace();
 		} finally {
 			try {
-				if (oos != null)
-					oos.close();
-				if (ois!= null)
-					ois.close();
-				if (connection != null)
-					connection.close();
+				conn.close();
 			} catch (IOException e) {
 				System.out.println("ERR: Failed to close client socket/resources!");
 			}
-		} 
+		}
 
 	}
+
+	/**
+	 * Execute the request against the master and write its result into the empty reply.
+	 */
+	Frame process(Frame request, Frame reply) {
+
+		// requests of different connections run in parallel, the master locks the paths each one touches
+		// mux switch
+		switch(request.opcode) {
+			case ClientFS.CREATE_DIR_COMMAND:
+				// req format: <src - dest>
+				String src1 = request.getString();
+				String dest1 = request.getString();
+
+				// resp format: <FSReturnVal.ordinal()>
+				reply.putInt(master.createDir(src1, dest1).ordinal());
+				break;
+			case ClientFS.LIST_DIR_COMMAND:
+				// req format: <dirname>
+				String dest2 = request.getString();
+
+				// resp format: <resultsLen - string-1 - string-2 - ... - string-resultsLen>
+				List<String> results = new ArrayList<String>();
+				FSReturnVals code = master.listDir(dest2 + "/", results);
+
+				if (code == FSReturnVals.Success) {
+					reply.putInt(results.size());
+
+					for (String result : results) {
+						reply.putString(result);
+					}
+				} else {
+					// TODO CL: is this good enough off case handling
+					reply.putInt(-1);
+				}
+				break;
+			case ClientFS.DELETE_DIR_COMMAND:
+				// req format: <src - dest>
+				String src3 = request.getString();
+				String dest3 = request.getString();
+
+				// resp format: <FSReturnVal.ordinal()>
+				reply.putInt(master.deleteDir(src3, dest3).ordinal());
+				break;
+			case ClientFS.RENAME_DIR_COMMAND:
+				// req format: <orig - newName>
+				String src4 = request.getString();
+				String dest4 = request.getString();
+
+				// resp format: <FSReturnVal.ordinal()>
+				reply.putInt(master.renameDir(src4, dest4).ordinal());
+				break;
+			case ClientFS.CREATE_FILE_COMMAND:
+				// req format: <parent - name - [chunkSize]>
+				String parent1 = request.getString();
+				String name1 = request.getString();
+
+				// the chunk size is optional, 0 picks the cluster default
+				int chunkSize1 = request.remaining() >= 4 ? request.getInt() : 0;
+
+				// resp format: <FSReturnVal.ordinal()>
+				reply.putInt(master.createFile(parent1, name1, chunkSize1).ordinal());
+				break;
+			case ClientFS.DELETE_FILE_COMMAND:
+				// req format: <parent - name>
+				String parent2 = request.getString();
+				String name2 = request.getString();
+
+				// resp format: <FSReturnVal.ordinal()>
+				reply.putInt(master.deleteFile(parent2, name2).ordinal());
+				break;
+			case ClientFS.OPEN_FILE_COMMAND:
+				// req format: <filename>
+				String filename6 = request.getString();
+				FileHandle fh = new FileHandle();
+
+				// resp format: <FSReturnVal.ordinal() - success?filepath - success?chunkSize>
+				FSReturnVals res = master.openFile(filename6, fh);
+				reply.putInt(res.ordinal());
+
+				// if we successfully opened a file, there will be an associated filehandle that comes with it
+				if (res == FSReturnVals.Success) {
+					reply.putString(fh.filepath);
+					reply.putInt(fh.chunkSize);
+				}
+				break;
+			case ClientFS.CLOSE_FILE_COMMAND:
+				// req format: <filepath>
+				FileHandle filehandle = new FileHandle();
+				filehandle.setFilePath(request.getString());
+
+				reply.putInt(master.closeFile(filehandle).ordinal());
+				break;
+			case ClientFS.GET_FILE_LENGTH_COMMAND:
+				// req format: <filepath>, resp format: <length as long, -1 if the file does not exist>
+				reply.putLong(master.getFileLength(request.getString()));
+				break;
+			case ClientFS.SET_FILE_LENGTH_COMMAND:
+				// req format: <filepath - length as long>
+				String filename7 = request.getString();
+				long length7 = request.getLong();
+
+				// resp format: <FSReturnVal.ordinal()>
+				reply.putInt(master.setFileLength(filename7, length7).ordinal());
+				break;
+			case ClientRec.GET_LAST_CHUNK_COMMAND:
+				reply.putString(master.getLastChunk(request.getString()));
+				break;
+
+			case ClientRec.ADD_CHUNK_COMMAND:
+				// resp format: <chunkhandle, null if the file does not exist>
+				reply.putString(master.addChunk(request.getString()));
+				break;
+
+			case ClientRec.GET_NUM_CHUNKS_COMMAND:
+				reply.putInt(master.getNumChunks(request.getString()));
+				break;
+
+			case ClientRec.GET_CHUNK_COMMAND:
+				String filename4 = request.getString();
+				int chunkIndex = request.getInt();
+				reply.putString(master.getChunk(filename4, chunkIndex));
+				break;
+
+			case ClientRec.GET_CHUNK_INDEX_COMMAND:
+				String filename5 = request.getString();
+				String chunkHandle = request.getString();
+				reply.putInt(master.getChunkIndex(filename5, chunkHandle));
+				break;
+
+			case ClientRec.GET_CHUNKS_COMMAND:
+				// resp format: <numChunks - chunkhandle-1 - ... - chunkhandle-numChunks>, numChunks -1 if the file does not exist
+				List<String> chunks = master.getChunks(request.getString());
+				if (chunks == null) {
+					reply.putInt(-1);
+				} else {
+					reply.putInt(chunks.size());
+					for (String handle : chunks) {
+						reply.putString(handle);
+					}
+				}
+				break;
+			case FrameConnection.BATCH_COMMAND:
+				// req format: <n - <length - opcode - body>*>, executed in order
+				// resp format: <n - <length - opcode - body>*> in request order
+				int n = request.getInt();
+				reply.putInt(n);
+				Frame sub = new Frame(0);
+				Frame subReply = new Frame(0);
+				for (int i = 0; i < n; i++) {
+					request.getFrame(sub);
+					reply.putFrame(process(sub, subReply.replyTo(sub)));
+				}
+				break;
+			case FrameConnection.PING_COMMAND:
+				// health check of the client's connection pool, the empty reply is the answer
+				break;
+			default:
+				break;
+		}
+		return reply;
+	}
 }
@@ -0,0 +1,302 @@
+package com.chunkserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import com.client.Frame;
+import com.client.FrameConnection;
+import com.client.TinyRec;
+
+/**
+ * Serves the requests of one client connection of the chunk server.
+ * Every connection runs on its own thread that reads the requests and hands each
+ * one to the worker pool of the ChunkServer, so the requests a client pipelines on
+ * the connection run concurrently and are answered as they finish, tagged with
+ * their request id. Requests of the connection on the same chunk still run in the
+ * order they were sent: reads in a row run together, any other request runs alone,
+ * so a read pipelined after a write sees the write.
+ * Concurrent requests of different connections on a chunk are serialized by the
+ * chunk locks of the ChunkServer.
+ */
+public class ChunkServerThread implements Runnable
+{
+	// requests of one connection executed at once, the connection is not read further until one finishes
+	public static final int MaxInFlight = 32;
+
+	private FrameConnection conn;
+	private ChunkServer server;
+
+	// a request and reply frame pair for every request in flight, reused once its reply is sent
+	private final ConcurrentLinkedQueue<Frame[]> frames = new ConcurrentLinkedQueue<Frame[]>();
+	private final Semaphore inFlight = new Semaphore(MaxInFlight);
+
+	// the requests of the connection running and waiting on every chunk, by chunk handle;
+	// a handle is present while one of its requests runs
+	private final HashMap<String, Ordering> chunks = new HashMap<String, Ordering>();
+
+	private static class Ordering {
+		int running;
+		boolean writing;
+		// requests waiting for the earlier ones on the chunk, in the order they were sent
+		final ArrayDeque<Frame[]> waiting = new ArrayDeque<Frame[]>();
+
+		// start the call if it does not have to wait for the running requests
+		boolean start(Frame[] call) {
+			boolean read = call[0].opcode == ChunkServer.ReadChunkCMD || call[0].opcode == ChunkServer.ScanChunkCMD;
+			if (running > 0 && (writing || !read))
+				return false;
+			running++;
+			writing = !read;
+			return true;
+		}
+	}
+
+	/**
+	 * Serve the accepted connection, TCP or Unix domain socket.
+	 */
+	public ChunkServerThread(FrameConnection conn, ChunkServer server) {
+		this.conn = conn;
+		this.server = server;
+	}
+
+	public void run() {
+		try {
+			//Use the existing connection as long as the client is connected
+			while (!conn.isClosed()) {
+				inFlight.acquire();
+				Frame[] pair = frames.poll();
+				if (pair == null)
+					pair = new Frame[] { new Frame(0), new Frame(0) };
+				if (conn.receive(pair[0]) == null)
+					break;
+
+				String chunk = chunkOf(pair[0]);
+				if (chunk == null || admit(chunk, pair))
+					execute(pair, chunk);
+			}
+		} catch (IOException ex){
+			System.out.println("Client Disconnected");
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				conn.close();
+			} catch (IOException fex){
+				System.out.println("Error (ChunkServer):  Failed to close either a valid connection or its input/output stream.");
+				fex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The chunk the request works on, null if it is not ordered with the other requests
+	 * of the connection. The chunk requests name their chunk first, except the creation
+	 * of a chunk with a server picked handle. A batch is ordered by its chunk if all its
+	 * requests work on the same one, a batch over several chunks runs unordered.
+	 * A malformed request is not ordered, processing it fails.
+	 */
+	static String chunkOf(Frame request) {
+		switch (request.opcode) {
+		case ChunkServer.CreateChunkCMD:
+		case ChunkServer.ReadChunkCMD:
+		case ChunkServer.WriteChunkCMD:
+		case ChunkServer.DeleteChunkCMD:
+		case ChunkServer.AppendRecordCMD:
+		case ChunkServer.ScanChunkCMD:
+			return request.peekString();
+		case FrameConnection.BATCH_COMMAND:
+			int start = request.position();
+			String chunk = null;
+			try {
+				int n = request.getInt();
+				Frame sub = new Frame(0);
+				for (int i = 0; i < n; i++) {
+					String subChunk = chunkOf(request.getFrame(sub));
+					if (subChunk == null || (chunk != null && !chunk.equals(subChunk)))
+						return null;
+					chunk = subChunk;
+				}
+				return chunk;
+			} catch (RuntimeException ex) {
+				return null;
+			} finally {
+				request.position(start);
+			}
+		default:
+			return null;
+		}
+	}
+
+	// true if the call may run now, otherwise queue it behind the requests on the chunk
+	private boolean admit(String chunk, Frame[] call) {
+		synchronized (chunks) {
+			Ordering ordering = chunks.get(chunk);
+			if (ordering == null) {
+				ordering = new Ordering();
+				chunks.put(chunk, ordering);
+			}
+			if (ordering.waiting.isEmpty() && ordering.start(call))
+				return true;
+			ordering.waiting.add(call);
+			return false;
+		}
+	}
+
+	// a request on the chunk finished, return the queued requests that may run now
+	private List<Frame[]> finished(String chunk) {
+		List<Frame[]> ready = new ArrayList<Frame[]>();
+		synchronized (chunks) {
+			Ordering ordering = chunks.get(chunk);
+			ordering.running--;
+			while (!ordering.waiting.isEmpty() && ordering.start(ordering.waiting.peek()))
+				ready.add(ordering.waiting.poll());
+			if (ordering.running == 0)
+				chunks.remove(chunk);
+		}
+		return ready;
+	}
+
+	// run the request on the worker pool, then the next request of the connection on its chunk
+	private void execute(final Frame[] call, final String chunk) {
+		server.threadPool.execute(() -> {
+			try {
+				respond(conn, call[0], call[1].replyTo(call[0]));
+			} catch (IOException ex) {
+				System.out.println("Error (ChunkServer):  Failed to send the reply to request " + call[0].requestId);
+				//Part of the reply may be on the wire, the client cannot read further replies
+				close();
+			} catch (RuntimeException ex) {
+				System.out.println("Error (ChunkServer):  Failed to process request " + call[0].requestId + " with CMD " + call[0].opcode);
+				ex.printStackTrace();
+				//The request gets no reply, closing the connection fails the client's calls instead of leaving them waiting
+				close();
+			} finally {
+				frames.offer(call);
+				inFlight.release();
+				if (chunk != null) {
+					for (Frame[] following : finished(chunk))
+						execute(following, chunk);
+				}
+			}
+		});
+	}
+
+	private void close() {
+		try {
+			conn.close();
+		} catch (IOException cex) {
+			System.out.println("Error (ChunkServer):  Failed to close the connection.");
+		}
+	}
+
+	/**
+	 * Execute the request and send its reply. Large chunk reads are sent straight from the
+	 * chunk store to the socket, the reply frame is the same as the one of process.
+	 */
+	void respond(FrameConnection conn, Frame request, Frame reply) throws IOException {
+		if (request.opcode != ChunkServer.ReadChunkCMD) {
+			conn.send(process(request, reply));
+			return;
+		}
+		// req format: <chunkhandle - offset - length>, resp format: <data block, null if the chunk does not exist>
+		String ChunkHandle = request.getString();
+		int offset = request.getInt();
+		int length = request.getInt();
+		if (length < ChunkServer.TransferThreshold) {
+			conn.send(reply.putBlock(server.readChunk(ChunkHandle, offset, length)));
+		} else if (!server.transferChunk(ChunkHandle, offset, length, conn, reply)) {
+			conn.send(reply.replyTo(request).putBlock(null));
+		}
+	}
+
+	/**
+	 * Execute the request and write its result into the empty reply.
+	 */
+	Frame process(Frame request, Frame reply) {
+		switch (request.opcode){
+		case ChunkServer.CreateChunkCMD:
+			// req format: <[chunkhandle - [chunkSize]]>, without a handle the server picks the next free one
+			String ChunkHandle = request.remaining() > 0 ? request.getString() : server.createChunk();
+			//The chunk size is optional, files use the default chunk size otherwise
+			int chunkSize = request.remaining() >= 4 ? request.getInt() : ChunkServer.DefaultChunkSize;
+			reply.putString(server.createChunk(ChunkHandle, chunkSize));
+			break;
+
+		case ChunkServer.ReadChunkCMD:
+			// req format: <chunkhandle - offset - length>, resp format: <data block, null if the chunk does not exist>
+			ChunkHandle = request.getString();
+			int offset = request.getInt();
+			int length = request.getInt();
+			reply.putBlock(server.readChunk(ChunkHandle, offset, length));
+			break;
+
+		case ChunkServer.WriteChunkCMD:
+			// req format: <chunkhandle - offset - payload block>
+			ChunkHandle = request.getString();
+			offset = request.getInt();
+			byte[] payload = request.getBlock();
+			reply.putInt(server.writeChunk(ChunkHandle, payload, offset) ? ChunkServer.TRUE : ChunkServer.FALSE);
+			break;
+
+		case ChunkServer.AppendRecordCMD:
+			// req format: <chunkhandle - chunkSize - payload block>, resp format: <slot or ChunkFull or ChunkMissing>
+			ChunkHandle = request.getString();
+			chunkSize = request.getInt();
+			payload = request.getBlock();
+			reply.putInt(server.appendRecord(ChunkHandle, payload, chunkSize));
+			break;
+
+		case ChunkServer.ScanChunkCMD:
+			// req format: <chunkhandle - chunkSize - startSlot - forward - maxRecords>
+			ChunkHandle = request.getString();
+			chunkSize = request.getInt();
+			int startSlot = request.getInt();
+			boolean forward = request.getInt() == ChunkServer.TRUE;
+			int maxRecords = request.getInt();
+
+			// resp format: <count - <slot - payload block>*>, count -1 if the chunk does not exist
+			List<TinyRec> records = server.scanChunk(ChunkHandle, chunkSize, startSlot, forward, maxRecords);
+			if (records == null) {
+				reply.putInt(-1);
+			} else {
+				reply.putInt(records.size());
+				for (TinyRec rec : records) {
+					reply.putInt(rec.getRID().slotNumber);
+					reply.putBlock(rec.getPayload());
+				}
+			}
+			break;
+
+		case ChunkServer.DeleteChunkCMD:
+			ChunkHandle = request.getString();
+			reply.putInt(server.deleteChunk(ChunkHandle) ? ChunkServer.TRUE : ChunkServer.FALSE);
+			break;
+
+		case FrameConnection.BATCH_COMMAND:
+			// req format: <n - <length - opcode - body>*>, resp format: <n - <length - opcode - body>*> in request order
+			int n = request.getInt();
+			reply.putInt(n);
+			Frame sub = new Frame(0);
+			Frame subReply = new Frame(0);
+			for (int i = 0; i < n; i++) {
+				request.getFrame(sub);
+				reply.putFrame(process(sub, subReply.replyTo(sub)));
+			}
+			break;
+
+		case FrameConnection.PING_COMMAND:
+			// health check of the client's connection pool, the empty reply is the answer
+			break;
+
+		default:
+			System.out.println("Error in ChunkServer, specified CMD "+request.opcode+" is not recognized.");
+			break;
+		}
+		return reply;
+	}
+}
@@ -0,0 +1,145 @@
+package com.chunkserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.client.ClientRec;
+import com.interfaces.ChunkStore;
+
+/**
+ * Pool of already formatted empty chunks kept in the chunk store.
+ * A background thread formats chunks under reserved pool handles (pool-<size>-<n>)
+ * so creating a chunk on the append path is a rename in the store instead of a
+ * full chunk write. Pool chunks left behind by a previous run are adopted.
+ * Only the chunk sizes passed to prepare are pooled, chunks of any other size are
+ * formatted by the caller, so files with unusual chunk sizes do not grow the pool.
+ */
+public class EmptyChunkPool {
+	static final String PoolPrefix = "pool-";
+
+	private final ChunkStore store;
+	private final int target;
+
+	// formatted chunks ready to be claimed and the pool handles free to be refilled, per chunk size
+	private final Map<Integer, Deque<String>> ready = new HashMap<Integer, Deque<String>>();
+	private final Map<Integer, Deque<String>> unused = new HashMap<Integer, Deque<String>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private final ExecutorService filler = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "chunk-pool-filler");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Keep target formatted chunks per chunk size, 0 disables the pool.
+	 */
+	public EmptyChunkPool(ChunkStore store, int target) {
+		this.store = store;
+		this.target = target;
+	}
+
+	/**
+	 * Start keeping formatted chunks of the given size.
+	 */
+	public void prepare(int chunkSize) {
+		if (target <= 0) return;
+		synchronized (this) {
+			if (ready.containsKey(chunkSize)) return;
+			ready.put(chunkSize, new ArrayDeque<String>());
+			Deque<String> names = new ArrayDeque<String>();
+			for (int n = 0; n < target; n++) {
+				names.add(PoolPrefix + chunkSize + "-" + n);
+			}
+			unused.put(chunkSize, names);
+		}
+		refill(chunkSize);
+	}
+
+	/**
+	 * Move a formatted chunk of chunkSize bytes to the handle.
+	 * Return false if the pool has no chunk of that size ready or does not keep that size;
+	 * the caller formats one itself.
+	 */
+	public boolean claim(String chunkHandle, int chunkSize) {
+		String pooled;
+		synchronized (this) {
+			Deque<String> chunks = ready.get(chunkSize);
+			if (chunks == null) return false;
+			pooled = chunks.poll();
+		}
+
+		boolean claimed = false;
+		if (pooled != null) {
+			try {
+				claimed = store.renameChunk(pooled, chunkHandle);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				unused.get(chunkSize).add(pooled);
+			}
+		}
+
+		if (claimed) hits.incrementAndGet();
+		else misses.incrementAndGet();
+
+		refill(chunkSize);
+		return claimed;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public String toString() {
+		return "Chunk pool: " + hits.get() + " hits, " + misses.get() + " misses";
+	}
+
+	public void shutdown() {
+		filler.shutdownNow();
+	}
+
+	private void refill(final int chunkSize) {
+		if (target <= 0) return;
+		filler.execute(() -> {
+			while (true) {
+				String name;
+				synchronized (this) {
+					name = unused.get(chunkSize).poll();
+				}
+				if (name == null) return;
+
+				try {
+					// adopt a formatted chunk left by a previous run, format a new one otherwise
+					byte[] header = store.chunkLength(name) == chunkSize ? store.readChunk(name, 0, ClientRec.CHUNK_HEADER_SIZE) : null;
+					if (header == null || ByteBuffer.wrap(header).getInt() != 0 || ByteBuffer.wrap(header).getInt(4) != ClientRec.CHUNK_HEADER_SIZE) {
+						store.createChunk(name, ChunkServer.formatChunk(chunkSize));
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					synchronized (this) {
+						unused.get(chunkSize).add(name);
+					}
+					return;
+				}
+				synchronized (this) {
+					ready.get(chunkSize).add(name);
+				}
+			}
+		});
+	}
+}
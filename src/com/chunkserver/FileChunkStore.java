@@ -0,0 +1,197 @@
+package com.chunkserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import com.interfaces.ChunkStore;
+
+/**
+ * Chunk store keeping every chunk in its own file named by its chunk handle.
+ * Open files are kept in a ChunkChannelCache.
+ */
+public class FileChunkStore implements ChunkStore {
+	private final String directory;
+	private final ChunkChannelCache channels;
+
+	public FileChunkStore(String directory, int maxOpenChunks) {
+		this.directory = directory;
+		this.channels = new ChunkChannelCache(directory, maxOpenChunks);
+	}
+
+	public void createChunk(String ChunkHandle, byte[] image) throws IOException {
+		while (true) {
+			try {
+				FileChannel channel = channels.get(ChunkHandle, true);
+				writeFully(channel, ByteBuffer.wrap(image), 0);
+				// a chunk that was longer before is cut to the image
+				channel.truncate(image.length);
+				return;
+			} catch (ClosedChannelException e) {
+				// another thread evicted the channel from the cache, reopen it
+				if (Thread.currentThread().isInterrupted()) throw e;
+			}
+		}
+	}
+
+	public boolean writeChunk(String ChunkHandle, byte[] payload, int offset) throws IOException {
+		while (true) {
+			try {
+				writeFully(channels.get(ChunkHandle, true), ByteBuffer.wrap(payload), offset);
+				return true;
+			} catch (ClosedChannelException e) {
+				// another thread evicted the channel from the cache, reopen it
+				if (Thread.currentThread().isInterrupted()) throw e;
+			}
+		}
+	}
+
+	public byte[] readChunk(String ChunkHandle, int offset, int NumberOfBytes) throws IOException {
+		byte[] data = new byte[NumberOfBytes];
+		while (true) {
+			FileChannel channel = channels.get(ChunkHandle, false);
+			if (channel == null) return null;
+
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) == -1)
+						break;
+				}
+				return data;
+			} catch (ClosedChannelException e) {
+				// another thread evicted the channel from the cache, reopen it
+				if (Thread.currentThread().isInterrupted()) throw e;
+			}
+		}
+	}
+
+	/**
+	 * The chunk bytes go from the page cache to the socket with transferTo.
+	 */
+	public boolean transferChunk(String ChunkHandle, int offset, int NumberOfBytes, ByteBuffer head, WritableByteChannel target) throws IOException {
+		FileChannel channel = channels.get(ChunkHandle, false);
+		if (channel == null) return false;
+
+		writeFully(target, head);
+		long sent = 0;
+		while (true) {
+			sent += transferFully(channel, offset + sent, NumberOfBytes - sent, target);
+			if (sent == NumberOfBytes || channel.isOpen()) break;
+			// another thread evicted the channel from the cache, reopen it and send the rest
+			if (Thread.currentThread().isInterrupted())
+				throw new IOException("Interrupted while sending chunk " + ChunkHandle);
+			channel = channels.get(ChunkHandle, false);
+			if (channel == null)
+				throw new IOException("Chunk " + ChunkHandle + " was deleted while it was sent");
+		}
+		writeZeros(target, NumberOfBytes - sent);
+		return true;
+	}
+
+	public int chunkLength(String ChunkHandle) throws IOException {
+		while (true) {
+			FileChannel channel = channels.get(ChunkHandle, false);
+			if (channel == null) return -1;
+			try {
+				return (int) channel.size();
+			} catch (ClosedChannelException e) {
+				// another thread evicted the channel from the cache, reopen it
+				if (Thread.currentThread().isInterrupted()) throw e;
+			}
+		}
+	}
+
+	public boolean deleteChunk(String ChunkHandle) throws IOException {
+		channels.evict(ChunkHandle);
+		return Files.deleteIfExists(Paths.get(directory + ChunkHandle));
+	}
+
+	public boolean renameChunk(String from, String to) throws IOException {
+		channels.evict(from);
+		channels.evict(to);
+		try {
+			Files.move(Paths.get(directory + from), Paths.get(directory + to), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		return true;
+	}
+
+	public long highestHandle() {
+		return highestHandle(directory);
+	}
+
+	public void close() {
+		channels.clear();
+	}
+
+	/**
+	 * Return the largest chunk handle among the chunk files of the directory.
+	 */
+	static long highestHandle(String directory) {
+		long highest = 0;
+		File[] fs = new File(directory).listFiles();
+		if (fs == null) return highest;
+		for (int j=0; j < fs.length; j++) {
+			//Skip files that are not chunks
+			try {
+				highest = Math.max(highest, Long.parseLong(fs[j].getName()));
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+		}
+		return highest;
+	}
+
+	// zeros sent for the bytes past the end of a chunk
+	private static final ByteBuffer Zeros = ByteBuffer.allocateDirect(64 * 1024);
+
+	/**
+	 * Send count bytes of the file from position to the channel with transferTo.
+	 * Return the bytes sent, fewer than count if the file ends first or the file channel was closed meanwhile.
+	 */
+	static long transferFully(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+		long sent = 0;
+		try {
+			while (sent < count) {
+				long n = file.transferTo(position + sent, count - sent, target);
+				if (n == 0 && position + sent >= file.size()) break;
+				sent += n;
+			}
+		} catch (ClosedChannelException e) {
+			// the socket was closed, or the file channel and the caller reopens it
+			if (file.isOpen()) throw e;
+		}
+		return sent;
+	}
+
+	static void writeZeros(WritableByteChannel target, long count) throws IOException {
+		while (count > 0) {
+			ByteBuffer zeros = Zeros.duplicate();
+			zeros.limit((int) Math.min(count, zeros.capacity()));
+			count -= zeros.remaining();
+			writeFully(target, zeros);
+		}
+	}
+
+	static void writeFully(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long start = position - buffer.position();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, start + buffer.position());
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.chunkserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.interfaces.ChunkServerInterface;
+import com.interfaces.ChunkStore;
+
+/**
+ * Chunk store that memory maps the chunk files of the file-per-chunk layout.
+ * Hot chunks stay mapped in a bounded LRU so reads and writes are plain memory copies;
+ * the operating system writes dirty pages back to the chunk files.
+ */
+public class MappedChunkStore implements ChunkStore {
+	private final String directory;
+	private final int capacity;
+
+	// access ordered, the eldest mapping is dropped and unmapped by the garbage collector
+	private final LinkedHashMap<String, MappedByteBuffer> mappings;
+
+	public MappedChunkStore(String directory, int maxMappedChunks) {
+		this.directory = directory;
+		this.capacity = maxMappedChunks;
+		this.mappings = new LinkedHashMap<String, MappedByteBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+				return size() > MappedChunkStore.this.capacity;
+			}
+		};
+	}
+
+	public synchronized void createChunk(String ChunkHandle, byte[] image) throws IOException {
+		// the chunk is as long as the image, a longer chunk file is cut and mapped again
+		mappings.remove(ChunkHandle);
+		FileChannel.open(Paths.get(directory + ChunkHandle), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).close();
+		ByteBuffer chunk = map(ChunkHandle, image.length, false).duplicate();
+		chunk.put(image);
+	}
+
+	public synchronized boolean writeChunk(String ChunkHandle, byte[] payload, int offset) throws IOException {
+		ByteBuffer chunk = map(ChunkHandle, offset + payload.length, true).duplicate();
+		chunk.position(offset);
+		chunk.put(payload);
+		return true;
+	}
+
+	public synchronized byte[] readChunk(String ChunkHandle, int offset, int NumberOfBytes) throws IOException {
+		MappedByteBuffer mapping = map(ChunkHandle, 0, false);
+		if (mapping == null) return null;
+
+		byte[] data = new byte[NumberOfBytes];
+		int length = Math.max(0, Math.min(NumberOfBytes, mapping.capacity() - offset));
+		ByteBuffer chunk = mapping.duplicate();
+		chunk.position(Math.min(offset, chunk.capacity()));
+		chunk.get(data, 0, length);
+		return data;
+	}
+
+	/**
+	 * The socket is written straight from the mapping, which stays valid while it is sent.
+	 */
+	public boolean transferChunk(String ChunkHandle, int offset, int NumberOfBytes, ByteBuffer head, WritableByteChannel target) throws IOException {
+		ByteBuffer chunk;
+		synchronized (this) {
+			MappedByteBuffer mapping = map(ChunkHandle, 0, false);
+			if (mapping == null) return false;
+			chunk = mapping.duplicate();
+		}
+		int length = Math.max(0, Math.min(NumberOfBytes, chunk.capacity() - offset));
+		chunk.position(Math.min(offset, chunk.capacity()));
+		chunk.limit(chunk.position() + length);
+		FileChunkStore.writeFully(target, head);
+		FileChunkStore.writeFully(target, chunk);
+		FileChunkStore.writeZeros(target, NumberOfBytes - length);
+		return true;
+	}
+
+	public synchronized int chunkLength(String ChunkHandle) throws IOException {
+		MappedByteBuffer mapping = map(ChunkHandle, 0, false);
+		return mapping == null ? -1 : mapping.capacity();
+	}
+
+	public synchronized boolean deleteChunk(String ChunkHandle) throws IOException {
+		mappings.remove(ChunkHandle);
+		return Files.deleteIfExists(Paths.get(directory + ChunkHandle));
+	}
+
+	public synchronized boolean renameChunk(String from, String to) throws IOException {
+		MappedByteBuffer mapping = mappings.remove(from);
+		mappings.remove(to);
+		try {
+			Files.move(Paths.get(directory + from), Paths.get(directory + to), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		// the mapping follows the file across the rename
+		if (mapping != null) {
+			mappings.put(to, mapping);
+		}
+		return true;
+	}
+
+	public long highestHandle() {
+		return FileChunkStore.highestHandle(directory);
+	}
+
+	public synchronized void close() {
+		for (MappedByteBuffer mapping : mappings.values()) {
+			mapping.force();
+		}
+		mappings.clear();
+	}
+
+	/**
+	 * Return a mapping of the chunk that covers at least minLength bytes.
+	 * If create is false and the chunk file does not exist then return null.
+	 */
+	private MappedByteBuffer map(String ChunkHandle, int minLength, boolean create) throws IOException {
+		MappedByteBuffer mapping = mappings.get(ChunkHandle);
+		if (mapping != null && mapping.capacity() >= minLength) {
+			return mapping;
+		}
+
+		FileChannel channel;
+		try {
+			channel = create
+				? FileChannel.open(Paths.get(directory + ChunkHandle), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(Paths.get(directory + ChunkHandle), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			// map at least a full chunk, growing the file if needed
+			long length = Math.max(Math.max(channel.size(), minLength), create ? ChunkServerInterface.DefaultChunkSize : 0);
+			mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			channel.close();
+		}
+		mappings.put(ChunkHandle, mapping);
+		return mapping;
+	}
+}
@@ -0,0 +1,224 @@
+package com.chunkserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.client.Frame;
+
+/**
+ * Network front-end of the master: one thread multiplexes every client connection with a
+ * selector and a small worker pool executes the requests, so an idle connection costs a
+ * buffer instead of a thread. The requests of a connection are executed one at a time in
+ * the order they arrived, the requests of different connections in parallel. A connection
+ * with MaxQueued requests waiting is not read until its worker catches up.
+ * The loop accepts on every listening channel it is given, TCP and Unix domain socket.
+ */
+public class MasterEventLoop implements Runnable {
+	// threads executing namespace operations, set with -Dtinyfs.master.workers
+	public static final int Workers = Integer.getInteger("tinyfs.master.workers", Math.max(2, Runtime.getRuntime().availableProcessors()));
+	// requests of one connection waiting for a worker before the loop stops reading it
+	public static final int MaxQueued = 64;
+
+	private static final int ReadBufferSize = 64 * 1024;
+
+	private final Selector selector;
+	private final ChunkServerMaster master;
+	private final ChunkServerMasterThread handler;
+	private final ExecutorService workers = Executors.newFixedThreadPool(Workers);
+
+	// connections with replies to write or reading to resume, handled by the loop thread
+	private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+
+	public MasterEventLoop(ChunkServerMaster master, ServerSocketChannel... servers) throws IOException {
+		this.selector = Selector.open();
+		this.master = master;
+		this.handler = new ChunkServerMasterThread(master);
+		for (ServerSocketChannel server : servers) {
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	// state of one client connection
+	private class Connection {
+		final SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer received = ByteBuffer.allocate(ReadBufferSize);
+
+		// requests waiting for the worker of this connection, at most one worker drains them
+		final ConcurrentLinkedQueue<Frame> requests = new ConcurrentLinkedQueue<Frame>();
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicBoolean draining = new AtomicBoolean();
+
+		// encoded replies the socket did not take yet, written by the loop thread once it can;
+		// the queue and the channel writes are guarded by the connection
+		final ConcurrentLinkedQueue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void enqueue(Frame request) {
+			requests.add(request);
+			queued.incrementAndGet();
+			if (draining.compareAndSet(false, true))
+				workers.execute(this::drain);
+		}
+
+		// execute the queued requests in order, then let the next request start a new drain
+		void drain() {
+			do {
+				try {
+					Frame request;
+					while ((request = requests.poll()) != null) {
+						try {
+							ByteBuffer reply = handler.process(request, Frame.reply(request)).encode();
+							// answered once the log records of what it did or saw are on disk, the worker goes on meanwhile
+							master.whenLogged(() -> send(reply));
+						} catch (RuntimeException e) {
+							System.out.println("ERR: Failed to execute request " + request.requestId + " with CMD " + request.opcode + ", closing the connection!");
+							e.printStackTrace();
+							// the request gets no reply, closing the connection fails the client's call instead of leaving it waiting
+							close(key);
+						} finally {
+							if (queued.decrementAndGet() == MaxQueued - 1) {
+								// the loop stopped reading the connection, let it resume
+								ready.add(this);
+								selector.wakeup();
+							}
+						}
+					}
+				} finally {
+					draining.set(false);
+				}
+			} while (!requests.isEmpty() && draining.compareAndSet(false, true));
+		}
+
+		// write the reply right away if the socket takes it, otherwise leave it to the loop
+		void send(ByteBuffer reply) {
+			synchronized (this) {
+				if (replies.isEmpty()) {
+					try {
+						channel.write(reply);
+					} catch (IOException e) {
+						// the loop closes the connection when it next reads it
+						return;
+					}
+					if (!reply.hasRemaining()) return;
+				}
+				replies.add(reply);
+			}
+			ready.add(this);
+			selector.wakeup();
+		}
+	}
+
+	public void run() {
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+				Connection conn;
+				while ((conn = ready.poll()) != null) {
+					write(conn);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) accept((ServerSocketChannel) key.channel());
+						else {
+							if (key.isReadable()) read((Connection) key.attachment());
+							if (key.isValid() && key.isWritable()) write((Connection) key.attachment());
+						}
+					} catch (IOException e) {
+						// the client went away, its queued requests still run and their replies are dropped
+						close(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("ERR: The master event loop stopped!");
+			e.printStackTrace();
+		}
+	}
+
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		if (channel.getLocalAddress() instanceof InetSocketAddress)
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		Connection conn = new Connection(channel);
+		conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	private void read(Connection conn) throws IOException {
+		if (conn.channel.read(conn.received) == -1) {
+			close(conn.key);
+			return;
+		}
+		conn.received.flip();
+		Frame request;
+		while ((request = Frame.decode(conn.received)) != null) {
+			conn.enqueue(request);
+		}
+		if (conn.received.remaining() >= 4 && conn.received.getInt(conn.received.position()) + 4 > conn.received.capacity()) {
+			// a frame larger than the buffer has started, grow it to the frame
+			ByteBuffer grown = ByteBuffer.allocate(conn.received.getInt(conn.received.position()) + 4);
+			grown.put(conn.received);
+			conn.received = grown;
+		} else if (!conn.received.hasRemaining() && conn.received.capacity() > ReadBufferSize) {
+			// give back the buffer of a large frame
+			conn.received = ByteBuffer.allocate(ReadBufferSize);
+		} else {
+			conn.received.compact();
+		}
+		if (conn.queued.get() >= MaxQueued)
+			conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+	}
+
+	// write what the socket takes, wait for OP_WRITE for the rest, resume reading once the worker caught up
+	private void write(Connection conn) throws IOException {
+		if (!conn.key.isValid()) return;
+		synchronized (conn) {
+			try {
+				ByteBuffer reply;
+				while ((reply = conn.replies.peek()) != null) {
+					conn.channel.write(reply);
+					if (reply.hasRemaining()) break;
+					conn.replies.poll();
+				}
+			} catch (IOException e) {
+				close(conn.key);
+				return;
+			}
+		}
+		int ops = conn.replies.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		if (conn.queued.get() >= MaxQueued)
+			ops &= ~SelectionKey.OP_READ;
+		conn.key.interestOps(ops);
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			System.out.println("ERR: Failed to close client socket/resources!");
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.chunkserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.interfaces.ChunkServerInterface;
+import com.interfaces.ChunkStore;
+
+/**
+ * Chunk store keeping every chunk in an off-heap direct buffer.
+ * Nothing is persisted; meant for load tests of the chunk server.
+ * writeChunk may replace a chunk's buffer with a larger one, so it writes inside a
+ * compute of the map: writes to a chunk are serialized per chunk handle, while reads
+ * and the accesses to other chunks go on.
+ */
+public class MemoryChunkStore implements ChunkStore {
+	private final ConcurrentHashMap<String, ByteBuffer> chunks = new ConcurrentHashMap<String, ByteBuffer>();
+
+	public void createChunk(String ChunkHandle, byte[] image) {
+		ByteBuffer chunk = ByteBuffer.allocateDirect(image.length);
+		chunk.put(image);
+		chunks.put(ChunkHandle, chunk);
+	}
+
+	public boolean writeChunk(String ChunkHandle, byte[] payload, int offset) {
+		chunks.compute(ChunkHandle, (handle, chunk) -> {
+			if (chunk == null || chunk.capacity() < offset + payload.length) {
+				// create the chunk, or grow it to cover the write
+				ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(offset + payload.length, ChunkServerInterface.DefaultChunkSize));
+				if (chunk != null) {
+					chunk = chunk.duplicate();
+					chunk.clear();
+					grown.put(chunk);
+				}
+				chunk = grown;
+			}
+			ByteBuffer target = chunk.duplicate();
+			target.position(offset);
+			target.put(payload);
+			return chunk;
+		});
+		return true;
+	}
+
+	public byte[] readChunk(String ChunkHandle, int offset, int NumberOfBytes) {
+		ByteBuffer chunk = chunks.get(ChunkHandle);
+		if (chunk == null) return null;
+
+		byte[] data = new byte[NumberOfBytes];
+		int length = Math.max(0, Math.min(NumberOfBytes, chunk.capacity() - offset));
+		chunk = chunk.duplicate();
+		chunk.position(Math.min(offset, chunk.capacity()));
+		chunk.get(data, 0, length);
+		return data;
+	}
+
+	public int chunkLength(String ChunkHandle) {
+		ByteBuffer chunk = chunks.get(ChunkHandle);
+		return chunk == null ? -1 : chunk.capacity();
+	}
+
+	public boolean deleteChunk(String ChunkHandle) {
+		return chunks.remove(ChunkHandle) != null;
+	}
+
+	public boolean renameChunk(String from, String to) {
+		ByteBuffer chunk = chunks.remove(from);
+		if (chunk == null) return false;
+		chunks.put(to, chunk);
+		return true;
+	}
+
+	public long highestHandle() {
+		long highest = 0;
+		for (String ChunkHandle : chunks.keySet()) {
+			try {
+				highest = Math.max(highest, Long.parseLong(ChunkHandle));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		return highest;
+	}
+
+	public void close() {
+		chunks.clear();
+	}
+}
@@ -0,0 +1,90 @@
+package com.chunkserver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks over the paths of the master namespace, as in GFS: an operation
+ * read-locks every ancestor directory of the paths it touches and read- or write-locks
+ * the paths themselves. Creating /a/b/f read-locks / and /a/b/ and write-locks /a/b/f,
+ * so it runs alongside other creates in /a/b/ but not with deleting or renaming /a/b/.
+ * /a/b/ and /a/b are the same lock, a file and a directory of one name exclude each other.
+ * Like ChunkLocks every path maps to one of a fixed number of striped locks. The stripes
+ * of an operation are taken in index order, a stripe both read and written only for
+ * writing, so operations never deadlock on each other.
+ */
+public class NamespaceLocks {
+	private final ReadWriteLock[] stripes;
+
+	public NamespaceLocks(int numStripes) {
+		stripes = new ReadWriteLock[numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Locks held by one operation, released by close.
+	 */
+	public static class Held implements AutoCloseable {
+		private final Lock[] locks;
+
+		private Held(Lock[] locks) {
+			this.locks = locks;
+		}
+
+		public void close() {
+			for (int i = locks.length - 1; i >= 0; i--) {
+				locks[i].unlock();
+			}
+		}
+	}
+
+	/**
+	 * Read-lock the ancestors of the path and read-lock the path.
+	 */
+	public Held read(String path) {
+		TreeMap<Integer, Boolean> wanted = new TreeMap<Integer, Boolean>();
+		want(wanted, path, false);
+		return acquire(wanted);
+	}
+
+	/**
+	 * Read-lock the ancestors of every path and write-lock the paths.
+	 */
+	public Held write(String... paths) {
+		TreeMap<Integer, Boolean> wanted = new TreeMap<Integer, Boolean>();
+		for (String path : paths) {
+			want(wanted, path, true);
+		}
+		return acquire(wanted);
+	}
+
+	// the ancestors of /a/b/f and /a/b/ are / and /a (and /a/b for the file), trailing slashes dropped
+	private void want(TreeMap<Integer, Boolean> wanted, String path, boolean write) {
+		for (int i = path.indexOf('/'); i != -1 && i < path.length() - 1; i = path.indexOf('/', i + 1)) {
+			wanted.merge(stripe(path.substring(0, i == 0 ? 1 : i)), false, Boolean::logicalOr);
+		}
+		wanted.merge(stripe(path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path), write, Boolean::logicalOr);
+	}
+
+	private Held acquire(TreeMap<Integer, Boolean> wanted) {
+		Lock[] locks = new Lock[wanted.size()];
+		int n = 0;
+		for (Map.Entry<Integer, Boolean> e : wanted.entrySet()) {
+			ReadWriteLock lock = stripes[e.getKey()];
+			locks[n] = e.getValue() ? lock.writeLock() : lock.readLock();
+			locks[n++].lock();
+		}
+		return new Held(locks);
+	}
+
+	private int stripe(String path) {
+		int h = path.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % stripes.length;
+	}
+}
@@ -0,0 +1,415 @@
+package com.chunkserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.client.Frame;
+import com.client.FrameConnection;
+
+/**
+ * Append-only log of the namespace mutations of the master, replayed on startup to rebuild
+ * the namespace. A record is the frame of the mutation, encoded like the master's requests,
+ * with the CRC32 of its body in place of the request id; a record torn by a crash ends the
+ * replay and is cut off.
+ * Operations append their record in memory while they hold their namespace locks, so the
+ * records of conflicting operations are in the order the operations ran. One flusher thread
+ * writes whatever has accumulated and forces it to disk with one fsync, and every operation
+ * waiting on one of those records completes at once: under load many mutations share an
+ * fsync (group commit).
+ * The log is a sequence of numbered segment files. A checkpoint seals the current segment
+ * (roll) and replaces it and every segment before it, see ChunkServerMaster.checkpoint;
+ * a restarted master loads the checkpoint and replays the segments after it.
+ */
+public class OperationLog implements Closeable {
+	// segment n of the log is operations.n.log
+	public static final String SegmentPrefix = "operations.";
+	public static final String SegmentSuffix = ".log";
+
+	// length, opcode and checksum in place of the request id
+	private static final int RecordHeaderSize = 4 + Frame.HeaderSize;
+
+	private final File dir;
+	// the segment records are written to, replaced by the flusher when the log rolls
+	private FileChannel channel;
+	private long segment;
+	private long segmentBytes;
+	private boolean rollRequested;
+
+	// records appended since the flusher last took them, and the buffer it writes from
+	private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+	private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+
+	// sequence numbers of the last record appended and of the last one on disk, guarded by the log
+	private long appended;
+	private long durable;
+	private long syncs;
+	private boolean closed;
+
+	// completions of operations waiting for their record to be on disk, lowest sequence number first
+	private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+
+	// last record each thread appended, see takeAppended
+	private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+
+	private final Thread flusher;
+
+	private static class Waiter implements Comparable<Waiter> {
+		final long seq;
+		final Runnable action;
+
+		Waiter(long seq, Runnable action) {
+			this.seq = seq;
+			this.action = action;
+		}
+
+		public int compareTo(Waiter other) {
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	private OperationLog(File dir, long segment) throws IOException {
+		this.dir = dir;
+		this.segment = segment;
+		this.channel = create(dir, segment);
+		this.flusher = new Thread(this::flushLoop, "master-log-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Replay the records of every segment after the checkpoint in order and open a new
+	 * segment for appending. A torn or corrupt record ends its segment, it and anything
+	 * after it are cut off. Segments up to the checkpoint are left over from a checkpoint
+	 * that was not cleaned up and are deleted.
+	 */
+	public static OperationLog open(File dir, long checkpoint, Consumer<Frame> replay) throws IOException {
+		long last = checkpoint;
+		for (long n : segments(dir)) {
+			if (n <= checkpoint) {
+				segmentFile(dir, n).delete();
+				continue;
+			}
+			try (FileChannel channel = FileChannel.open(segmentFile(dir, n).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long end = replay(channel, replay);
+				if (end < channel.size()) {
+					System.out.println("Error (OperationLog), cutting off a torn record at byte " + end + " of " + segmentFile(dir, n));
+					channel.truncate(end);
+					channel.force(true);
+				}
+			}
+			last = n;
+		}
+		return new OperationLog(dir, last + 1);
+	}
+
+	/**
+	 * Replay the records of the segments after from up to and including to, for building a checkpoint.
+	 */
+	public static void replay(File dir, long from, long to, Consumer<Frame> replay) throws IOException {
+		for (long n : segments(dir)) {
+			if (n <= from || n > to) continue;
+			try (FileChannel channel = FileChannel.open(segmentFile(dir, n).toPath(), StandardOpenOption.READ)) {
+				if (replay(channel, replay) < channel.size())
+					throw new IOException("Torn record in the sealed segment " + segmentFile(dir, n));
+			}
+		}
+	}
+
+	/**
+	 * Delete the segments up to and including the one, once a checkpoint holds them.
+	 */
+	public static void deleteSegments(File dir, long upTo) {
+		for (long n : segments(dir)) {
+			if (n <= upTo) segmentFile(dir, n).delete();
+		}
+	}
+
+	/**
+	 * True if every segment from first up to and including last is in the directory.
+	 */
+	public static boolean hasSegments(File dir, long first, long last) {
+		for (long n = first; n <= last; n++) {
+			if (!segmentFile(dir, n).exists()) return false;
+		}
+		return true;
+	}
+
+	// numbers of the segments in the directory, in order
+	static long[] segments(File dir) {
+		String[] names = dir.list();
+		if (names == null) return new long[0];
+		return Arrays.stream(names)
+			.filter(name -> name.startsWith(SegmentPrefix) && name.endsWith(SegmentSuffix))
+			.mapToLong(name -> {
+				try {
+					return Long.parseLong(name.substring(SegmentPrefix.length(), name.length() - SegmentSuffix.length()));
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			})
+			.filter(n -> n >= 0)
+			.sorted()
+			.toArray();
+	}
+
+	static File segmentFile(File dir, long n) {
+		return new File(dir, SegmentPrefix + n + SegmentSuffix);
+	}
+
+	// an empty segment, its directory entry on disk before records go to it
+	private static FileChannel create(File dir, long n) throws IOException {
+		FileChannel channel = FileChannel.open(segmentFile(dir, n).toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		syncDirectory(dir);
+		return channel;
+	}
+
+	/**
+	 * Force the entries of a directory to disk, where the platform can.
+	 */
+	public static void syncDirectory(File dir) {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not supported for directories on every platform
+		}
+	}
+
+	// apply the whole records in order, return the offset after the last one
+	private static long replay(FileChannel channel, Consumer<Frame> replay) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+		CRC32 crc = new CRC32();
+		// offset of the first record in the buffer, and of the end of what was read
+		long offset = 0;
+		long read = 0;
+		while (true) {
+			int n = channel.read(buffer, read);
+			if (n > 0) read += n;
+			buffer.flip();
+			while (buffer.remaining() >= RecordHeaderSize) {
+				int length = buffer.getInt(buffer.position());
+				if (length < Frame.HeaderSize || length > FrameConnection.MaxFrameSize) return offset;
+				if (buffer.remaining() < 4 + length) break;
+				crc.reset();
+				crc.update(buffer.array(), buffer.position() + RecordHeaderSize, length - Frame.HeaderSize);
+				if ((int) crc.getValue() != buffer.getInt(buffer.position() + 8)) return offset;
+				replay.accept(Frame.decode(buffer));
+				offset += 4 + length;
+			}
+			// the end of the file, a part of a record left over was torn
+			if (n <= 0) return offset;
+			buffer.compact();
+			if (!buffer.hasRemaining()) {
+				// a record larger than the buffer
+				ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+				buffer.flip();
+				grown.put(buffer);
+				buffer = grown;
+			}
+		}
+	}
+
+	/**
+	 * Add the record of a mutation to the log, return its sequence number.
+	 * The caller holds the namespace locks of the mutation.
+	 */
+	public long append(Frame record) {
+		ByteBuffer wire = record.encode();
+		CRC32 crc = new CRC32();
+		crc.update(wire.array(), RecordHeaderSize, wire.limit() - RecordHeaderSize);
+		wire.putInt(8, (int) crc.getValue());
+
+		long seq;
+		synchronized (this) {
+			if (pending.remaining() < wire.remaining()) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + wire.remaining()));
+				pending.flip();
+				grown.put(pending);
+				pending = grown;
+			}
+			pending.put(wire);
+			seq = ++appended;
+			// the flusher may be idle
+			notifyAll();
+		}
+		lastAppended.get()[0] = seq;
+		return seq;
+	}
+
+	/**
+	 * The sequence number of the last record appended by any thread, 0 if none.
+	 */
+	public synchronized long lastAppended() {
+		return appended;
+	}
+
+	/**
+	 * The sequence number of the last record the calling thread appended since it last asked, 0 if none.
+	 */
+	public long takeAppended() {
+		long[] last = lastAppended.get();
+		long seq = last[0];
+		last[0] = 0;
+		return seq;
+	}
+
+	/**
+	 * Wait until the record is on disk.
+	 */
+	public synchronized void await(long seq) {
+		while (durable < seq) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Run the action once the record is on disk, right away if it is already; for callers that
+	 * should not block, like the workers of MasterEventLoop. The action runs on the flusher thread.
+	 */
+	public void whenDurable(long seq, Runnable action) {
+		synchronized (this) {
+			if (durable < seq) {
+				waiters.add(new Waiter(seq, action));
+				return;
+			}
+		}
+		action.run();
+	}
+
+	/**
+	 * Seal the current segment and return its number, records appended from now on go to the next one.
+	 */
+	public synchronized long roll() {
+		long sealed = segment;
+		rollRequested = true;
+		notifyAll();
+		while (segment == sealed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return sealed;
+	}
+
+	/**
+	 * Bytes written to the current segment, see ChunkServerMaster.CheckpointBytes.
+	 */
+	public synchronized long getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	// write and force what has accumulated while the last batch was being forced, start a new segment when asked
+	private void flushLoop() {
+		List<Runnable> done = new ArrayList<Runnable>();
+		while (true) {
+			long upTo;
+			boolean roll;
+			synchronized (this) {
+				while (pending.position() == 0 && !rollRequested && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pending.position() == 0 && !rollRequested) return;
+				ByteBuffer swap = writing;
+				writing = pending;
+				pending = swap;
+				upTo = appended;
+				roll = rollRequested;
+				rollRequested = false;
+			}
+
+			writing.flip();
+			int bytes = writing.remaining();
+			try {
+				if (bytes > 0) {
+					while (writing.hasRemaining()) {
+						channel.write(writing);
+					}
+					channel.force(false);
+				}
+				if (roll) {
+					FileChannel next = create(dir, segment + 1);
+					channel.close();
+					channel = next;
+				}
+			} catch (IOException e) {
+				// the mutations already ran in memory and cannot be acknowledged, as in GFS the master stops
+				System.out.println("ERR: Failed to write the operation log, the master stops!");
+				e.printStackTrace();
+				Runtime.getRuntime().halt(1);
+			}
+			writing.clear();
+
+			synchronized (this) {
+				durable = upTo;
+				if (bytes > 0) syncs++;
+				segmentBytes += bytes;
+				if (roll) {
+					segment++;
+					segmentBytes = 0;
+				}
+				notifyAll();
+				while (!waiters.isEmpty() && waiters.peek().seq <= upTo) {
+					done.add(waiters.poll().action);
+				}
+			}
+			for (Runnable action : done) {
+				action.run();
+			}
+			done.clear();
+		}
+	}
+
+	/**
+	 * Number of records appended so far.
+	 */
+	public synchronized long getRecords() {
+		return appended;
+	}
+
+	/**
+	 * Number of fsyncs so far; records per fsync is the size of the average commit group.
+	 */
+	public synchronized long getSyncs() {
+		return syncs;
+	}
+
+	/**
+	 * Force what is appended and close the file.
+	 */
+	public void close() throws IOException {
+		long last;
+		synchronized (this) {
+			closed = true;
+			last = appended;
+			notifyAll();
+		}
+		await(last);
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+}
@@ -0,0 +1,711 @@
+package com.chunkserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.interfaces.ChunkServerInterface;
+import com.interfaces.ChunkStore;
+
+/**
+ * Chunk storage that packs many chunks into large append-only segment files
+ * instead of keeping one OS file per chunk.
+ *
+ * Every chunk occupies a slot: a 64 byte header (live flag, chunk length, chunk handle)
+ * followed by the chunk bytes. New chunks are appended to the active segment and updated
+ * in place afterwards. An in-memory index maps each chunk handle to its slot and is
+ * checkpointed to segments.idx; on startup the checkpoint is loaded and only the part of
+ * each segment written after the checkpoint is scanned. Deletes and renames change slots in
+ * place and also append a record slot describing the change, so the scan also sees changes
+ * to chunks the checkpoint still lists. Freed slots are reclaimed by copying the live chunks
+ * of a mostly dead segment forward and deleting the segment, on a background thread that
+ * only locks the store to reserve the new slots and to swap the index entries.
+ */
+public class SegmentChunkStore implements ChunkStore {
+	public static final int SegmentSize = Integer.getInteger("tinyfs.segmentsize", 64 * 1024 * 1024);
+
+	static final String SegmentPrefix = "segment.";
+	static final String IndexFile = "segments.idx";
+	static final int SlotHeaderSize = 64;
+	static final int MaxHandleLength = SlotHeaderSize - 10;
+	static final int IndexMagic = 0x54465349;	// "TFSI"
+
+	// first int of a slot header: a freed slot, a chunk, or a record of a delete or rename
+	static final int FreeSlot = 0;
+	static final int LiveSlot = 1;
+	static final int DeleteRecord = 2;
+	static final int RenameRecord = 3;
+
+	// checkpoint the index after this many new chunks and deletes to bound the startup scan
+	static final int CheckpointInterval = 1024;
+	// compact a segment once this fraction of its bytes belongs to freed chunks
+	static final double CompactionThreshold = 0.5;
+	// and at least this many, so a small segment is not copied again after every delete
+	public static final long MinCompactionBytes = Long.getLong("tinyfs.compactionbytes", SegmentSize / 4);
+	// passes of a compaction that copy without the lock, the chunks written meanwhile are moved with it
+	static final int CompactionPasses = 3;
+
+	private static class Location {
+		final int segment;
+		final long offset;	// offset of the slot header
+		final int length;	// chunk length, excluding the header
+
+		Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final String directory;
+	private final Map<String, Location> index = new HashMap<String, Location>();
+	private final TreeMap<Integer, FileChannel> segments = new TreeMap<Integer, FileChannel>();
+	private final Map<Integer, Long> deadBytes = new HashMap<Integer, Long>();
+
+	private int activeSegment = -1;
+	private long activeEnd = 0;
+	private int changesSinceCheckpoint = 0;
+
+	// segments waiting for the compactor, the one it copies and the chunks written there meanwhile
+	private final Set<Integer> scheduled = new HashSet<Integer>();
+	private int compacting = -1;
+	private final Set<String> rewritten = new HashSet<String>();
+	private boolean closed = false;
+
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "segment-compactor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public SegmentChunkStore(String directory) throws IOException {
+		this.directory = directory;
+		recover();
+	}
+
+	/**
+	 * Return true if the chunk is stored in a segment.
+	 */
+	public synchronized boolean contains(String chunkHandle) {
+		return index.containsKey(chunkHandle);
+	}
+
+	public synchronized void createChunk(String chunkHandle, byte[] image) throws IOException {
+		Location loc = index.get(chunkHandle);
+		if (loc == null || loc.length != image.length) {
+			loc = allocate(chunkHandle, image.length);
+		} else if (loc.segment == compacting) {
+			rewritten.add(chunkHandle);
+		}
+		writeFully(segments.get(loc.segment), ByteBuffer.wrap(image), loc.offset + SlotHeaderSize);
+	}
+
+	/**
+	 * Write the payload at the offset of the chunk.
+	 * If the chunk does not exist then a zero filled chunk is allocated first.
+	 */
+	public synchronized boolean writeChunk(String chunkHandle, byte[] payload, int offset) throws IOException {
+		Location loc = index.get(chunkHandle);
+		if (loc == null) {
+			loc = allocate(chunkHandle, Math.max(ChunkServerInterface.DefaultChunkSize, offset + payload.length));
+		}
+		if (offset < 0 || offset + payload.length > loc.length) {
+			return false;
+		}
+		if (loc.segment == compacting) {
+			rewritten.add(chunkHandle);
+		}
+		writeFully(segments.get(loc.segment), ByteBuffer.wrap(payload), loc.offset + SlotHeaderSize + offset);
+		return true;
+	}
+
+	/**
+	 * Bytes past the end of the chunk are returned as zeros.
+	 */
+	public synchronized byte[] readChunk(String chunkHandle, int offset, int NumberOfBytes) throws IOException {
+		Location loc = index.get(chunkHandle);
+		if (loc == null) return null;
+
+		byte[] data = new byte[NumberOfBytes];
+		int length = Math.max(0, Math.min(NumberOfBytes, loc.length - offset));
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+		FileChannel channel = segments.get(loc.segment);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, loc.offset + SlotHeaderSize + offset + buffer.position()) == -1)
+				break;
+		}
+		return data;
+	}
+
+	/**
+	 * The chunk bytes go from the segment file to the socket with transferTo. The store is only
+	 * locked to look up the slot; a compaction that moves the chunk meanwhile closes the old
+	 * segment and the rest is sent from the new slot.
+	 */
+	public boolean transferChunk(String chunkHandle, int offset, int NumberOfBytes, ByteBuffer head, WritableByteChannel target) throws IOException {
+		long sent = 0;
+		int length;
+		while (true) {
+			FileChannel channel;
+			long start;
+			synchronized (this) {
+				Location loc = index.get(chunkHandle);
+				if (loc == null) {
+					if (head.position() == 0) return false;
+					throw new IOException("Chunk " + chunkHandle + " was deleted while it was sent");
+				}
+				channel = segments.get(loc.segment);
+				start = loc.offset + SlotHeaderSize + offset;
+				length = Math.max(0, Math.min(NumberOfBytes, loc.length - offset));
+			}
+			FileChunkStore.writeFully(target, head);
+			if (sent < length)
+				sent += FileChunkStore.transferFully(channel, start + sent, length - sent, target);
+			if (sent >= length || channel.isOpen()) break;
+		}
+		FileChunkStore.writeZeros(target, NumberOfBytes - sent);
+		return true;
+	}
+
+	public synchronized int chunkLength(String chunkHandle) {
+		Location loc = index.get(chunkHandle);
+		return loc == null ? -1 : loc.length;
+	}
+
+	/**
+	 * Release the slot of the chunk and have its segment compacted once it is mostly dead.
+	 */
+	public synchronized boolean deleteChunk(String chunkHandle) throws IOException {
+		Location loc = index.remove(chunkHandle);
+		if (loc == null) return false;
+
+		// clear the live flag so a scan of the segment skips the slot
+		writeFully(segments.get(loc.segment), ByteBuffer.wrap(new byte[4]), loc.offset);
+		long dead = deadBytes.getOrDefault(loc.segment, 0L) + SlotHeaderSize + loc.length;
+		deadBytes.put(loc.segment, dead);
+		// the checkpoint may still list the chunk, the record drops it again on recovery
+		appendRecord(DeleteRecord, chunkHandle, new byte[0]);
+
+		if (dead >= MinCompactionBytes && dead > CompactionThreshold * segments.get(loc.segment).size()) {
+			schedule(loc.segment);
+		}
+		return true;
+	}
+
+	/**
+	 * Rename by rewriting the handle in the slot header and updating the index. A rename record
+	 * is appended as well, the slot may lie before the end of the checkpoint that still has the
+	 * chunk under its old handle.
+	 */
+	public synchronized boolean renameChunk(String from, String to) throws IOException {
+		byte[] handleBytes = to.getBytes();
+		if (handleBytes.length > MaxHandleLength) {
+			throw new IOException("Chunk handle " + to + " is too long for a segment slot.");
+		}
+		Location loc = index.remove(from);
+		if (loc == null) return false;
+
+		ByteBuffer handle = ByteBuffer.allocate(SlotHeaderSize - 8);
+		handle.putShort((short) handleBytes.length);
+		handle.put(handleBytes);
+		handle.clear();
+		writeFully(segments.get(loc.segment), handle, loc.offset + 8);
+
+		Location old = index.put(to, loc);
+		if (old != null) {
+			writeFully(segments.get(old.segment), ByteBuffer.wrap(new byte[4]), old.offset);
+			deadBytes.put(old.segment, deadBytes.getOrDefault(old.segment, 0L) + SlotHeaderSize + old.length);
+		}
+
+		// record: <segment - offset - length - old handle> of the slot the chunk now has under to
+		byte[] fromBytes = from.getBytes();
+		ByteBuffer record = ByteBuffer.allocate(16 + fromBytes.length);
+		record.putInt(loc.segment).putLong(loc.offset).putInt(loc.length).put(fromBytes);
+		appendRecord(RenameRecord, to, record.array());
+		return true;
+	}
+
+	// compact the segment on the compactor thread unless it is queued already
+	private void schedule(final int segment) {
+		if (closed || !scheduled.add(segment)) return;
+		compactor.execute(() -> {
+			synchronized (this) {
+				scheduled.remove(segment);
+			}
+			try {
+				compact(segment);
+			} catch (IOException e) {
+				System.out.println("Error (SegmentChunkStore): Failed to compact segment " + segment + ".");
+				e.printStackTrace();
+			}
+		});
+	}
+
+	// a live chunk of a compacted segment and the slot its copy goes to
+	private static class Copy {
+		final String chunkHandle;
+		final Location from;
+		final Location to;
+		final FileChannel target;
+
+		Copy(String chunkHandle, Location from, Location to, FileChannel target) {
+			this.chunkHandle = chunkHandle;
+			this.from = from;
+			this.to = to;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * Copy the live chunks of the segment to the active segment and delete it.
+	 * The store is locked to reserve free slots for the copies and later to make them live and
+	 * swap the index entries; the chunks are copied in between. A chunk written, moved or deleted
+	 * while it is copied keeps its slot and is copied again by the next pass. The few chunks that
+	 * are still written during the last pass are moved with the store locked.
+	 */
+	public void compact(int segment) throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			channel = segments.get(segment);
+			if (channel == null || closed) return;
+			if (segment == activeSegment) {
+				roll();
+			}
+			compacting = segment;
+		}
+		try {
+			for (int pass = 0; pass < CompactionPasses; pass++) {
+				List<Copy> copies = new ArrayList<Copy>();
+				synchronized (this) {
+					if (closed) return;
+					rewritten.clear();
+					for (Map.Entry<String, Location> e : index.entrySet()) {
+						Location from = e.getValue();
+						if (from.segment != segment) continue;
+						Location to = reserve(e.getKey(), from.length);
+						copies.add(new Copy(e.getKey(), from, to, segments.get(to.segment)));
+					}
+				}
+				if (copies.isEmpty()) break;
+
+				Map<FileChannel, Boolean> targets = new IdentityHashMap<FileChannel, Boolean>();
+				for (Copy copy : copies) {
+					ByteBuffer image = ByteBuffer.allocate(copy.from.length);
+					while (image.hasRemaining()) {
+						if (channel.read(image, copy.from.offset + SlotHeaderSize + image.position()) == -1)
+							break;
+					}
+					image.clear();
+					writeFully(copy.target, image, copy.to.offset + SlotHeaderSize);
+					targets.put(copy.target, Boolean.TRUE);
+				}
+				// the copies are durable before they become live
+				for (FileChannel target : targets.keySet()) {
+					target.force(false);
+				}
+
+				synchronized (this) {
+					for (Copy copy : copies) {
+						if (index.get(copy.chunkHandle) == copy.from && !rewritten.contains(copy.chunkHandle)) {
+							writeFully(copy.target, ByteBuffer.allocate(4).putInt(0, LiveSlot), copy.to.offset);
+							index.put(copy.chunkHandle, copy.to);
+						} else {
+							deadBytes.put(copy.to.segment, deadBytes.getOrDefault(copy.to.segment, 0L) + SlotHeaderSize + copy.to.length);
+						}
+					}
+					// the scan after a crash may start past the copies, the checkpoint lists them
+					checkpoint();
+				}
+			}
+
+			synchronized (this) {
+				if (closed) return;
+				List<String> left = new ArrayList<String>();
+				for (Map.Entry<String, Location> e : index.entrySet()) {
+					if (e.getValue().segment == segment) left.add(e.getKey());
+				}
+				Set<Integer> targets = new HashSet<Integer>();
+				for (String chunkHandle : left) {
+					Location old = index.get(chunkHandle);
+					ByteBuffer image = ByteBuffer.allocate(old.length);
+					while (image.hasRemaining()) {
+						if (channel.read(image, old.offset + SlotHeaderSize + image.position()) == -1)
+							break;
+					}
+					Location loc = allocate(chunkHandle, old.length);
+					image.clear();
+					writeFully(segments.get(loc.segment), image, loc.offset + SlotHeaderSize);
+					targets.add(loc.segment);
+				}
+				if (!left.isEmpty()) {
+					// make the new locations durable before the old copies disappear
+					for (Integer target : targets) {
+						segments.get(target).force(false);
+					}
+					checkpoint();
+				}
+				segments.remove(segment);
+				deadBytes.remove(segment);
+				channel.close();
+				Files.deleteIfExists(Paths.get(directory + SegmentPrefix + segment));
+			}
+		} finally {
+			synchronized (this) {
+				compacting = -1;
+				rewritten.clear();
+			}
+		}
+	}
+
+	/**
+	 * Compact every segment whose dead part is above the thresholds.
+	 */
+	public void compact() throws IOException {
+		List<Integer> due = new ArrayList<Integer>();
+		synchronized (this) {
+			for (Map.Entry<Integer, Long> e : deadBytes.entrySet()) {
+				FileChannel channel = segments.get(e.getKey());
+				if (channel != null && e.getValue() >= MinCompactionBytes && e.getValue() > CompactionThreshold * channel.size()) {
+					due.add(e.getKey());
+				}
+			}
+		}
+		for (Integer segment : due) {
+			compact(segment);
+		}
+	}
+
+	public synchronized long highestHandle() {
+		long highest = 0;
+		for (String chunkHandle : index.keySet()) {
+			try {
+				highest = Math.max(highest, Long.parseLong(chunkHandle));
+			} catch (NumberFormatException e) {
+				// not a counter handle
+			}
+		}
+		return highest;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Write the index and the per segment bookkeeping to segments.idx.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		File tmp = new File(directory + IndexFile + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(IndexMagic);
+			out.writeInt(segments.size());
+			for (Map.Entry<Integer, FileChannel> e : segments.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeLong(e.getKey() == activeSegment ? activeEnd : e.getValue().size());
+				out.writeLong(deadBytes.getOrDefault(e.getKey(), 0L));
+			}
+			out.writeInt(index.size());
+			for (Map.Entry<String, Location> e : index.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeInt(e.getValue().segment);
+				out.writeLong(e.getValue().offset);
+				out.writeInt(e.getValue().length);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), Paths.get(directory + IndexFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		changesSinceCheckpoint = 0;
+	}
+
+	/**
+	 * Let a running compaction finish, then checkpoint the index and close the segments.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+		}
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			checkpoint();
+			for (FileChannel channel : segments.values()) {
+				channel.close();
+			}
+			segments.clear();
+		}
+	}
+
+	/**
+	 ***********
+	 * Slots *
+	 *********
+	 */
+
+	private Location allocate(String chunkHandle, int length) throws IOException {
+		byte[] handleBytes = chunkHandle.getBytes();
+		if (handleBytes.length > MaxHandleLength) {
+			throw new IOException("Chunk handle " + chunkHandle + " is too long for a segment slot.");
+		}
+		long offset = appendSlot(LiveSlot, handleBytes, length, null);
+
+		Location loc = new Location(activeSegment, offset, length);
+		Location old = index.put(chunkHandle, loc);
+		if (old != null) {
+			// the chunk moved, its old slot is dead
+			writeFully(segments.get(old.segment), ByteBuffer.wrap(new byte[4]), old.offset);
+			deadBytes.put(old.segment, deadBytes.getOrDefault(old.segment, 0L) + SlotHeaderSize + old.length);
+		}
+
+		if (++changesSinceCheckpoint >= CheckpointInterval) {
+			checkpoint();
+		}
+		return loc;
+	}
+
+	/**
+	 * Append a slot that only records a change of the index for the scan after a crash;
+	 * it holds no chunk and is dead from the start.
+	 */
+	private void appendRecord(int kind, String chunkHandle, byte[] body) throws IOException {
+		appendSlot(kind, chunkHandle.getBytes(), body.length, body);
+		deadBytes.put(activeSegment, deadBytes.getOrDefault(activeSegment, 0L) + SlotHeaderSize + body.length);
+
+		if (++changesSinceCheckpoint >= CheckpointInterval) {
+			checkpoint();
+		}
+	}
+
+	// append a slot to the active segment and return its offset, the body is zero filled if null
+	private long appendSlot(int kind, byte[] handleBytes, int length, byte[] body) throws IOException {
+		return appendSlot(kind, handleBytes, length, body, SlotHeaderSize + length);
+	}
+
+	// append a free slot with only its header written, compaction copies a chunk into it
+	private Location reserve(String chunkHandle, int length) throws IOException {
+		long offset = appendSlot(FreeSlot, chunkHandle.getBytes(), length, null, SlotHeaderSize);
+		return new Location(activeSegment, offset, length);
+	}
+
+	private long appendSlot(int kind, byte[] handleBytes, int length, byte[] body, int written) throws IOException {
+		if (activeSegment == -1 || (activeEnd > 0 && activeEnd + SlotHeaderSize + length > SegmentSize)) {
+			roll();
+		}
+
+		// a slot is written in one go: header followed by the body
+		ByteBuffer slot = ByteBuffer.allocate(written);
+		slot.putInt(kind);
+		slot.putInt(length);
+		slot.putShort((short) handleBytes.length);
+		slot.put(handleBytes);
+		if (body != null) {
+			slot.position(SlotHeaderSize);
+			slot.put(body);
+		}
+		slot.clear();
+		long offset = activeEnd;
+		writeFully(segments.get(activeSegment), slot, offset);
+		activeEnd += SlotHeaderSize + length;
+		return offset;
+	}
+
+	private void roll() throws IOException {
+		int next = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		segments.put(next, openSegment(next));
+		activeSegment = next;
+		activeEnd = 0;
+	}
+
+	private FileChannel openSegment(int segment) throws IOException {
+		return FileChannel.open(Paths.get(directory + SegmentPrefix + segment),
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long start = position - buffer.position();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, start + buffer.position());
+		}
+	}
+
+	/**
+	 ***************
+	 * Recovery *
+	 *************
+	 */
+
+	private void recover() throws IOException {
+		File[] files = new File(directory).listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (!f.getName().startsWith(SegmentPrefix)) continue;
+				try {
+					int segment = Integer.parseInt(f.getName().substring(SegmentPrefix.length()));
+					segments.put(segment, openSegment(segment));
+				} catch (NumberFormatException e) {
+					// not a segment file
+				}
+			}
+		}
+
+		// load the checkpoint, then scan whatever was appended after it
+		Map<Integer, Long> scanned = loadCheckpoint();
+		for (Map.Entry<Integer, FileChannel> e : segments.entrySet()) {
+			Long from = scanned.get(e.getKey());
+			scan(e.getKey(), e.getValue(), from == null ? 0 : from);
+		}
+
+		if (!segments.isEmpty()) {
+			activeSegment = segments.lastKey();
+		}
+		// the records just replayed may sit in a segment deleted below
+		checkpoint();
+
+		// segments left without live chunks are leftovers of an interrupted compaction
+		for (Integer segment : new ArrayList<Integer>(segments.keySet())) {
+			if (segment.equals(segments.lastKey())) continue;
+			boolean referenced = false;
+			for (Location loc : index.values()) {
+				if (loc.segment == segment) {
+					referenced = true;
+					break;
+				}
+			}
+			if (!referenced) {
+				segments.remove(segment).close();
+				deadBytes.remove(segment);
+				Files.deleteIfExists(Paths.get(directory + SegmentPrefix + segment));
+			}
+		}
+	}
+
+	private Map<Integer, Long> loadCheckpoint() throws IOException {
+		Map<Integer, Long> scanned = new HashMap<Integer, Long>();
+		File f = new File(directory + IndexFile);
+		if (!f.exists()) return scanned;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != IndexMagic) {
+				System.out.println("Error (SegmentChunkStore): " + IndexFile + " is not a segment index, rebuilding it.");
+				return scanned;
+			}
+			int numSegments = in.readInt();
+			for (int i = 0; i < numSegments; i++) {
+				int segment = in.readInt();
+				long length = in.readLong();
+				long dead = in.readLong();
+				if (segments.containsKey(segment)) {
+					scanned.put(segment, length);
+					deadBytes.put(segment, dead);
+				}
+			}
+			int numEntries = in.readInt();
+			for (int i = 0; i < numEntries; i++) {
+				String chunkHandle = in.readUTF();
+				Location loc = new Location(in.readInt(), in.readLong(), in.readInt());
+				if (segments.containsKey(loc.segment)) {
+					index.put(chunkHandle, loc);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return scanned;
+	}
+
+	private void scan(int segment, FileChannel channel, long position) throws IOException {
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(SlotHeaderSize);
+		while (position + SlotHeaderSize <= size) {
+			header.clear();
+			while (header.hasRemaining()) {
+				if (channel.read(header, position + header.position()) == -1)
+					break;
+			}
+			header.flip();
+			int kind = header.getInt();
+			int length = header.getInt();
+			int handleLength = header.getShort();
+			if (length < 0 || (length == 0 && kind != DeleteRecord) || handleLength <= 0 || handleLength > MaxHandleLength || position + SlotHeaderSize + length > size) {
+				// torn slot at the end of the segment
+				break;
+			}
+			byte[] handleBytes = new byte[handleLength];
+			header.get(handleBytes);
+			String chunkHandle = new String(handleBytes);
+			if (kind == LiveSlot) {
+				index.put(chunkHandle, new Location(segment, position, length));
+			} else {
+				if (kind == RenameRecord) {
+					ByteBuffer record = ByteBuffer.allocate(length);
+					while (record.hasRemaining()) {
+						if (channel.read(record, position + SlotHeaderSize + record.position()) == -1)
+							break;
+					}
+					record.flip();
+					replayRename(chunkHandle, record);
+				} else if (kind == DeleteRecord) {
+					Location deleted = index.remove(chunkHandle);
+					if (deleted != null) {
+						deadBytes.put(deleted.segment, deadBytes.getOrDefault(deleted.segment, 0L) + SlotHeaderSize + deleted.length);
+					}
+				}
+				deadBytes.put(segment, deadBytes.getOrDefault(segment, 0L) + SlotHeaderSize + length);
+			}
+			position += SlotHeaderSize + length;
+		}
+		if (segment == segments.lastKey()) {
+			activeEnd = position;
+		}
+	}
+
+	// move the slot of a rename record to its new handle, the old handle only if it still names that slot
+	private void replayRename(String to, ByteBuffer record) {
+		Location loc = new Location(record.getInt(), record.getLong(), record.getInt());
+		byte[] fromBytes = new byte[record.remaining()];
+		record.get(fromBytes);
+		String from = new String(fromBytes);
+		if (!segments.containsKey(loc.segment)) return;
+
+		Location current = index.get(from);
+		if (current != null && current.segment == loc.segment && current.offset == loc.offset) {
+			index.remove(from);
+		}
+		Location old = index.put(to, loc);
+		if (old != null && (old.segment != loc.segment || old.offset != loc.offset)) {
+			deadBytes.put(old.segment, deadBytes.getOrDefault(old.segment, 0L) + SlotHeaderSize + old.length);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Independent requests for one endpoint sent together in a single BATCH_COMMAND frame.
+ * The server executes them in the order they were added and answers with all their
+ * replies in one frame, so a burst of small requests costs one round trip.
+ * Sub-requests are built like any request, e.g. new Frame(ClientFS.CREATE_DIR_COMMAND)
+ * with its fields, and their replies are decoded the same way.
+ */
+public class Batch {
+	private final List<Frame> requests = new ArrayList<Frame>();
+
+	/**
+	 * Add the request and return the index of its reply.
+	 */
+	public int add(Frame request) {
+		requests.add(request);
+		return requests.size() - 1;
+	}
+
+	public int size() {
+		return requests.size();
+	}
+
+	/**
+	 * Send the batch on a connection of the pool and return the replies in request order.
+	 */
+	public Frame[] call(ConnectionPool pool) throws IOException {
+		return replies(pool.call(envelope(), new Frame(0)));
+	}
+
+	/**
+	 * Send a batch of requests on the chunk on the connection the pool routes the chunk to,
+	 * so it runs in order with the other requests on the chunk, see ConnectionPool.submit.
+	 */
+	public Frame[] call(ConnectionPool pool, String chunk) throws IOException {
+		return replies(pool.call(chunk, envelope(), new Frame(0)));
+	}
+
+	/**
+	 * Send the batch without waiting, the future holds the replies in request order.
+	 */
+	public CompletableFuture<Frame[]> submit(ConnectionPool pool) {
+		return pool.submit(envelope(), new Frame(0)).thenApply(Batch::replies);
+	}
+
+	public CompletableFuture<Frame[]> submit(ConnectionPool pool, String chunk) {
+		return pool.submit(chunk, envelope(), new Frame(0)).thenApply(Batch::replies);
+	}
+
+	// <n - <length - opcode - body>*>
+	private Frame envelope() {
+		Frame envelope = new Frame(FrameConnection.BATCH_COMMAND).putInt(requests.size());
+		for (Frame request : requests) {
+			envelope.putFrame(request);
+		}
+		return envelope;
+	}
+
+	private static Frame[] replies(Frame envelope) {
+		Frame[] replies = new Frame[envelope.getInt()];
+		for (int i = 0; i < replies.length; i++) {
+			replies[i] = envelope.getFrame(new Frame(0));
+		}
+		return replies;
+	}
+}
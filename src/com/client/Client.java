@@ -1,187 +1,310 @@
 package com.client;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import com.chunkserver.ChunkServer;
 import com.interfaces.ClientInterface;
 
 /**
  * implementation of interfaces at the client side
+ * Every call has an Async variant that returns as soon as the request is sent; the
+ * requests are pipelined on the one connection and the future completes when the
+ * reply arrives, or fails with the IOException that broke the connection.
  * @author Shahram Ghandeharizadeh
  *
  */
 public class Client implements ClientInterface {
-	static int ServerPort = 0;
-	static Socket ClientSocket;
-	static ObjectOutputStream WriteOutput;
-	static ObjectInputStream ReadInput;
-	
-	public static byte[] RecvPayload(String caller, ObjectInputStream instream, int sz){
-		byte[] tmpbuf = new byte[sz];
-		byte[] InputBuff = new byte[sz];
-		int ReadBytes = 0;
-		while (ReadBytes != sz){
-			int cntr=-1;
+	// every client and thread shares the connection pool of the chunk server
+	static ConnectionPool Connection;
+
+	/**
+	 * Initialize the client  FileNotFoundException
+	 */
+	public Client(){
+		if (Connection != null) return; //The client is already connected
+		synchronized (Client.class) {
+			if (Connection != null) return;
 			try {
-				cntr = instream.read( tmpbuf, 0, (sz-ReadBytes) );
-				for (int j=0; j < cntr; j++){
-					InputBuff[ReadBytes+j]=tmpbuf[j];
-				}
-			} catch (IOException e) {
-				System.out.println("Error in RecvPayload ("+caller+"), failed to read "+sz+" after reading "+ReadBytes+" bytes.");
-				return null;
-			}
-			if (cntr == -1) {
-				System.out.println("Error in RecvPayload ("+caller+"), failed to read "+sz+" bytes.");
-				return null;
+				ConnectionPool pool = ConnectionPool.of(ChunkServer.ClientConfigFile);
+				pool.get();
+				Connection = pool;
+			}catch (FileNotFoundException e) {
+				System.out.println("Error (Client), the config file "+ ChunkServer.ClientConfigFile +" containing the port of the ChunkServer is missing.");
+			}catch (IOException e) {
+				System.out.println("Can't find file.");
 			}
-			else ReadBytes += cntr;
 		}
-		return InputBuff;
-	}
-	
-	public static int ReadIntFromInputStream(String caller, ObjectInputStream instream){
-		int PayloadSize = -1;
-		
-		byte[] InputBuff = RecvPayload(caller, instream, 4);
-		if (InputBuff != null)
-			PayloadSize = ByteBuffer.wrap(InputBuff).getInt();
-		return PayloadSize;
 	}
-	
+
 	/**
-	 * Initialize the client  FileNotFoundException
+	 * Send the request on the chunk to the chunk server and return its reply, null if the request failed.
+	 * The requests on a chunk run at the chunk server in the order they were sent, see ConnectionPool.submit.
 	 */
-	public Client(){
-		if (ClientSocket != null) return; //The client is already connected
+	static Frame call(String caller, String ChunkHandle, Frame request) {
 		try {
-			BufferedReader binput = new BufferedReader(new FileReader(ChunkServer.ClientConfigFile));
-			String port = binput.readLine();
-			port = port.substring( port.indexOf(':')+1 );
-			ServerPort = Integer.parseInt(port);
-			
-			ClientSocket = new Socket("127.0.0.1", ServerPort);
-			WriteOutput = new ObjectOutputStream(ClientSocket.getOutputStream());
-			ReadInput = new ObjectInputStream(ClientSocket.getInputStream());
-		}catch (FileNotFoundException e) {
-			System.out.println("Error (Client), the config file "+ ChunkServer.ClientConfigFile +" containing the port of the ChunkServer is missing.");
-		}catch (IOException e) {
-			System.out.println("Can't find file.");
+			if (ChunkHandle == null)
+				return Connection.call(request, Frame.pooledReply());
+			return Connection.call(ChunkHandle, request, Frame.pooledReply());
+		} catch (IOException e) {
+			System.out.println("Error in Client." + caller + ":  Request to the chunk server failed.");
+			e.printStackTrace();
 		}
+		return null;
+	}
+
+	/**
+	 * Send the request on the chunk to the chunk server without waiting, the reply gets a frame of its own.
+	 */
+	static CompletableFuture<Frame> submit(String ChunkHandle, Frame request) {
+		return Connection.submit(ChunkHandle, request, new Frame(0));
 	}
-	
+
 	/**
 	 * Create a chunk at the chunk server from the client side.
 	 */
 	public String createChunk() {
-		try {
-			WriteOutput.writeInt(ChunkServer.PayloadSZ + ChunkServer.CMDlength);
-			WriteOutput.writeInt(ChunkServer.CreateChunkCMD);
-			WriteOutput.flush();
-			
-			int ChunkHandleSize =  ReadIntFromInputStream("Client", ReadInput);
-			ChunkHandleSize -= ChunkServer.PayloadSZ;  //reduce the length by the first four bytes that identify the length
-			byte[] CHinBytes = RecvPayload("Client", ReadInput, ChunkHandleSize); 
-			return (new String(CHinBytes)).toString();
-		} catch (IOException e) {
-			System.out.println("Error in Client.createChunk:  Failed to create a chunk.");
-			e.printStackTrace();
-		} 
-		return null;
+		//without a handle the chunk server picks the next free one
+		Frame reply = call("createChunk", null, Frame.pooledRequest(ChunkServer.CreateChunkCMD));
+		return reply == null ? null : reply.getString();
 	}
-	
-	
+
+
 	/**
 	 * Create a chunk at the chunk server from the client side.
 	 */
 	public String createChunk(String chunkhandle) {
-		try {
-			byte [] chunkhandleBytes = chunkhandle.getBytes();
-			WriteOutput.writeInt(ChunkServer.PayloadSZ + ChunkServer.CMDlength + 4 + chunkhandleBytes.length);
-			WriteOutput.writeInt(ChunkServer.CreateChunkCMD);
-			WriteOutput.writeInt(chunkhandleBytes.length);
-			WriteOutput.write(chunkhandleBytes);
-			WriteOutput.flush();
-			int ChunkHandleSize =  ReadIntFromInputStream("Client", ReadInput);
-			byte[] CHinBytes = RecvPayload("Client", ReadInput, ChunkHandleSize); 
-			return (new String(CHinBytes)).toString();
-		} catch (IOException e) {
-			System.out.println("Error in Client.createChunk:  Failed to create a chunk.");
-			e.printStackTrace();
-		} 
-		return null;
+		return createChunk(chunkhandle, ChunkServer.DefaultChunkSize);
 	}
+
+	/**
+	 * Create a chunk of chunkSize bytes at the chunk server from the client side.
+	 */
+	public String createChunk(String chunkhandle, int chunkSize) {
+		Frame reply = call("createChunk", chunkhandle, createChunkRequest(chunkhandle, chunkSize));
+		return reply == null ? null : reply.getString();
+	}
+
+	public CompletableFuture<String> createChunkAsync(String chunkhandle, int chunkSize) {
+		return submit(chunkhandle, createChunkRequest(chunkhandle, chunkSize)).thenApply(Frame::getString);
+	}
+
+	private static Frame createChunkRequest(String chunkhandle, int chunkSize) {
+		return Frame.pooledRequest(ChunkServer.CreateChunkCMD)
+			.putString(chunkhandle)
+			.putInt(chunkSize);
+	}
+
 	/**
 	 * Write a chunk at the chunk server from the client side.
 	 */
 	public boolean writeChunk(String ChunkHandle, byte[] payload, int offset) {
-		if(offset + payload.length > ChunkServer.ChunkSize){
+		return writeChunk(ChunkHandle, payload, offset, ChunkServer.DefaultChunkSize);
+	}
+
+	/**
+	 * Write a chunk of chunkSize bytes at the chunk server from the client side.
+	 */
+	public boolean writeChunk(String ChunkHandle, byte[] payload, int offset, int chunkSize) {
+		if(offset + payload.length > chunkSize){
 			System.out.println("The chunk write should be within the range of the file, invalide chunk write!");
 			System.exit(0);
 			return false;
 		}
+		Frame reply = call("writeChunk", ChunkHandle, writeChunkRequest(ChunkHandle, payload, offset));
+		return reply != null && reply.getInt() == ChunkServer.TRUE;
+	}
+
+	/**
+	 * Write several pieces of a chunk of chunkSize bytes in one round trip, in order,
+	 * e.g. a record and then the header that points to it.
+	 * Return true if every write succeeded.
+	 */
+	public boolean writeChunks(String ChunkHandle, byte[][] payloads, int[] offsets, int chunkSize) {
+		Batch batch = new Batch();
+		for (int i = 0; i < payloads.length; i++) {
+			if(offsets[i] + payloads[i].length > chunkSize){
+				System.out.println("The chunk write should be within the range of the file, invalide chunk write!");
+				return false;
+			}
+			batch.add(new Frame(ChunkServer.WriteChunkCMD).putString(ChunkHandle).putInt(offsets[i]).putBlock(payloads[i]));
+		}
 		try {
-			byte[] CHinBytes = ChunkHandle.getBytes();
-			
-			WriteOutput.writeInt(ChunkServer.PayloadSZ + ChunkServer.CMDlength + (2*4) + payload.length + CHinBytes.length);
-			WriteOutput.writeInt(ChunkServer.WriteChunkCMD);
-			WriteOutput.writeInt(offset);
-			WriteOutput.writeInt(payload.length);
-			WriteOutput.write(payload);
-			WriteOutput.write(CHinBytes);
-			WriteOutput.flush();
-			
-			int result =  Client.ReadIntFromInputStream("Client", ReadInput);
-			if (result == ChunkServer.FALSE) return false;
+			for (Frame reply : batch.call(Connection, ChunkHandle)) {
+				if (reply.getInt() != ChunkServer.TRUE) return false;
+			}
 			return true;
 		} catch (IOException e) {
-			System.out.println("Error in Client.createChunk:  Failed to create a chunk.");
+			System.out.println("Error in Client.writeChunks:  Request to the chunk server failed.");
 			e.printStackTrace();
 		}
 		return false;
 	}
-	
+
+	public CompletableFuture<Boolean> writeChunkAsync(String ChunkHandle, byte[] payload, int offset, int chunkSize) {
+		if(offset + payload.length > chunkSize){
+			System.out.println("The chunk write should be within the range of the file, invalide chunk write!");
+			return CompletableFuture.completedFuture(false);
+		}
+		return submit(ChunkHandle, writeChunkRequest(ChunkHandle, payload, offset)).thenApply(reply -> reply.getInt() == ChunkServer.TRUE);
+	}
+
+	/**
+	 * Write length bytes of data starting at from to the chunk at offset without waiting.
+	 * The data array can be reused once the call returns.
+	 */
+	CompletableFuture<Boolean> writeChunkAsync(String ChunkHandle, byte[] data, int from, int length, int offset) {
+		Frame request = Frame.pooledRequest(ChunkServer.WriteChunkCMD)
+			.putString(ChunkHandle)
+			.putInt(offset)
+			.putBlock(data, from, length);
+		return submit(ChunkHandle, request).thenApply(reply -> reply.getInt() == ChunkServer.TRUE);
+	}
+
+	private static Frame writeChunkRequest(String ChunkHandle, byte[] payload, int offset) {
+		return Frame.pooledRequest(ChunkServer.WriteChunkCMD)
+			.putString(ChunkHandle)
+			.putInt(offset)
+			.putBlock(payload);
+	}
+
+	/**
+	 * Append a record to a chunk of chunkSize bytes at the chunk server in one round trip.
+	 * Return the slot number of the record, ChunkServer.ChunkFull if the chunk has no room
+	 * for it or ChunkServer.ChunkMissing if the append failed.
+	 */
+	public int appendRecord(String ChunkHandle, byte[] payload, int chunkSize) {
+		Frame reply = call("appendRecord", ChunkHandle, appendRecordRequest(ChunkHandle, payload, chunkSize));
+		return reply == null ? ChunkServer.ChunkMissing : reply.getInt();
+	}
+
+	public CompletableFuture<Integer> appendRecordAsync(String ChunkHandle, byte[] payload, int chunkSize) {
+		return submit(ChunkHandle, appendRecordRequest(ChunkHandle, payload, chunkSize)).thenApply(Frame::getInt);
+	}
+
+	private static Frame appendRecordRequest(String ChunkHandle, byte[] payload, int chunkSize) {
+		return Frame.pooledRequest(ChunkServer.AppendRecordCMD)
+			.putString(ChunkHandle)
+			.putInt(chunkSize)
+			.putBlock(payload);
+	}
+
+	/**
+	 * Read the live records of a chunk of chunkSize bytes in one round trip.
+	 * The scan starts at startSlot and goes forward or backward, see ChunkServer.scanChunk.
+	 * Return at most maxRecords records (0 for all of them), null if the chunk does not exist.
+	 */
+	public List<TinyRec> scanChunk(String ChunkHandle, int chunkSize, int startSlot, boolean forward, int maxRecords) {
+		Frame reply = call("scanChunk", ChunkHandle, scanChunkRequest(ChunkHandle, chunkSize, startSlot, forward, maxRecords));
+		return reply == null ? null : scanned(ChunkHandle, reply);
+	}
+
+	public CompletableFuture<List<TinyRec>> scanChunkAsync(String ChunkHandle, int chunkSize, int startSlot, boolean forward, int maxRecords) {
+		return submit(ChunkHandle, scanChunkRequest(ChunkHandle, chunkSize, startSlot, forward, maxRecords)).thenApply(reply -> scanned(ChunkHandle, reply));
+	}
+
+	private static Frame scanChunkRequest(String ChunkHandle, int chunkSize, int startSlot, boolean forward, int maxRecords) {
+		return Frame.pooledRequest(ChunkServer.ScanChunkCMD)
+			.putString(ChunkHandle)
+			.putInt(chunkSize)
+			.putInt(startSlot)
+			.putInt(forward ? ChunkServer.TRUE : ChunkServer.FALSE)
+			.putInt(maxRecords);
+	}
+
+	// decode the records of a scan reply, null if the chunk does not exist
+	private static List<TinyRec> scanned(String ChunkHandle, Frame reply) {
+		//reply: <count - <slot - payload>*>, count -1 if the chunk does not exist
+		int count = reply.getInt();
+		if (count == -1) return null;
+		List<TinyRec> records = new ArrayList<TinyRec>(count);
+		for (int i = 0; i < count; i++) {
+			TinyRec rec = new TinyRec();
+			rec.setRID(new RID(ChunkHandle, reply.getInt()));
+			rec.setPayload(reply.getBlock());
+			records.add(rec);
+		}
+		return records;
+	}
+
+	/**
+	 * Delete a chunk at the chunk server from the client side.
+	 */
+	public boolean deleteChunk(String ChunkHandle) {
+		Frame reply = call("deleteChunk", ChunkHandle, Frame.pooledRequest(ChunkServer.DeleteChunkCMD).putString(ChunkHandle));
+		return reply != null && reply.getInt() == ChunkServer.TRUE;
+	}
+
+	public CompletableFuture<Boolean> deleteChunkAsync(String ChunkHandle) {
+		return submit(ChunkHandle, Frame.pooledRequest(ChunkServer.DeleteChunkCMD).putString(ChunkHandle)).thenApply(reply -> reply.getInt() == ChunkServer.TRUE);
+	}
+
 	/**
 	 * Read a chunk at the chunk server from the client side.
 	 */
 	public byte[] readChunk(String ChunkHandle, int offset, int NumberOfBytes) {
-		if(NumberOfBytes + offset > ChunkServer.ChunkSize){
+		return readChunk(ChunkHandle, offset, NumberOfBytes, ChunkServer.DefaultChunkSize);
+	}
+
+	/**
+	 * Read a chunk of chunkSize bytes at the chunk server into the caller's array.
+	 * Return the number of bytes read, -1 if the chunk does not exist or the read failed.
+	 */
+	public int readChunk(String ChunkHandle, int offset, int NumberOfBytes, int chunkSize, byte[] into) {
+		if(NumberOfBytes + offset > chunkSize){
+			System.out.println("The chunk read should be within the range of the file, invalide chunk read!");
+			return -1;
+		}
+
+		Frame reply = call("readChunk", ChunkHandle, readChunkRequest(ChunkHandle, offset, NumberOfBytes));
+		return reply == null ? -1 : reply.getBlock(into, 0);
+	}
+
+	/**
+	 * Send a read of NumberOfBytes bytes of the chunk without waiting for the reply.
+	 * The reply frame holds the data block, null if the chunk does not exist, once the
+	 * future completes; the future fails if the connection to the chunk server broke.
+	 */
+	CompletableFuture<Frame> submitReadChunk(String ChunkHandle, int offset, int NumberOfBytes, Frame reply) {
+		return Connection.submit(ChunkHandle, readChunkRequest(ChunkHandle, offset, NumberOfBytes), reply);
+	}
+
+	/**
+	 * Read a chunk of chunkSize bytes at the chunk server from the client side.
+	 */
+	public byte[] readChunk(String ChunkHandle, int offset, int NumberOfBytes, int chunkSize) {
+		if(NumberOfBytes + offset > chunkSize){
 			System.out.println("The chunk read should be within the range of the file, invalide chunk read!");
 			return null;
 		}
-		
-		try {
-			byte[] CHinBytes = ChunkHandle.getBytes();
-			WriteOutput.writeInt(ChunkServer.PayloadSZ + ChunkServer.CMDlength + (2*4) + CHinBytes.length);
-			WriteOutput.writeInt(ChunkServer.ReadChunkCMD);
-			WriteOutput.writeInt(offset);
-			WriteOutput.writeInt(NumberOfBytes);
-			WriteOutput.write(CHinBytes);
-			WriteOutput.flush();
-			
-			int ChunkSize =  Client.ReadIntFromInputStream("Client", ReadInput);
-			ChunkSize -= ChunkServer.PayloadSZ;  //reduce the length by the first four bytes that identify the length
-			byte[] payload = RecvPayload("Client", ReadInput, ChunkSize); 
-			return payload;
-		} catch (IOException e) {
-			e.printStackTrace();
+
+		Frame reply = call("readChunk", ChunkHandle, readChunkRequest(ChunkHandle, offset, NumberOfBytes));
+		//the chunk server replies with a null block if the chunk does not exist
+		return reply == null ? null : reply.getBlock();
+	}
+
+	/**
+	 * Read a chunk of chunkSize bytes without waiting, the future holds null if the chunk does not exist.
+	 */
+	public CompletableFuture<byte[]> readChunkAsync(String ChunkHandle, int offset, int NumberOfBytes, int chunkSize) {
+		if(NumberOfBytes + offset > chunkSize){
+			System.out.println("The chunk read should be within the range of the file, invalide chunk read!");
+			return CompletableFuture.completedFuture(null);
 		}
+		return submit(ChunkHandle, readChunkRequest(ChunkHandle, offset, NumberOfBytes)).thenApply(Frame::getBlock);
+	}
 
-		return null;
+	private static Frame readChunkRequest(String ChunkHandle, int offset, int NumberOfBytes) {
+		return Frame.pooledRequest(ChunkServer.ReadChunkCMD)
+			.putString(ChunkHandle)
+			.putInt(offset)
+			.putInt(NumberOfBytes);
 	}
 
-	
+
 
 
 }
@@ -1,21 +1,20 @@
 package com.client;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
-import com.chunkserver.ChunkServer;
 import com.chunkserver.ChunkServerMaster;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-
+/**
+ * Namespace calls against the master. Every call has an Async variant that returns as
+ * soon as the request is sent; requests are pipelined on the one master connection and
+ * the future fails with the IOException that broke the connection.
+ */
 public class ClientFS {
 
 	public enum FSReturnVals {
@@ -46,30 +45,47 @@ public class ClientFS {
 	public static final int DELETE_FILE_COMMAND = 5;
 	public static final int OPEN_FILE_COMMAND = 6;
 	public static final int CLOSE_FILE_COMMAND = 7;
+
+	// File length codes, see TinyFileChannel
+	public static final int GET_FILE_LENGTH_COMMAND = 14;
+	public static final int SET_FILE_LENGTH_COMMAND = 15;
 	
-	static int ServerPort = 0;
-	static Socket ClientSocket;
-	static ObjectOutputStream WriteOutput;
-	static ObjectInputStream ReadInput;
+	// every ClientFS and ClientRec shares the connection pool of the master
+	static ConnectionPool Connection;
 	
 	public ClientFS() {
-		if (ClientSocket != null) return; //The client is already connected
+		if (Connection != null) return; //The client is already connected
+		synchronized (ClientFS.class) {
+			if (Connection != null) return;
+			try {
+				ConnectionPool pool = ConnectionPool.of(ChunkServerMaster.MasterConfigFile);
+				System.out.printf("ClientFS connecting to %s...\n", pool.get());
+				Connection = pool;
+			}catch (FileNotFoundException e) {
+				System.out.println("Error (Client), the config file "+ ChunkServerMaster.MasterConfigFile +" containing the port of the master is missing.");
+			}catch (IOException e) {
+				System.out.println("Can't find file.");
+			}
+		}
+	}
+
+	/**
+	 * Send the request to the master and return the FSReturnVals it replies with.
+	 */
+	static FSReturnVals status(ConnectionPool conn, Frame request) {
 		try {
-			BufferedReader binput = new BufferedReader(new FileReader(ChunkServerMaster.MasterConfigFile));
-			String port = binput.readLine();
-			port = port.substring( port.indexOf(':')+1 );
-			ServerPort = Integer.parseInt(port);
-			
-			ClientSocket = new Socket("127.0.0.1", ServerPort);
-			WriteOutput = new ObjectOutputStream(ClientSocket.getOutputStream());
-			ReadInput = new ObjectInputStream(ClientSocket.getInputStream());
-			
-			System.out.printf("ClientFS connecting to port %d...\n", ServerPort);
-		}catch (FileNotFoundException e) {
-			System.out.println("Error (Client), the config file "+ ChunkServer.ClientConfigFile +" containing the port of the ChunkServer is missing.");
-		}catch (IOException e) {
-			System.out.println("Can't find file.");
+			return FSReturnVals.values()[conn.call(request, Frame.pooledReply()).getInt()];
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
+		return FSReturnVals.Fail;
+	}
+
+	/**
+	 * Send the request to the master without waiting and complete with the FSReturnVals it replies with.
+	 */
+	static CompletableFuture<FSReturnVals> statusAsync(ConnectionPool conn, Frame request) {
+		return conn.submit(request, new Frame(0)).thenApply(reply -> FSReturnVals.values()[reply.getInt()]);
 	}
 
 	/**
@@ -81,34 +97,12 @@ public class ClientFS {
 	 * "CSCI485"), CreateDir("/Shahram/CSCI485/", "Lecture1")
 	 */
 	public FSReturnVals CreateDir(String src, String dirname) {
-		// determine src length
-		byte[] bsrc = src.getBytes();
-		int srcLen = bsrc.length;
-		
-		// determine dest length
-		byte[] bdest = dirname.getBytes();
-		int destLen = bdest.length;
-		
-		// write payload size
-		int payloadSize = 4 + 4 + 4 + srcLen + 4 + destLen;
-		
-		try {
-			WriteOutput.writeInt(payloadSize);
-			WriteOutput.writeInt(CREATE_DIR_COMMAND);
-			WriteOutput.writeInt(srcLen);
-			WriteOutput.write(bsrc);
-			WriteOutput.writeInt(destLen);
-			WriteOutput.write(bdest);
-			WriteOutput.flush();
-			
-			int response = Client.ReadIntFromInputStream("ClientFS", ReadInput);
-			
-			return FSReturnVals.values()[response];
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		return FSReturnVals.Fail;
+		// req format: <src - dirname>
+		return status(Connection, Frame.pooledRequest(CREATE_DIR_COMMAND).putString(src).putString(dirname));
+	}
+
+	public CompletableFuture<FSReturnVals> CreateDirAsync(String src, String dirname) {
+		return statusAsync(Connection, Frame.pooledRequest(CREATE_DIR_COMMAND).putString(src).putString(dirname));
 	}
 
 	/**
@@ -119,34 +113,12 @@ public class ClientFS {
 	 * Example usage: DeleteDir("/Shahram/CSCI485/", "Lecture1")
 	 */
 	public FSReturnVals DeleteDir(String src, String dirname) {
-		// determine src length
-		byte[] bsrc = src.getBytes();
-		int srcLen = bsrc.length;
-		
-		// determine dest length
-		byte[] bdest = dirname.getBytes();
-		int destLen = bdest.length;
-		
-		// write payload size
-		int payloadSize = 4 + 4 + 4 + srcLen + 4 + destLen;
-
-		try {
-			WriteOutput.writeInt(payloadSize);
-			WriteOutput.writeInt(DELETE_DIR_COMMAND);
-			WriteOutput.writeInt(srcLen);
-			WriteOutput.write(bsrc);
-			WriteOutput.writeInt(destLen);
-			WriteOutput.write(bdest);
-			WriteOutput.flush();
-
-			int response = Client.ReadIntFromInputStream("ClientFS", ReadInput);
+		// req format: <src - dirname>
+		return status(Connection, Frame.pooledRequest(DELETE_DIR_COMMAND).putString(src).putString(dirname));
+	}
 
-			return FSReturnVals.values()[response];
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		return FSReturnVals.Fail;
+	public CompletableFuture<FSReturnVals> DeleteDirAsync(String src, String dirname) {
+		return statusAsync(Connection, Frame.pooledRequest(DELETE_DIR_COMMAND).putString(src).putString(dirname));
 	}
 
 	/**
@@ -158,31 +130,12 @@ public class ClientFS {
 	 * "/Shahram/CSCI485" to "/Shahram/CSCI550"
 	 */
 	public FSReturnVals RenameDir(String src, String NewName) {
-		byte[] bold = src.getBytes();
-		int oldLen = bold.length;
-		
-		byte[] bnew = NewName.getBytes();
-		int newLen = bnew.length;
-		
-		int payloadSize = 4 + 4 + 4 + oldLen + 4 + newLen;
-		
-		try {
-			WriteOutput.writeInt(payloadSize);
-			WriteOutput.writeInt(RENAME_DIR_COMMAND);
-			WriteOutput.writeInt(oldLen);
-			WriteOutput.write(bold);
-			WriteOutput.writeInt(newLen);
-			WriteOutput.write(bnew);
-			WriteOutput.flush();
-			
-			int response = Client.ReadIntFromInputStream("ClientFS", ReadInput);
-			
-			return FSReturnVals.values()[response];
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		return FSReturnVals.Fail;
+		// req format: <src - newName>
+		return status(Connection, Frame.pooledRequest(RENAME_DIR_COMMAND).putString(src).putString(NewName));
+	}
+
+	public CompletableFuture<FSReturnVals> RenameDirAsync(String src, String NewName) {
+		return statusAsync(Connection, Frame.pooledRequest(RENAME_DIR_COMMAND).putString(src).putString(NewName));
 	}
 
 	/**
@@ -193,35 +146,30 @@ public class ClientFS {
 	 * Example usage: ListDir("/Shahram/CSCI485")
 	 */
 	public String[] ListDir(String tgt) {
-		List<String> results = new ArrayList<String>();
-
 		try {
-			byte[] tgtBuf = tgt.getBytes();
-
-			WriteOutput.writeInt(12 + tgtBuf.length);
-			WriteOutput.writeInt(LIST_DIR_COMMAND);
-			WriteOutput.writeInt(tgtBuf.length);
-			WriteOutput.write(tgtBuf);
-			WriteOutput.flush();
-
-			int resultsLen = Client.ReadIntFromInputStream("ClientFS", ReadInput);
-			if (resultsLen == -1) {
-				return null;
-			} else {
-				for (int i=0; i<resultsLen; i++) {
-					int lsLen = Client.ReadIntFromInputStream("ClientFS", ReadInput);
-					String lsName = new String(Client.RecvPayload("ClientFS", ReadInput, lsLen));
-
-					results.add(lsName);
-				}
-			}
+			return listing(Connection.call(Frame.pooledRequest(LIST_DIR_COMMAND).putString(tgt), Frame.pooledReply()));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return null;
+	}
 
-		return results.isEmpty()
-			? null
-			: results.toArray(new String[results.size()]);
+	public CompletableFuture<String[]> ListDirAsync(String tgt) {
+		return Connection.submit(Frame.pooledRequest(LIST_DIR_COMMAND).putString(tgt), new Frame(0)).thenApply(ClientFS::listing);
+	}
+
+	// decode the entries of a LIST_DIR reply, null if the directory is empty or does not exist
+	private static String[] listing(Frame reply) {
+		// resp format: <resultsLen - string-1 - ... - string-resultsLen>, resultsLen -1 if tgt does not exist
+		int resultsLen = reply.getInt();
+		if (resultsLen <= 0) {
+			return null;
+		}
+		String[] results = new String[resultsLen];
+		for (int i=0; i<resultsLen; i++) {
+			results[i] = reply.getString();
+		}
+		return results;
 	}
 
 	/**
@@ -232,31 +180,23 @@ public class ClientFS {
 	 * Example usage: Createfile("/Shahram/CSCI485/Lecture1/", "Intro.pptx")
 	 */
 	public FSReturnVals CreateFile(String tgtdir, String filename) {
-		byte[] parent = tgtdir.getBytes();
-		int parentLen = parent.length;
-		
-		byte[] name = filename.getBytes();
-		int nameLen = name.length;
-		
-		int payloadSize = 4 + 4 + 4 + parentLen + 4 + nameLen;
-		
-		try {
-			WriteOutput.writeInt(payloadSize);
-			WriteOutput.writeInt(CREATE_FILE_COMMAND);
-			WriteOutput.writeInt(parentLen);
-			WriteOutput.write(parent);
-			WriteOutput.writeInt(nameLen);
-			WriteOutput.write(name);
-			WriteOutput.flush();
-			
-			int response = Client.ReadIntFromInputStream("ClientFS", ReadInput);
-			
-			return FSReturnVals.values()[response];
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		return FSReturnVals.Fail;
+		return CreateFile(tgtdir, filename, 0);
+	}
+
+	/**
+	 * Creates the specified filename in the target directory with chunks of
+	 * chunkSize bytes, 0 for the cluster default. Returns Fail if a chunk of
+	 * that size cannot hold a record.
+	 *
+	 * Example usage: Createfile("/Shahram/CSCI485/Lecture1/", "Intro.pptx", 1024 * 1024)
+	 */
+	public FSReturnVals CreateFile(String tgtdir, String filename, int chunkSize) {
+		// req format: <parent - name - chunkSize>
+		return status(Connection, Frame.pooledRequest(CREATE_FILE_COMMAND).putString(tgtdir).putString(filename).putInt(chunkSize));
+	}
+
+	public CompletableFuture<FSReturnVals> CreateFileAsync(String tgtdir, String filename, int chunkSize) {
+		return statusAsync(Connection, Frame.pooledRequest(CREATE_FILE_COMMAND).putString(tgtdir).putString(filename).putInt(chunkSize));
 	}
 
 	/**
@@ -267,31 +207,12 @@ public class ClientFS {
 	 * Example usage: DeleteFile("/Shahram/CSCI485/Lecture1/", "Intro.pptx")
 	 */
 	public FSReturnVals DeleteFile(String tgtdir, String filename) {
-		byte[] parent = tgtdir.getBytes();
-		int parentLen = parent.length;
-		
-		byte[] name = filename.getBytes();
-		int nameLen = name.length;
-		
-		int payloadSize = 4 + 4 + 4 + parentLen + 4 + nameLen;
-		
-		try {
-			WriteOutput.writeInt(payloadSize);
-			WriteOutput.writeInt(DELETE_FILE_COMMAND);
-			WriteOutput.writeInt(parentLen);
-			WriteOutput.write(parent);
-			WriteOutput.writeInt(nameLen);
-			WriteOutput.write(name);
-			WriteOutput.flush();
-			
-			int response = Client.ReadIntFromInputStream("ClientFS", ReadInput);
-			
-			return FSReturnVals.values()[response];
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		return FSReturnVals.Fail;
+		// req format: <parent - name>
+		return status(Connection, Frame.pooledRequest(DELETE_FILE_COMMAND).putString(tgtdir).putString(filename));
+	}
+
+	public CompletableFuture<FSReturnVals> DeleteFileAsync(String tgtdir, String filename) {
+		return statusAsync(Connection, Frame.pooledRequest(DELETE_FILE_COMMAND).putString(tgtdir).putString(filename));
 	}
 
 	/**
@@ -302,66 +223,161 @@ public class ClientFS {
 	 * Example usage: OpenFile("/Shahram/CSCI485/Lecture1/Intro.pptx", FH1)
 	 */
 	public FSReturnVals OpenFile(String FilePath, FileHandle ofh) {
-		byte[] file = FilePath.getBytes();
-		int fileLen = file.length;
-
-		int payloadSize = 4 + 4 + 4 + fileLen;
-
 		try {
-			WriteOutput.writeInt(payloadSize);
-			WriteOutput.writeInt(OPEN_FILE_COMMAND);
-			WriteOutput.writeInt(fileLen);
-			WriteOutput.write(file);
-			WriteOutput.flush();
-
-			FSReturnVals response = FSReturnVals.values()[
-				Client.ReadIntFromInputStream("ClientFS", ReadInput)
-			];
-
-			// if successfully opened, prepare for handle reading
-			if (response == FSReturnVals.Success) {
-				int fhLen = Client.ReadIntFromInputStream("ClientFS", ReadInput);
-				ObjectInputStream deserializer = new ObjectInputStream(new ByteArrayInputStream(Client.RecvPayload("ClientFS", ReadInput, fhLen)));
-				FileHandle nfh = (FileHandle) deserializer.readObject();
-				ofh.setToHandle(nfh);
-			}
-
-			return response;
-		} catch (IOException | ClassNotFoundException e) {
+			return opened(Connection.call(Frame.pooledRequest(OPEN_FILE_COMMAND).putString(FilePath), Frame.pooledReply()), ofh);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
 		return FSReturnVals.Fail;
 	}
 
+	/**
+	 * Opens the file without waiting, ofh is populated before the future completes with Success.
+	 */
+	public CompletableFuture<FSReturnVals> OpenFileAsync(String FilePath, FileHandle ofh) {
+		return Connection.submit(Frame.pooledRequest(OPEN_FILE_COMMAND).putString(FilePath), new Frame(0)).thenApply(reply -> opened(reply, ofh));
+	}
+
+	// decode an OPEN_FILE reply into ofh
+	private static FSReturnVals opened(Frame reply, FileHandle ofh) {
+		// resp format: <FSReturnVal.ordinal() - success?filepath - success?chunkSize>
+		FSReturnVals response = FSReturnVals.values()[reply.getInt()];
+
+		// if successfully opened, the reply carries the handle
+		if (response == FSReturnVals.Success) {
+			FileHandle nfh = new FileHandle();
+			nfh.setFilePath(reply.getString());
+			nfh.setChunkSize(reply.getInt());
+			ofh.setToHandle(nfh);
+		}
+		return response;
+	}
+
 	/**
 	 * Closes the specified file handle Returns BadHandle if ofh is invalid
 	 *
 	 * Example usage: CloseFile(FH1)
 	 */
 	public FSReturnVals CloseFile(FileHandle ofh) {
-		try {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			out.writeObject(ofh);
-			out.flush();
+		if (ofh == null || ofh.filepath == null) {
+			return FSReturnVals.BadHandle;
+		}
+		// req format: <filepath>
+		return status(Connection, Frame.pooledRequest(CLOSE_FILE_COMMAND).putString(ofh.filepath));
+	}
 
-			byte[] bfh = bos.toByteArray();
+	public CompletableFuture<FSReturnVals> CloseFileAsync(FileHandle ofh) {
+		if (ofh == null || ofh.filepath == null) {
+			return CompletableFuture.completedFuture(FSReturnVals.BadHandle);
+		}
+		return statusAsync(Connection, Frame.pooledRequest(CLOSE_FILE_COMMAND).putString(ofh.filepath));
+	}
 
-			int payloadSize = 4 + 4 + 4 + bfh.length;
+	/**
+	 * Open the file of the handle as a byte stream that can be read, written and positioned,
+	 * see TinyFileChannel. Throws FileNotFoundException if the file does not exist.
+	 *
+	 * Example usage: OpenChannel(FH1).position(4096).read(buffer)
+	 */
+	public TinyFileChannel OpenChannel(FileHandle ofh) throws IOException {
+		return new TinyFileChannel(new Client(), Connection, ofh, true);
+	}
 
-			WriteOutput.writeInt(payloadSize);
-			WriteOutput.writeInt(CLOSE_FILE_COMMAND);
-			WriteOutput.writeInt(bfh.length);
-			WriteOutput.write(bfh);
-			WriteOutput.flush();
+	/**
+	 * Read the file of the handle from its first byte, the next chunks are fetched while the
+	 * current one is consumed.
+	 *
+	 * Example usage: OpenInputStream(FH1).transferTo(new FileOutputStream("Intro.pptx"))
+	 */
+	public InputStream OpenInputStream(FileHandle ofh) throws IOException {
+		return Channels.newInputStream(new TinyFileChannel(new Client(), Connection, ofh, false));
+	}
 
-			return FSReturnVals.values()[Client.ReadIntFromInputStream("ClientFS", ReadInput)];
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Replace the content of the file of the handle, or add to its end if append is true.
+	 * Chunks are uploaded while the next ones are written; the file has its new length
+	 * once the stream is flushed or closed.
+	 *
+	 * Example usage: new FileInputStream("Intro.pptx").transferTo(OpenOutputStream(FH1, false))
+	 */
+	public OutputStream OpenOutputStream(FileHandle ofh, boolean append) throws IOException {
+		TinyFileChannel channel = new TinyFileChannel(new Client(), Connection, ofh, true);
+		if (append) channel.position(channel.size());
+		else channel.truncate(0);
+		return Channels.newOutputStream(channel);
+	}
+
+	/**
+	 * Start a batch of namespace calls that is sent to the master in one round trip.
+	 *
+	 * Example usage: NewBatch().CreateDir("/", "Shahram").CreateDir("/Shahram/", "CSCI485").Execute()
+	 */
+	public NamespaceBatch NewBatch() {
+		return new NamespaceBatch();
+	}
+
+	/**
+	 * Namespace calls collected on the client and executed by the master in the order
+	 * they were added, so a batch can create a directory and then its children.
+	 * Execute returns the FSReturnVals of every call in that order.
+	 */
+	public static class NamespaceBatch {
+		private final Batch batch = new Batch();
+
+		NamespaceBatch() {
 		}
 
-		return FSReturnVals.Fail;
+		public NamespaceBatch CreateDir(String src, String dirname) {
+			batch.add(new Frame(CREATE_DIR_COMMAND).putString(src).putString(dirname));
+			return this;
+		}
+
+		public NamespaceBatch DeleteDir(String src, String dirname) {
+			batch.add(new Frame(DELETE_DIR_COMMAND).putString(src).putString(dirname));
+			return this;
+		}
+
+		public NamespaceBatch RenameDir(String src, String NewName) {
+			batch.add(new Frame(RENAME_DIR_COMMAND).putString(src).putString(NewName));
+			return this;
+		}
+
+		public NamespaceBatch CreateFile(String tgtdir, String filename, int chunkSize) {
+			batch.add(new Frame(CREATE_FILE_COMMAND).putString(tgtdir).putString(filename).putInt(chunkSize));
+			return this;
+		}
+
+		public NamespaceBatch DeleteFile(String tgtdir, String filename) {
+			batch.add(new Frame(DELETE_FILE_COMMAND).putString(tgtdir).putString(filename));
+			return this;
+		}
+
+		/**
+		 * Every call is Fail if the batch could not be sent.
+		 */
+		public FSReturnVals[] Execute() {
+			try {
+				return statuses(batch.call(Connection));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			FSReturnVals[] failed = new FSReturnVals[batch.size()];
+			Arrays.fill(failed, FSReturnVals.Fail);
+			return failed;
+		}
+
+		public CompletableFuture<FSReturnVals[]> ExecuteAsync() {
+			return batch.submit(Connection).thenApply(NamespaceBatch::statuses);
+		}
+
+		private static FSReturnVals[] statuses(Frame[] replies) {
+			FSReturnVals[] results = new FSReturnVals[replies.length];
+			for (int i = 0; i < replies.length; i++) {
+				results[i] = FSReturnVals.values()[replies[i].getInt()];
+			}
+			return results;
+		}
 	}
 
 }
@@ -1,13 +1,14 @@
 package com.client;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.client.ClientFS.FSReturnVals;
 import com.chunkserver.ChunkServer;
@@ -22,51 +23,44 @@ public class ClientRec {
 	public static final int GET_NUM_CHUNKS_COMMAND = 10;
 	public static final int GET_CHUNK_COMMAND = 11;
 	public static final int GET_CHUNK_INDEX_COMMAND = 12;
+	public static final int GET_CHUNKS_COMMAND = 13;
 	
 	public static final int RECORD_HEADER_SIZE = 4;
 	public static final int RECORD_SLOT_SIZE = 4;
 	
+	// number of records and offset of the free space at the start of every chunk
+	public static final int CHUNK_HEADER_SIZE = 8;
+	// smallest chunk that still holds a one byte record
+	public static final int MIN_CHUNK_SIZE = CHUNK_HEADER_SIZE + RECORD_SLOT_SIZE + RECORD_HEADER_SIZE + 1;
 	
 	
-	static int MasterPort = 0;
-	static Socket ClientMasterSocket;
-	static ObjectOutputStream MasterWriteOutput;
-	static ObjectInputStream MasterReadInput;
+	
+	// every ClientFS and ClientRec shares the connection pool of the master
+	static ConnectionPool MasterConnection;
+	
+	// runs the steps of the Async calls that send the next request, a send can block
+	// and must not hold up the reader threads that complete the replies
+	private static final ExecutorService Continuations = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "client-rec-async");
+		t.setDaemon(true);
+		return t;
+	});
 	
 	// SP: ClientRec
 	public ClientRec() {
-		if (ClientMasterSocket != null) return; //The client is already connected
-		BufferedReader binput = null;
-		try {
-			binput = new BufferedReader(new FileReader(ChunkServerMaster.MasterConfigFile));
-			String port = binput.readLine();
-			port = port.substring( port.indexOf(':')+1 );
-			MasterPort = Integer.parseInt(port);
-			
-			ClientMasterSocket = new Socket("127.0.0.1", MasterPort);
-			MasterWriteOutput = new ObjectOutputStream(ClientMasterSocket.getOutputStream());
-			MasterReadInput = new ObjectInputStream(ClientMasterSocket.getInputStream());
-			
-			System.out.printf("ClientRec connecting to Master on port %d...\n", MasterPort);
-			binput.close();
-			
+		if (MasterConnection != null) return; //The client is already connected
+		synchronized (ClientRec.class) {
+			if (MasterConnection != null) return;
+			try {
+				ConnectionPool pool = ConnectionPool.of(ChunkServerMaster.MasterConfigFile);
+				System.out.printf("ClientRec connecting to Master on %s...\n", pool.get());
+				MasterConnection = pool;
 			} catch (FileNotFoundException e) {
-				System.out.println("Error (Client), the config file "+ ChunkServer.ClientConfigFile +" containing the port of the ChunkServer is missing.");
-				try {
-					binput.close();
-				} catch (IOException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
+				System.out.println("Error (Client), the config file "+ ChunkServerMaster.MasterConfigFile +" containing the port of the master is missing.");
 			} catch (IOException e) {
 				System.out.println("Can't find file.");
-				try {
-					binput.close();
-				} catch (IOException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				} 
 			}
+		}
 	}
 	
 	/**
@@ -79,72 +73,125 @@ public class ClientRec {
 	 */
 	public FSReturnVals AppendRecord(FileHandle ofh, byte[] payload, RID RecordID) {
 
-		//Validity: check if the payload size is too large (greater than chunk size)
-		if (payload.length > ChunkServer.ChunkSize) {
+		//Validity: check if the payload size is too large (does not fit in an empty chunk of the file)
+		int chunkSize = ofh.chunkSize;
+		if (CHUNK_HEADER_SIZE + RECORD_SLOT_SIZE + RECORD_HEADER_SIZE + payload.length > chunkSize) {
 			return ClientFS.FSReturnVals.RecordTooLong;
 		}
 		//Get the last chunk in the file from master/or create a chunk if the file has no chunks
-		try {
-			byte [] filepath  = ofh.filepath.getBytes();
-			int messageSize = 4 + 4 + 4 + filepath.length;
-			MasterWriteOutput.writeInt(messageSize);
-			MasterWriteOutput.writeInt(GET_LAST_CHUNK_COMMAND);
-			MasterWriteOutput.writeInt(filepath.length);
-			MasterWriteOutput.write(filepath);
-			MasterWriteOutput.flush();
-			int size = Client.ReadIntFromInputStream("Client Rec", MasterReadInput);
-			byte [] responseBytes = Client.RecvPayload("Client Rec", MasterReadInput, size);
-			Client c = new Client ();
-			String chunkhandle;
-			String response = new String (responseBytes);
-			if (response.equals("None")) {
-				//get create new chunk, pass in chunkhandle from master
-				String newChunk = addChunk(filepath);
-				if (newChunk.equals("None")) {
-					return ClientFS.FSReturnVals.FileDoesNotExist;
-				}
-				chunkhandle = c.createChunk(newChunk);
+		String filepath = ofh.filepath;
+		String response = getLastChunk(filepath);
+		if (response == null) {
+			return ClientFS.FSReturnVals.Fail;
+		}
+		Client c = new Client ();
+		String chunkhandle;
+		if (response.equals("None")) {
+			//add the first chunk at the master, the chunk server creates it with the first append
+			chunkhandle = addChunk(filepath);
+			if (chunkhandle == null) {
+				return ClientFS.FSReturnVals.FileDoesNotExist;
+			}
+		}
+		else {
+			chunkhandle = response;
+		}
+
+		//the chunk server appends the record atomically in one round trip,
+		//creating the chunk if no client appended to it yet
+		int slot = c.appendRecord(chunkhandle, payload, chunkSize);
+		
+		//the chunk has no room for the record, roll over to a new chunk unless another
+		//client already did, then its new chunk is the last one of the file
+		while (slot == ChunkServer.ChunkFull) {
+			String full = chunkhandle;
+			chunkhandle = getLastChunk(filepath);
+			if (full.equals(chunkhandle)) {
+				chunkhandle = addChunk(filepath);
+			}
+			//the file was deleted meanwhile
+			if (chunkhandle == null || chunkhandle.equals("None")) {
+				return ClientFS.FSReturnVals.BadHandle;
+			}
+			slot = c.appendRecord(chunkhandle, payload, chunkSize);
+		}
+		if (slot < 1) {
+			return ClientFS.FSReturnVals.Fail;
+		}
+		//the file changed under any open cursor of the handle
+		ofh.cursor = null;
+		//populate the record ID
+		RecordID.slotNumber = slot;
+		RecordID.chunkHandle = chunkhandle;
+		//return success if you get to this step!
+		return ClientFS.FSReturnVals.Success;
+	}
+
+	/**
+	 * AppendRecord without waiting: the future completes with the result once the
+	 * record is appended and RecordID is populated. Many appends can be in flight.
+	 */
+	public CompletableFuture<FSReturnVals> AppendRecordAsync(FileHandle ofh, byte[] payload, RID RecordID) {
+		if (CHUNK_HEADER_SIZE + RECORD_SLOT_SIZE + RECORD_HEADER_SIZE + payload.length > ofh.chunkSize) {
+			return CompletableFuture.completedFuture(ClientFS.FSReturnVals.RecordTooLong);
+		}
+		return appendAsync(ofh, payload, RecordID, null);
+	}
+
+	// the new chunk of every roll over in flight, by the full chunk (or the path of an empty file),
+	// so the appends of this client that find the same chunk full share one new chunk
+	private static final ConcurrentHashMap<String, CompletableFuture<String>> RollOvers = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+	// append to the last chunk of the file, to a new chunk if the last one is fullChunk
+	private CompletableFuture<FSReturnVals> appendAsync(FileHandle ofh, byte[] payload, RID RecordID, String fullChunk) {
+		return submitMaster(Frame.pooledRequest(GET_LAST_CHUNK_COMMAND).putString(ofh.filepath)).thenComposeAsync(reply -> {
+			String lastChunk = reply.getString();
+			if (lastChunk == null) {
+				return CompletableFuture.completedFuture(ClientFS.FSReturnVals.Fail);
 			}
-			else {
-				chunkhandle = response;
+			if (lastChunk.equals("None") || lastChunk.equals(fullChunk)) {
+				return rollOverAsync(ofh, lastChunk.equals("None") ? ofh.filepath : fullChunk).thenComposeAsync(newChunk -> newChunk == null
+					? CompletableFuture.completedFuture(ClientFS.FSReturnVals.FileDoesNotExist)
+					: appendToAsync(ofh, newChunk, payload, RecordID), Continuations);
 			}
+			return appendToAsync(ofh, lastChunk, payload, RecordID);
+		}, Continuations);
+	}
 
-			byte [] bytes = new byte [4];
-			//get number of records in chunk, using bytes #0-4 of the chunk
-			bytes = c.readChunk(chunkhandle, 0, 4);
-			int numRecords = ByteBuffer.wrap(bytes).getInt();
-			
-			//get offset of next available record space, using bytes #4-8 of the chunk
-			bytes = c.readChunk(chunkhandle, 4, 4);
-			int offset = ByteBuffer.wrap(bytes).getInt();
-			
-			//see if the chunk has enough space for the record else create a new chunk
-			if (offset + RECORD_HEADER_SIZE + payload.length + RECORD_SLOT_SIZE > ChunkServer.ChunkSize - numRecords * 4) {
-				String newChunk = addChunk(filepath);
-				chunkhandle = c.createChunk(newChunk);
-				offset = 8;
-				numRecords = 0;
+	// append to the chunk and start over if it is full; a concurrent append may already have
+	// rolled the file over, so the last chunk is asked for again. The chunk server creates a
+	// new chunk with its first append, whichever client that comes from.
+	private CompletableFuture<FSReturnVals> appendToAsync(FileHandle ofh, String chunkhandle, byte[] payload, RID RecordID) {
+		return new Client().appendRecordAsync(chunkhandle, payload, ofh.chunkSize).thenComposeAsync(slot -> {
+			if (slot == ChunkServer.ChunkFull) {
+				return appendAsync(ofh, payload, RecordID, chunkhandle);
 			}
-			//add the offset+4 (start address) to the slot map of the chunk 
-			c.writeChunk(chunkhandle, ByteBuffer.wrap(bytes).putInt(offset + 4).array(), ChunkServer.ChunkSize-(numRecords * 4)-4);
-			//update the number of records (1st 4 bytes of chunk)
-			c.writeChunk(chunkhandle, ByteBuffer.wrap(bytes).putInt(numRecords+1).array(), 0);
-			//put the record size in the 1st 4 bytes at offset
-			c.writeChunk(chunkhandle, ByteBuffer.wrap(bytes).putInt(payload.length).array(), offset);
-			//put in the record data in the next n bytes
-			c.writeChunk(chunkhandle, payload, offset+ RECORD_HEADER_SIZE);
-			//update the new next available record
-			c.writeChunk(chunkhandle, ByteBuffer.wrap(bytes).putInt(RECORD_HEADER_SIZE + payload.length + offset).array(), 4);
-			//populate the record ID
-			RecordID.slotNumber = numRecords+1;
+			if (slot < 1) {
+				return CompletableFuture.completedFuture(ClientFS.FSReturnVals.Fail);
+			}
+			ofh.cursor = null;
+			RecordID.slotNumber = slot;
 			RecordID.chunkHandle = chunkhandle;
-			//return success if you get to this step!
-			return ClientFS.FSReturnVals.Success;		
-	
-		} catch (IOException e) {
-			e.printStackTrace();
+			return CompletableFuture.completedFuture(ClientFS.FSReturnVals.Success);
+		}, Continuations);
+	}
+
+	// the new chunk added at the master after the full one, null if the file does not exist
+	private CompletableFuture<String> rollOverAsync(FileHandle ofh, String full) {
+		CompletableFuture<String> next = new CompletableFuture<String>();
+		CompletableFuture<String> inFlight = RollOvers.putIfAbsent(full, next);
+		if (inFlight != null) {
+			return inFlight;
 		}
-		return ClientFS.FSReturnVals.Fail;
+		submitMaster(Frame.pooledRequest(ADD_CHUNK_COMMAND).putString(ofh.filepath)).thenApply(Frame::getString).whenComplete((chunkhandle, e) -> {
+			RollOvers.remove(full);
+			if (e != null) {
+				next.completeExceptionally(e);
+			} else {
+				next.complete(chunkhandle);
+			}
+		});
+		return next;
 	}
 
 	/**
@@ -163,22 +210,63 @@ public class ClientRec {
 		}
 		int slot = RecordID.slotNumber;
 		String chunkhandle = RecordID.chunkHandle;
+		int chunkSize = ofh.chunkSize;
 		//TODO: make sure the master has the filehandle & corresponding chunk in its namespace or return bad RID
 		Client c = new Client();
 		byte [] bytes = new byte [4];
 		//get number of records in chunk, using bytes #0-4 of the chunk
-		bytes = c.readChunk(chunkhandle, 0, 4);
+		bytes = c.readChunk(chunkhandle, 0, 4, chunkSize);
 		int numRecords = ByteBuffer.wrap(bytes).getInt();
 		if (numRecords < slot)
 		{
 			return ClientFS.FSReturnVals.RecDoesNotExist;
 		}
 		//null out the slot corresponding to the record
-		c.writeChunk(chunkhandle, ByteBuffer.wrap(bytes).putInt(-1).array(), ChunkServer.ChunkSize-(4 * slot));
+		c.writeChunk(chunkhandle, ByteBuffer.wrap(bytes).putInt(-1).array(), chunkSize-(4 * slot), chunkSize);
+		//the cursor of another thread is dropped instead of changed under it
+		RecordCursor cursor = ofh.cursor;
+		if (cursor != null && cursor.isOwner())
+		{
+			cursor.forget(RecordID);
+		}
+		else
+		{
+			ofh.cursor = null;
+		}
 
 		return ClientFS.FSReturnVals.Success;
 	}
 
+	/**
+	 * DeleteRecord without waiting. The open cursor of ofh is dropped rather than
+	 * updated since the caller may be reading through it meanwhile.
+	 */
+	public CompletableFuture<FSReturnVals> DeleteRecordAsync(FileHandle ofh, RID RecordID) {
+		if (RecordID == null)
+		{
+			return CompletableFuture.completedFuture(ClientFS.FSReturnVals.BadRecID);
+		}
+		int slot = RecordID.slotNumber;
+		String chunkhandle = RecordID.chunkHandle;
+		int chunkSize = ofh.chunkSize;
+		Client c = new Client();
+		return c.readChunkAsync(chunkhandle, 0, 4, chunkSize).thenComposeAsync(bytes -> {
+			if (bytes == null)
+			{
+				return CompletableFuture.completedFuture(ClientFS.FSReturnVals.BadRecID);
+			}
+			if (ByteBuffer.wrap(bytes).getInt() < slot)
+			{
+				return CompletableFuture.completedFuture(ClientFS.FSReturnVals.RecDoesNotExist);
+			}
+			//null out the slot corresponding to the record
+			return c.writeChunkAsync(chunkhandle, ByteBuffer.wrap(bytes).putInt(-1).array(), chunkSize-(4 * slot), chunkSize).thenApply(written -> {
+				ofh.cursor = null;
+				return written ? ClientFS.FSReturnVals.Success : ClientFS.FSReturnVals.Fail;
+			});
+		}, Continuations);
+	}
+
 	/**
 	 * Reads the first record of the file specified by ofh into payload Returns
 	 * BadHandle if ofh is invalid Returns RecDoesNotExist if the file is empty
@@ -186,67 +274,13 @@ public class ClientRec {
 	 * Example usage: ReadFirstRecord(FH1, tinyRec)
 	 */
 	public FSReturnVals ReadFirstRecord(FileHandle ofh, TinyRec rec) {
-		try 
-		 {
-			byte [] filepath  = ofh.filepath.getBytes();
-			MasterWriteOutput.writeInt(4 + 4 + 4 + filepath.length);
-			MasterWriteOutput.writeInt(GET_NUM_CHUNKS_COMMAND);
-			MasterWriteOutput.writeInt(filepath.length);
-			MasterWriteOutput.write(filepath);
-			MasterWriteOutput.flush();
-			int numChunks = Client.ReadIntFromInputStream("Client Rec", MasterReadInput);
-			if (numChunks == -1)
-			{
-				return ClientFS.FSReturnVals.BadHandle;   
-			}
-			String chunkhandle = null;
-			int slot = -1;
-			int chunkIndex = 0;
-			Client c = new Client ();
-			byte [] bytes = new byte [4];
-			while (chunkIndex < numChunks)
-			{
-				MasterWriteOutput.writeInt(4 + 4 + 4 + filepath.length + 4);
-				MasterWriteOutput.writeInt(GET_CHUNK_COMMAND);
-				MasterWriteOutput.writeInt(filepath.length);
-				MasterWriteOutput.write(filepath);
-				MasterWriteOutput.writeInt(chunkIndex);				
-				MasterWriteOutput.flush();
-			
-				int chunkhandleSize = Client.ReadIntFromInputStream("Client Rec", MasterReadInput);
-				byte [] responseBytes = Client.RecvPayload("Client Rec", MasterReadInput, chunkhandleSize);
-				if (responseBytes == null)
-				{
-					break;
-				}
-				chunkhandle = new String (responseBytes);
-				//get number of records in chunk, using bytes #0-4 of the chunk
-				bytes = c.readChunk(chunkhandle, 0, 4);
-				int numRecords = ByteBuffer.wrap(bytes).getInt();
-				for (int i = 0; i<numRecords; i++)
-				{
-					//see if the record's slot is valid
-					byte [] recordOffsetBytes = c.readChunk(chunkhandle, ChunkServer.ChunkSize - RECORD_SLOT_SIZE * i - 4, 4);
-					int recordOffset = ByteBuffer.wrap(recordOffsetBytes).getInt();
-					if (recordOffset != -1)
-					{
-						rec.setRID(new RID(chunkhandle, i+1));
-						bytes = c.readChunk(chunkhandle, recordOffset-4, 4);
-						int recordSize = ByteBuffer.wrap(bytes).getInt();
-						bytes = c.readChunk(chunkhandle, recordOffset, recordSize);
-						rec.setPayload(bytes);						
-						return ClientFS.FSReturnVals.Success;		
-					}
-				}
-				chunkIndex++;
-			}
-			return ClientFS.FSReturnVals.RecDoesNotExist;
-		 }
-		
-		catch (Exception e)
+		RecordCursor cursor = OpenCursor(ofh, true);
+		if (cursor == null)
 		{
-			return ClientFS.FSReturnVals.Fail;
+			return ClientFS.FSReturnVals.BadHandle;
 		}
+		ofh.cursor = cursor;
+		return cursor.next(rec);
 	}
 
 	/**
@@ -256,7 +290,13 @@ public class ClientRec {
 	 * Example usage: ReadLastRecord(FH1, tinyRec)
 	 */
 	public FSReturnVals ReadLastRecord(FileHandle ofh, TinyRec rec){
-		return null;
+		RecordCursor cursor = OpenReverseCursor(ofh);
+		if (cursor == null)
+		{
+			return ClientFS.FSReturnVals.BadHandle;
+		}
+		ofh.cursor = cursor;
+		return cursor.next(rec);
 	}
 
 	/**
@@ -266,84 +306,12 @@ public class ClientRec {
 	 *
 	 * Example usage: 1. ReadFirstRecord(FH1, tinyRec1) 2. ReadNextRecord(FH1,
 	 * rec1, tinyRec2) 3. ReadNextRecord(FH1, rec2, tinyRec3)
+	 *
+	 * A scan continued through the same handle reads every chunk as it was when the
+	 * scan reached it, changes other clients make to that chunk later are not seen.
 	 */
 	public FSReturnVals ReadNextRecord(FileHandle ofh, RID pivot, TinyRec rec){
-		try 
-		 {
-			byte [] filepath  = ofh.filepath.getBytes();
-			MasterWriteOutput.writeInt(4 + 4 + 4 + filepath.length);
-			MasterWriteOutput.writeInt(GET_NUM_CHUNKS_COMMAND);
-			MasterWriteOutput.writeInt(filepath.length);
-			MasterWriteOutput.write(filepath);
-			MasterWriteOutput.flush();
-			int numChunks = Client.ReadIntFromInputStream("Client Rec", MasterReadInput);
-			if (numChunks == -1)
-			{
-				return ClientFS.FSReturnVals.BadHandle;   
-			}
-			
-			String chunkhandle = pivot.chunkHandle;
-			int slot = pivot.slotNumber;
-			
-			MasterWriteOutput.writeInt(4 + 4 + 4 + filepath.length + 4 + chunkhandle.getBytes().length);
-			MasterWriteOutput.writeInt(GET_CHUNK_INDEX_COMMAND);
-			MasterWriteOutput.writeInt(filepath.length);
-			MasterWriteOutput.write(filepath);
-			MasterWriteOutput.writeInt(chunkhandle.getBytes().length);
-			MasterWriteOutput.write(chunkhandle.getBytes());			
-			MasterWriteOutput.flush();
-			int chunkIndex = Client.ReadIntFromInputStream("Client Rec", MasterReadInput);
-			if (chunkIndex == -1)
-			{
-				return ClientFS.FSReturnVals.BadRecID;
-			}
-			Client c = new Client ();
-			byte [] bytes = new byte [4];
-			while (chunkIndex < numChunks)
-			{
-				MasterWriteOutput.writeInt(4 + 4 + 4 + filepath.length + 4);
-				MasterWriteOutput.writeInt(GET_CHUNK_COMMAND);
-				MasterWriteOutput.writeInt(filepath.length);
-				MasterWriteOutput.write(filepath);
-				MasterWriteOutput.writeInt(chunkIndex);				
-				MasterWriteOutput.flush();
-				
-				int chunkhandleSize = Client.ReadIntFromInputStream("Client Rec", MasterReadInput);
-				byte [] responseBytes = Client.RecvPayload("Client Rec", MasterReadInput, chunkhandleSize);
-				if (responseBytes == null)
-				{
-					break;
-				}
-				chunkhandle = new String (responseBytes);
-				//get number of records in chunk, using bytes #0-4 of the chunk
-				bytes = c.readChunk(chunkhandle, 0, 4);
-				int numRecords = ByteBuffer.wrap(bytes).getInt();
-				for (int i = slot; i<numRecords; i++)
-				{
-					//see if the record's slot is valid
-					byte [] recordOffsetBytes = c.readChunk(chunkhandle, ChunkServer.ChunkSize - RECORD_SLOT_SIZE * i - 4, 4);
-					int recordOffset = ByteBuffer.wrap(recordOffsetBytes).getInt();
-					if (recordOffset != -1)
-					{
-						rec.setRID(new RID(chunkhandle, i+1));
-						bytes = c.readChunk(chunkhandle, recordOffset-4, 4);
-						int recordSize = ByteBuffer.wrap(bytes).getInt();
-						bytes = c.readChunk(chunkhandle, recordOffset, recordSize);
-						rec.setPayload(bytes);	
-						
-						return ClientFS.FSReturnVals.Success;		
-					}
-				}
-				slot = 0;
-				chunkIndex++;
-			}
-			return ClientFS.FSReturnVals.RecDoesNotExist;
-		 }
-		
-		catch (Exception e)
-		{
-			return ClientFS.FSReturnVals.Fail;
-		}
+		return ReadAfter(ofh, pivot, rec, true);
 	}
 
 	/**
@@ -355,30 +323,124 @@ public class ClientRec {
 	 * recn-1, tinyRec2) 3. ReadPrevRecord(FH1, recn-2, tinyRec3)
 	 */
 	public FSReturnVals ReadPrevRecord(FileHandle ofh, RID pivot, TinyRec rec){
-		return null;		
+		return ReadAfter(ofh, pivot, rec, false);
+	}
+	
+	/**
+	 * Open a cursor over the records of the file specified by ofh, going
+	 * forward from the first record or in reverse from the last one.
+	 * Returns null if ofh is invalid.
+	 */
+	public RecordCursor OpenCursor(FileHandle ofh, boolean forward) {
+		if (ofh == null || ofh.filepath == null)
+		{
+			return null;
+		}
+		List<String> chunks = getChunks(ofh.filepath);
+		if (chunks == null)
+		{
+			return null;
+		}
+		return new RecordCursor(chunks, ofh.chunkSize, forward);
+	}
+	
+	/**
+	 * Open a reverse cursor at the last chunk of the file specified by ofh.
+	 * The chunk list is only fetched when the cursor walks past the last chunk,
+	 * so reading the newest records never touches the head of the file.
+	 * Returns null if ofh is invalid.
+	 */
+	public RecordCursor OpenReverseCursor(final FileHandle ofh) {
+		if (ofh == null || ofh.filepath == null)
+		{
+			return null;
+		}
+		final String filepath = ofh.filepath;
+		String lastChunk = getLastChunk(filepath);
+		if (lastChunk == null || lastChunk.equals("None"))
+		{
+			//empty or missing file, the chunk list tells them apart
+			return OpenCursor(ofh, false);
+		}
+		return new RecordCursor(lastChunk, () -> getChunks(filepath), ofh.chunkSize);
+	}
+	
+	// continue the cursor of the handle when it stopped at the pivot, otherwise seek a new one;
+	// the cursor of another thread is never continued, the handle gets one of this thread instead
+	FSReturnVals ReadAfter(FileHandle ofh, RID pivot, TinyRec rec, boolean forward) {
+		RecordCursor cursor = ofh.cursor;
+		if (cursor == null || !cursor.isOwner() || cursor.isForward() != forward || !cursor.isAt(pivot))
+		{
+			cursor = OpenCursor(ofh, forward);
+			if (cursor == null)
+			{
+				return ClientFS.FSReturnVals.BadHandle;
+			}
+			FSReturnVals result = cursor.seek(pivot);
+			if (result != ClientFS.FSReturnVals.Success)
+			{
+				return result;
+			}
+			ofh.cursor = cursor;
+		}
+		return cursor.next(rec);
 	}
 	
 	// SP: Utility Methods
-	String addChunk (byte [] filepath)
+	static Frame callMaster (Frame request)
 	{
-		try 
+		try
 		{
-			MasterWriteOutput.writeInt(4 + 4 + 4 + filepath.length);
-			MasterWriteOutput.writeInt(ADD_CHUNK_COMMAND);
-			MasterWriteOutput.writeInt(filepath.length);
-			MasterWriteOutput.write(filepath);
-			MasterWriteOutput.flush();
-			int size = Client.ReadIntFromInputStream("Client Rec", MasterReadInput);
-			byte [] responseBytes = Client.RecvPayload("Client Rec", MasterReadInput, size);	
-			String response = new String (responseBytes);
-			return response;
+			return MasterConnection.call(request, Frame.pooledReply());
 		}
-		catch (Exception e)
+		catch (IOException e)
 		{
-			System.out.println("Error when trying to add a new chunk.");
+			e.printStackTrace();
 		}
 		return null;
 	}
+	
+	static CompletableFuture<Frame> submitMaster (Frame request)
+	{
+		return MasterConnection.submit(request, new Frame(0));
+	}
+	
+	String getLastChunk (String filepath)
+	{
+		Frame reply = callMaster(Frame.pooledRequest(GET_LAST_CHUNK_COMMAND).putString(filepath));
+		return reply == null ? null : reply.getString();
+	}
+	
+	List<String> getChunks (String filepath)
+	{
+		// resp format: <numChunks - chunkhandle-1 - ... - chunkhandle-numChunks>, numChunks -1 if the file does not exist
+		Frame reply = callMaster(Frame.pooledRequest(GET_CHUNKS_COMMAND).putString(filepath));
+		if (reply == null)
+		{
+			return null;
+		}
+		int numChunks = reply.getInt();
+		if (numChunks == -1)
+		{
+			return null;
+		}
+		List<String> chunks = new ArrayList<String>(numChunks);
+		for (int i = 0; i < numChunks; i++)
+		{
+			chunks.add(reply.getString());
+		}
+		return chunks;
+	}
+	
+	// returns null if the file does not exist
+	String addChunk (String filepath)
+	{
+		Frame reply = callMaster(Frame.pooledRequest(ADD_CHUNK_COMMAND).putString(filepath));
+		if (reply == null)
+		{
+			System.out.println("Error when trying to add a new chunk.");
+			return null;
+		}
+		return reply.getString();
+	}
 }
-
-
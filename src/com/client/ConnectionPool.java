@@ -0,0 +1,216 @@
+package com.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded set of pipelined connections to one endpoint, the master or a chunk server,
+ * shared by every thread of the client. A call goes to the open connection with the
+ * fewest requests in flight and another connection is opened while every open one is
+ * busy, up to tinyfs.client.connections of them. A broken connection is dropped and
+ * replaced on the next call, and a background check pings the idle connections every
+ * tinyfs.client.healthcheck milliseconds and drops those that do not answer.
+ * Every connection carries at most tinyfs.client.maxinflight requests at once and a call
+ * fails after tinyfs.client.timeout milliseconds without a reply, 0 waits for ever.
+ * Requests on one chunk in flight at once share a connection, so they reach the chunk
+ * server in order.
+ */
+public class ConnectionPool {
+	public static final int MaxConnections = Integer.getInteger("tinyfs.client.connections", 4);
+	public static final int MaxInFlight = Integer.getInteger("tinyfs.client.maxinflight", 256);
+	public static final long TimeoutMillis = Long.getLong("tinyfs.client.timeout", 0);
+	public static final long HealthCheckMillis = Long.getLong("tinyfs.client.healthcheck", 5000);
+
+	// one pool per endpoint, by the config file that names it
+	private static final ConcurrentHashMap<String, ConnectionPool> Pools = new ConcurrentHashMap<String, ConnectionPool>();
+
+	private static final ScheduledExecutorService HealthChecks = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "connection-health-check");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String configFile;
+	// open connections, a null slot is opened on demand
+	private final AtomicReferenceArray<FrameConnection> connections = new AtomicReferenceArray<FrameConnection>(MaxConnections);
+
+	// the connection of every chunk with requests in flight, see submit(String, Frame, Frame)
+	private final HashMap<String, Route> routes = new HashMap<String, Route>();
+
+	private static class Route {
+		final FrameConnection conn;
+		int inFlight;
+
+		Route(FrameConnection conn) {
+			this.conn = conn;
+		}
+	}
+
+	private ConnectionPool(String configFile) {
+		this.configFile = configFile;
+	}
+
+	/**
+	 * The pool of the endpoint whose host:port is in the config file.
+	 */
+	public static ConnectionPool of(String configFile) {
+		return Pools.computeIfAbsent(configFile, file -> {
+			ConnectionPool pool = new ConnectionPool(file);
+			if (HealthCheckMillis > 0)
+				HealthChecks.scheduleWithFixedDelay(pool::checkHealth, HealthCheckMillis, HealthCheckMillis, TimeUnit.MILLISECONDS);
+			return pool;
+		});
+	}
+
+	/**
+	 * A healthy connection for the next request: the least busy open one, or a new one
+	 * while every open connection is busy and the pool is not full.
+	 */
+	public FrameConnection get() throws IOException {
+		FrameConnection best = null;
+		int free = -1;
+		for (int i = 0; i < MaxConnections; i++) {
+			FrameConnection conn = connections.get(i);
+			if (conn != null && conn.isBroken()) {
+				connections.compareAndSet(i, conn, null);
+				conn = null;
+			}
+			if (conn == null) {
+				if (free == -1) free = i;
+				continue;
+			}
+			if (best == null || conn.inFlight() < best.inFlight())
+				best = conn;
+		}
+		if (free != -1 && (best == null || best.inFlight() > 0))
+			return open(free, best);
+		return best;
+	}
+
+	// open a connection in the free slot, or use the one another thread opened there first
+	private synchronized FrameConnection open(int slot, FrameConnection fallback) throws IOException {
+		FrameConnection conn = connections.get(slot);
+		if (conn != null && !conn.isBroken())
+			return conn;
+		try {
+			conn = FrameConnection.connect(configFile, MaxInFlight, TimeoutMillis);
+		} catch (IOException e) {
+			// the endpoint may refuse more connections, keep using the open ones
+			if (fallback != null) return fallback;
+			throw e;
+		}
+		connections.set(slot, conn);
+		return conn;
+	}
+
+	/**
+	 * Send the request on a pooled connection and wait for its reply, see FrameConnection.call.
+	 */
+	public Frame call(Frame request, Frame reply) throws IOException {
+		return get().call(request, reply);
+	}
+
+	/**
+	 * Send the request on a pooled connection without waiting, see FrameConnection.submit.
+	 */
+	public CompletableFuture<Frame> submit(Frame request, Frame reply) {
+		try {
+			return get().submit(request, reply);
+		} catch (IOException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Send the request about the chunk on a pooled connection and wait for its reply.
+	 * It goes on the connection of the requests on the chunk still in flight, see submit.
+	 */
+	public Frame call(String chunk, Frame request, Frame reply) throws IOException {
+		FrameConnection conn = route(chunk);
+		try {
+			return conn.call(request, reply);
+		} finally {
+			release(chunk, conn);
+		}
+	}
+
+	/**
+	 * Send the request about the chunk on a pooled connection without waiting.
+	 * While requests on the chunk are in flight it goes on their connection, where the chunk
+	 * server runs the requests on one chunk in the order they were sent, so a read submitted
+	 * after a write sees the write. Requests on different chunks spread over the pool.
+	 */
+	public CompletableFuture<Frame> submit(String chunk, Frame request, Frame reply) {
+		FrameConnection conn;
+		try {
+			conn = route(chunk);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		CompletableFuture<Frame> sent = conn.submit(request, reply);
+		sent.whenComplete((r, e) -> release(chunk, conn));
+		return sent;
+	}
+
+	// the connection of the requests in flight on the chunk, a pooled one if there are none
+	private FrameConnection route(String chunk) throws IOException {
+		synchronized (routes) {
+			Route route = routes.get(chunk);
+			if (route == null || route.conn.isBroken()) {
+				route = new Route(get());
+				routes.put(chunk, route);
+			}
+			route.inFlight++;
+			return route.conn;
+		}
+	}
+
+	// a request on the chunk finished, forget its connection once none is left in flight
+	private void release(String chunk, FrameConnection conn) {
+		synchronized (routes) {
+			Route route = routes.get(chunk);
+			if (route != null && route.conn == conn && --route.inFlight == 0)
+				routes.remove(chunk);
+		}
+	}
+
+	private static CompletableFuture<Frame> failed(IOException e) {
+		CompletableFuture<Frame> failed = new CompletableFuture<Frame>();
+		failed.completeExceptionally(e);
+		return failed;
+	}
+
+	/**
+	 * Number of open connections.
+	 */
+	public int size() {
+		int open = 0;
+		for (int i = 0; i < MaxConnections; i++) {
+			if (connections.get(i) != null) open++;
+		}
+		return open;
+	}
+
+	// ping the idle connections, a busy connection shows its health with its replies
+	void checkHealth() {
+		for (int i = 0; i < MaxConnections; i++) {
+			FrameConnection conn = connections.get(i);
+			if (conn == null || conn.inFlight() > 0) continue;
+			if (conn.isBroken() || !conn.ping(HealthCheckMillis)) {
+				System.out.println("Error (ConnectionPool): dropping an unresponsive connection to the endpoint of " + configFile);
+				connections.compareAndSet(i, conn, null);
+				try {
+					conn.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -2,22 +2,36 @@ package com.client;
 
 import java.io.Serializable;
 
+import com.interfaces.ChunkServerInterface;
+
 public class FileHandle implements Serializable {
 	private static final long serialVersionUID = 1L;
 
 	public String temp;
 	public String filepath;
+	public int chunkSize;
+	
+	// cursor of the last record read through this handle, see ClientRec.ReadNextRecord;
+	// only the thread that opened it reads through it, other threads replace it
+	transient volatile RecordCursor cursor;
 	
 	public FileHandle() {
 		temp = "something";
+		chunkSize = ChunkServerInterface.DefaultChunkSize;
 	}
 	
 	public void setToHandle(FileHandle fh) {
 		this.temp = fh.temp;
 		this.filepath = fh.filepath;
+		this.chunkSize = fh.chunkSize;
+		this.cursor = null;
 	}
 
 	public void setFilePath(String path) {
 		this.filepath = path;
 	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
 }
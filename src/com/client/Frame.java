@@ -0,0 +1,283 @@
+package com.client;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * One message of the TinyFS wire protocol, shared by the client, the master and the chunk server.
+ * On the wire a frame is <length - opcode - request id - body> where length counts every
+ * byte after itself. A reply carries the opcode and request id of its request.
+ * Strings and byte blocks in the body are written as <length - bytes>, a length of -1 is null.
+ * Frames are reusable: a connection receives into the same frame again and again, and
+ * every thread has a request and a reply frame for its calls, so decoding an int or a
+ * string allocates nothing beyond the String itself.
+ */
+public class Frame {
+	// opcode and request id
+	public static final int HeaderSize = 8;
+
+	// a reused frame gives back a body grown past this size so one large chunk does not pin it
+	static final int RetainedSize = 2 * 1024 * 1024 + 64 * 1024;
+
+	// request and reply frame of every thread, see pooledRequest and pooledReply
+	private static final ThreadLocal<Frame[]> Pool = ThreadLocal.withInitial(() -> new Frame[] { new Frame(0), new Frame(0) });
+
+	public int opcode;
+	public int requestId;
+
+	// built with the put methods, read back with the get methods once received
+	private ByteBuffer body;
+
+	public Frame(int opcode) {
+		this(opcode, 0, ByteBuffer.allocate(64));
+	}
+
+	Frame(int opcode, int requestId, ByteBuffer body) {
+		this.opcode = opcode;
+		this.requestId = requestId;
+		this.body = body;
+	}
+
+	/**
+	 * Return an empty reply to the request.
+	 */
+	public static Frame reply(Frame request) {
+		return new Frame(request.opcode).replyTo(request);
+	}
+
+	/**
+	 * The request frame of the calling thread, emptied for the opcode.
+	 * It stays valid until the thread asks for it again.
+	 */
+	public static Frame pooledRequest(int opcode) {
+		return Pool.get()[0].reset(opcode);
+	}
+
+	/**
+	 * The frame the calling thread receives its replies into.
+	 * A reply stays valid until the thread's next call.
+	 */
+	public static Frame pooledReply() {
+		return Pool.get()[1];
+	}
+
+	/**
+	 * Empty the frame for a new message with the opcode.
+	 */
+	public Frame reset(int opcode) {
+		this.opcode = opcode;
+		this.requestId = 0;
+		if (body.capacity() > RetainedSize) body = ByteBuffer.allocate(64);
+		body.clear();
+		return this;
+	}
+
+	/**
+	 * Empty the frame for the reply to the request.
+	 */
+	public Frame replyTo(Frame request) {
+		reset(request.opcode);
+		this.requestId = request.requestId;
+		return this;
+	}
+
+	/**
+	 * Prepare the body for length received bytes and return the array to read them into.
+	 */
+	byte[] fill(int opcode, int requestId, int length) {
+		this.opcode = opcode;
+		this.requestId = requestId;
+		if (body.capacity() < length || body.capacity() > RetainedSize)
+			body = ByteBuffer.allocate(Math.max(length, 64));
+		body.clear();
+		body.limit(length);
+		return body.array();
+	}
+
+	/**
+	 * Take the next whole frame off the front of a buffer of received bytes, for servers
+	 * that read channels without blocking. Return null while only part of it has arrived.
+	 */
+	public static Frame decode(ByteBuffer received) throws IOException {
+		if (received.remaining() < 4) return null;
+		int length = received.getInt(received.position());
+		if (length < HeaderSize || length > FrameConnection.MaxFrameSize)
+			throw new IOException("Invalid frame length " + length);
+		if (received.remaining() < 4 + length) return null;
+
+		received.getInt();
+		int opcode = received.getInt();
+		int requestId = received.getInt();
+		Frame frame = new Frame(0);
+		received.get(frame.fill(opcode, requestId, length - HeaderSize), 0, length - HeaderSize);
+		return frame;
+	}
+
+	/**
+	 * The frame as it goes on the wire, ready to be written to a channel.
+	 */
+	public ByteBuffer encode() {
+		ByteBuffer wire = ByteBuffer.allocate(4 + HeaderSize + length());
+		wire.putInt(HeaderSize + length()).putInt(opcode).putInt(requestId).put(body.array(), 0, length());
+		wire.flip();
+		return wire;
+	}
+
+	public Frame putInt(int value) {
+		ensure(4);
+		body.putInt(value);
+		return this;
+	}
+
+	public Frame putLong(long value) {
+		ensure(8);
+		body.putLong(value);
+		return this;
+	}
+
+	/**
+	 * Append the bytes without a length, the reader knows how many to expect.
+	 */
+	public Frame putBytes(byte[] bytes) {
+		ensure(bytes.length);
+		body.put(bytes);
+		return this;
+	}
+
+	/**
+	 * Append a length prefixed block, null is written as length -1.
+	 */
+	public Frame putBlock(byte[] bytes) {
+		if (bytes == null) return putInt(-1);
+		putInt(bytes.length);
+		return putBytes(bytes);
+	}
+
+	/**
+	 * Append length bytes of the array from offset as a length prefixed block.
+	 */
+	public Frame putBlock(byte[] bytes, int offset, int length) {
+		putInt(length);
+		ensure(length);
+		body.put(bytes, offset, length);
+		return this;
+	}
+
+	public Frame putString(String s) {
+		return putBlock(s == null ? null : s.getBytes());
+	}
+
+	/**
+	 * Append another frame as <length - opcode - body>, the way a batch carries its sub-requests.
+	 */
+	public Frame putFrame(Frame frame) {
+		putInt(4 + frame.length());
+		putInt(frame.opcode);
+		ensure(frame.length());
+		body.put(frame.array(), 0, frame.length());
+		return this;
+	}
+
+	/**
+	 * Read a frame written by putFrame into the caller's frame.
+	 */
+	public Frame getFrame(Frame into) {
+		int length = body.getInt() - 4;
+		if (length < 0 || length + 4 > body.remaining())
+			throw new BufferUnderflowException();
+		int opcode = body.getInt();
+		body.get(into.fill(opcode, requestId, length), 0, length);
+		return into;
+	}
+
+	public int getInt() {
+		return body.getInt();
+	}
+
+	// the int at the offset of the body, without moving past it
+	int getIntAt(int offset) {
+		return body.getInt(offset);
+	}
+
+	public long getLong() {
+		return body.getLong();
+	}
+
+	public byte[] getBytes(int length) {
+		byte[] bytes = new byte[length];
+		body.get(bytes);
+		return bytes;
+	}
+
+	public byte[] getBlock() {
+		int length = body.getInt();
+		return length < 0 ? null : getBytes(length);
+	}
+
+	/**
+	 * Copy a length prefixed block into the caller's array at offset.
+	 * Return the length of the block, -1 if it is null.
+	 */
+	public int getBlock(byte[] into, int offset) {
+		int length = body.getInt();
+		if (length > 0) body.get(into, offset, length);
+		return length;
+	}
+
+	public String getString() {
+		int length = body.getInt();
+		if (length < 0) return null;
+		// decode straight from the body, no intermediate copy of the bytes
+		String s = new String(body.array(), body.position(), length);
+		body.position(body.position() + length);
+		return s;
+	}
+
+	/**
+	 * The string getString returns next, without moving past it.
+	 * Return null if the body does not hold a whole string there.
+	 */
+	public String peekString() {
+		if (body.remaining() < 4) return null;
+		int length = body.getInt(body.position());
+		if (length < 0 || length > body.remaining() - 4) return null;
+		return new String(body.array(), body.position() + 4, length);
+	}
+
+	/**
+	 * Number of body bytes left to read.
+	 */
+	public int remaining() {
+		return body.remaining();
+	}
+
+	/**
+	 * Read position in the body, to go back to with position(int).
+	 */
+	public int position() {
+		return body.position();
+	}
+
+	public Frame position(int position) {
+		body.position(position);
+		return this;
+	}
+
+	// bytes of the body written so far
+	int length() {
+		return body.position();
+	}
+
+	byte[] array() {
+		return body.array();
+	}
+
+	private void ensure(int bytes) {
+		if (body.remaining() >= bytes) return;
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + bytes));
+		body.flip();
+		grown.put(body);
+		body = grown;
+	}
+}
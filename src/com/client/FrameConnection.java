@@ -0,0 +1,529 @@
+package com.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.interfaces.ChunkServerInterface;
+
+/**
+ * A socket speaking the framed TinyFS protocol, see Frame.
+ * Frames go through buffered data streams and are flushed once per frame
+ * with Nagle's algorithm off, so a small request is a single packet.
+ * A client connection is pipelined: call and submit tag every request with a new
+ * request id and a reader thread hands each reply to the caller waiting for that id,
+ * so many requests can be in flight at once and the server may answer them in any order.
+ * A connection either receives frames itself (the server side) or is read by its
+ * reader thread once call or submit was used, never both.
+ * A client connection can limit the requests it has in flight, submit waits for a free
+ * slot, and how long call waits for a reply.
+ * The same protocol runs over TCP or over a Unix domain socket: a server started with
+ * -Dtinyfs.unixsocket=true also listens on a socket file and adds a unix:<path> line to its
+ * config file, and connect uses that socket when the endpoint is on this host.
+ */
+public class FrameConnection implements Closeable {
+	// largest frame accepted, a whole chunk plus its request fields
+	public static final int MaxFrameSize = ChunkServerInterface.MaxChunkSize + 64 * 1024;
+
+	private static final int BufferSize = 64 * 1024;
+
+	// answered with an empty reply by the master and the chunk server, see ping
+	public static final int PING_COMMAND = 1000;
+	// carries sub-requests for the master or the chunk server, see Batch
+	public static final int BATCH_COMMAND = 1001;
+
+	// config file line naming the Unix domain socket of a server
+	public static final String UnixPrefix = "unix:";
+	// servers also listen on a Unix domain socket, set with -Dtinyfs.unixsocket=true
+	public static final boolean UnixSocket = Boolean.getBoolean("tinyfs.unixsocket");
+	// clients use the Unix domain socket of a local server, turn off with -Dtinyfs.client.unixsocket=false
+	public static final boolean PreferUnixSocket = Boolean.parseBoolean(System.getProperty("tinyfs.client.unixsocket", "true"));
+
+	// one of the two is set: a TCP socket or a Unix domain socket channel
+	private final Socket socket;
+	private final SocketChannel channel;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	private final AtomicInteger nextRequestId = new AtomicInteger(1);
+
+	// requests sent and not answered yet, by request id
+	private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+	private Thread reader;
+	// why the reader stopped, every later request fails with it
+	private volatile IOException failure;
+
+	// a permit for every request in flight, released once its pending call is taken out of the map
+	private final Semaphore permits;
+	// how long call waits for a reply, 0 for as long as it takes
+	private final long timeoutMillis;
+
+	// states of a pending call: the reader fills the caller's reply frame only if the caller
+	// did not give up on it first, and a caller that gives up too late waits for the reply
+	private static final int Waiting = 0;
+	private static final int Filling = 1;
+	private static final int Abandoned = 2;
+
+	// a request waiting for its reply, the reader receives the reply into the caller's frame
+	private static class Pending {
+		final Frame reply;
+		final CompletableFuture<Frame> done = new CompletableFuture<Frame>();
+		final AtomicInteger state = new AtomicInteger(Waiting);
+
+		Pending(Frame reply) {
+			this.reply = reply;
+		}
+	}
+
+	public FrameConnection(Socket socket) throws IOException {
+		this(socket, Integer.MAX_VALUE, 0);
+	}
+
+	/**
+	 * A client connection with at most maxInFlight requests in flight whose calls
+	 * fail after timeoutMillis without a reply, 0 to wait for as long as it takes.
+	 */
+	public FrameConnection(Socket socket, int maxInFlight, long timeoutMillis) throws IOException {
+		this.socket = socket;
+		this.channel = null;
+		this.permits = new Semaphore(maxInFlight);
+		this.timeoutMillis = timeoutMillis;
+		socket.setTcpNoDelay(true);
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BufferSize));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BufferSize));
+	}
+
+	public FrameConnection(SocketChannel channel) throws IOException {
+		this(channel, Integer.MAX_VALUE, 0);
+	}
+
+	/**
+	 * A connection over a blocking Unix domain socket channel, see the Socket constructor for the limits.
+	 */
+	public FrameConnection(SocketChannel channel, int maxInFlight, long timeoutMillis) throws IOException {
+		this.socket = null;
+		this.channel = channel;
+		this.permits = new Semaphore(maxInFlight);
+		this.timeoutMillis = timeoutMillis;
+		this.in = new DataInputStream(new BufferedInputStream(new ChannelInput(channel), BufferSize));
+		this.out = new DataOutputStream(new BufferedOutputStream(new ChannelOutput(channel), BufferSize));
+	}
+
+	/**
+	 * Connect to the server whose host:port is in the config file.
+	 */
+	public static FrameConnection connect(String configFile) throws IOException {
+		return connect(configFile, Integer.MAX_VALUE, 0);
+	}
+
+	/**
+	 * Connect to the server whose host:port is in the config file with the given limits.
+	 * A local server that listens on a Unix domain socket is reached through it.
+	 */
+	public static FrameConnection connect(String configFile, int maxInFlight, long timeoutMillis) throws IOException {
+		String hostPort;
+		String unixPath = null;
+		BufferedReader binput = new BufferedReader(new FileReader(configFile));
+		try {
+			hostPort = binput.readLine();
+			String line;
+			while ((line = binput.readLine()) != null) {
+				if (line.startsWith(UnixPrefix))
+					unixPath = line.substring(UnixPrefix.length());
+			}
+		} finally {
+			binput.close();
+		}
+		String host = hostPort.substring(0, hostPort.indexOf(':'));
+		String port = hostPort.substring(hostPort.indexOf(':') + 1);
+
+		if (PreferUnixSocket && unixPath != null && isLocal(host) && new File(unixPath).exists()) {
+			try {
+				return new FrameConnection(SocketChannel.open(UnixDomainSocketAddress.of(unixPath)), maxInFlight, timeoutMillis);
+			} catch (IOException e) {
+				// a socket file left behind by a stopped server, TCP still tells whether it runs
+			}
+		}
+		return new FrameConnection(new Socket("127.0.0.1", Integer.parseInt(port)), maxInFlight, timeoutMillis);
+	}
+
+	// true if the host names this machine
+	private static boolean isLocal(String host) {
+		if (host.equals("localhost")) return true;
+		try {
+			InetAddress address = InetAddress.getByName(host);
+			return address.isLoopbackAddress() || address.equals(InetAddress.getLocalHost());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Listen on the Unix domain socket file, replacing one left behind by a server that stopped.
+	 * The file is removed again when the JVM exits.
+	 */
+	public static ServerSocketChannel listenUnix(String socketFile) throws IOException {
+		Path path = Path.of(socketFile).toAbsolutePath();
+		Files.deleteIfExists(path);
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(path), 1024);
+		path.toFile().deleteOnExit();
+		return server;
+	}
+
+	/**
+	 * The config file line of a Unix domain socket server, see listenUnix.
+	 */
+	public static String unixConfigLine(ServerSocketChannel server) throws IOException {
+		return UnixPrefix + ((UnixDomainSocketAddress) server.getLocalAddress()).getPath();
+	}
+
+	// streams over a blocking channel, reads and writes do not wait for each other
+	private static class ChannelInput extends InputStream {
+		private final SocketChannel channel;
+
+		ChannelInput(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+	}
+
+	private static class ChannelOutput extends OutputStream {
+		private final SocketChannel channel;
+
+		ChannelOutput(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		}
+	}
+
+	/**
+	 * Write the frame and flush it.
+	 */
+	public synchronized void send(Frame frame) throws IOException {
+		out.writeInt(Frame.HeaderSize + frame.length());
+		out.writeInt(frame.opcode);
+		out.writeInt(frame.requestId);
+		out.write(frame.array(), 0, frame.length());
+		out.flush();
+	}
+
+	/**
+	 * Rest of a frame body written straight to the socket, see sendTransfer.
+	 */
+	public interface Transfer {
+		/**
+		 * Write head and then the rest of the body to the channel, or write nothing and return false.
+		 */
+		boolean writeTo(ByteBuffer head, WritableByteChannel channel) throws IOException;
+	}
+
+	/**
+	 * Send the frame with count more body bytes that transfer writes straight to the socket channel,
+	 * e.g. from a chunk file with FileChannel.transferTo, so they never pass through the heap.
+	 * The receiver sees an ordinary frame. Return false if transfer wrote nothing.
+	 * A failure after part of the frame was written leaves the connection unusable.
+	 */
+	public synchronized boolean sendTransfer(Frame frame, int count, Transfer transfer) throws IOException {
+		out.flush();
+		ByteBuffer head = ByteBuffer.allocate(4 + Frame.HeaderSize + frame.length());
+		head.putInt(Frame.HeaderSize + frame.length() + count);
+		head.putInt(frame.opcode);
+		head.putInt(frame.requestId);
+		head.put(frame.array(), 0, frame.length());
+		head.flip();
+		return transfer.writeTo(head, rawChannel());
+	}
+
+	// the socket's channel for writes that bypass the buffered stream
+	private WritableByteChannel rawChannel() throws IOException {
+		if (channel != null) return channel;
+		if (socket.getChannel() != null) return socket.getChannel();
+		// a socket accepted without a channel, the bytes are copied through a stream buffer
+		return Channels.newChannel(socket.getOutputStream());
+	}
+
+	/**
+	 * Read the next frame, null once the other side closed the connection.
+	 */
+	public Frame receive() throws IOException {
+		return receive(new Frame(0));
+	}
+
+	/**
+	 * Read the next frame into the caller's frame, reusing its body.
+	 * Return null once the other side closed the connection.
+	 */
+	public Frame receive(Frame into) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < Frame.HeaderSize || length > MaxFrameSize)
+			throw new IOException("Invalid frame length " + length);
+
+		int opcode = in.readInt();
+		int requestId = in.readInt();
+		in.readFully(into.fill(opcode, requestId, length - Frame.HeaderSize), 0, length - Frame.HeaderSize);
+		return into;
+	}
+
+	/**
+	 * Send the request and wait for its reply.
+	 */
+	public Frame call(Frame request) throws IOException {
+		return call(request, new Frame(0));
+	}
+
+	/**
+	 * Send the request and receive its reply into the caller's frame.
+	 * Other threads can have requests in flight on the connection meanwhile.
+	 */
+	public Frame call(Frame request, Frame reply) throws IOException {
+		return await(post(request, reply), request.requestId, timeoutMillis);
+	}
+
+	/**
+	 * Send an empty PING_COMMAND and wait up to timeoutMillis for the reply.
+	 * Return false if the connection is broken or the server did not answer in time.
+	 */
+	public boolean ping(long timeoutMillis) {
+		Frame request = new Frame(PING_COMMAND);
+		try {
+			await(post(request, new Frame(0)), request.requestId, timeoutMillis);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// wait for the reply to the request, give up on it after timeoutMillis unless that is 0
+	private Frame await(Pending call, int requestId, long timeoutMillis) throws IOException {
+		try {
+			return timeoutMillis > 0 ? call.done.get(timeoutMillis, TimeUnit.MILLISECONDS) : call.done.get();
+		} catch (TimeoutException e) {
+			if (!abandon(call, requestId))
+				return filled(call);
+			throw new InterruptedIOException("No reply to request " + requestId + " after " + timeoutMillis + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (!abandon(call, requestId))
+				return filled(call);
+			throw new InterruptedIOException("Interrupted while waiting for reply " + requestId);
+		} catch (ExecutionException e) {
+			throw failed(e);
+		}
+	}
+
+	// give up on the call unless the reader already receives its reply into the caller's frame
+	private boolean abandon(Pending call, int requestId) {
+		take(requestId);
+		return call.state.compareAndSet(Waiting, Abandoned);
+	}
+
+	// the reply the reader is receiving into the caller's frame, the caller may not reuse the
+	// frame before it is complete; it is, or the connection breaks
+	private Frame filled(Pending call) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return call.done.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw failed(e);
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private static IOException failed(ExecutionException e) {
+		if (e.getCause() instanceof IOException)
+			return (IOException) e.getCause();
+		return new IOException(e.getCause());
+	}
+
+	/**
+	 * Send the request without waiting for its reply.
+	 * The future completes with reply once the reply was received into it, or with the
+	 * IOException that broke the connection. The request frame can be reused when submit
+	 * returns, the reply frame only once the future completed.
+	 * Dependent actions of the future run on the reader thread and must not block.
+	 */
+	public CompletableFuture<Frame> submit(Frame request, Frame reply) {
+		return post(request, reply).done;
+	}
+
+	// send the request and return its pending call
+	private Pending post(Frame request, Frame reply) {
+		startReader();
+		Pending call = new Pending(reply);
+		int id = nextRequestId.getAndIncrement();
+		request.requestId = id;
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			call.done.completeExceptionally(new InterruptedIOException("Interrupted while waiting to send request " + id));
+			return call;
+		}
+		pending.put(id, call);
+		try {
+			// the reader sets failure before it fails the pending calls, so none is left behind
+			if (failure != null)
+				throw failure;
+			send(request);
+		} catch (IOException e) {
+			take(id);
+			call.done.completeExceptionally(e);
+		}
+		return call;
+	}
+
+	// take the pending call of the request out of the map and free its permit, null if it is gone already
+	private Pending take(int requestId) {
+		Pending call = pending.remove(requestId);
+		if (call != null)
+			permits.release();
+		return call;
+	}
+
+	/**
+	 * Number of requests sent and not answered yet.
+	 */
+	public int inFlight() {
+		return pending.size();
+	}
+
+	/**
+	 * True once the connection cannot carry requests any more.
+	 */
+	public boolean isBroken() {
+		return failure != null || isClosed();
+	}
+
+	private synchronized void startReader() {
+		if (reader != null) return;
+		reader = new Thread(this::readReplies, "frame-reader-" + (socket != null ? socket.getPort() : "unix"));
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	// hand every reply to the call waiting for its request id until the connection breaks
+	private void readReplies() {
+		IOException cause;
+		try {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					cause = new EOFException("Connection closed while waiting for a reply");
+					break;
+				}
+				if (length < Frame.HeaderSize || length > MaxFrameSize)
+					throw new IOException("Invalid frame length " + length);
+
+				int opcode = in.readInt();
+				int requestId = in.readInt();
+				int bodyLength = length - Frame.HeaderSize;
+				Pending call = take(requestId);
+				if (call == null || !call.state.compareAndSet(Waiting, Filling)) {
+					// the caller gave up waiting for it
+					in.skipNBytes(bodyLength);
+					continue;
+				}
+				in.readFully(call.reply.fill(opcode, requestId, bodyLength), 0, bodyLength);
+				call.done.complete(call.reply);
+			}
+		} catch (IOException e) {
+			cause = e;
+		}
+		failure = cause;
+		for (Integer id : pending.keySet()) {
+			Pending call = take(id);
+			if (call != null)
+				call.done.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Port of the server, -1 over a Unix domain socket.
+	 */
+	public int getPort() {
+		return socket != null ? socket.getPort() : -1;
+	}
+
+	/**
+	 * True if the connection runs over a Unix domain socket.
+	 */
+	public boolean isUnix() {
+		return channel != null;
+	}
+
+	public String toString() {
+		return socket != null ? "port " + socket.getPort() : "Unix domain socket";
+	}
+
+	public boolean isClosed() {
+		return socket != null ? socket.isClosed() : !channel.isOpen();
+	}
+
+	public void close() throws IOException {
+		if (socket != null) socket.close();
+		else channel.close();
+	}
+}
@@ -0,0 +1,267 @@
+package com.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import com.client.ClientFS.FSReturnVals;
+
+/**
+ * Stateful iterator over the records of an open file, forward or in reverse.
+ * The chunk list of the file is fetched from the master once and every chunk is
+ * read with a single readChunk and decoded locally, so a full scan costs one
+ * round trip per chunk instead of several per record. The read of the next chunk
+ * in scan order is pipelined on the connection while the current one is consumed.
+ * A seek only fetches the records after the pivot, with one scanChunk of its chunk.
+ *
+ * Every chunk is decoded once, when the cursor reaches it, so the cursor reads a
+ * snapshot of each chunk: records other clients append to or delete from a chunk
+ * after that are not seen until a new cursor is opened or seeks to the chunk again.
+ * A cursor is not thread safe and only the thread that opened it may use it.
+ */
+public class RecordCursor {
+	private final Client client = new Client();
+	private final Supplier<List<String>> chunkList;
+	private final int chunkSize;
+	private final boolean forward;
+
+	// chunk list of the file, fetched on first use by a cursor opened at the last chunk
+	private List<String> chunks;
+	private String tail;
+
+	// position in the chunk list and the decoded live records of that chunk, in scan order
+	private String chunkHandle;
+	private int chunkIndex;
+	private List<TinyRec> records = Collections.emptyList();
+	private int position;
+
+	// chunk images are read into this array, decode copies the payloads out so it is reused for every chunk
+	private byte[] chunkBuffer;
+
+	// in flight read of the chunk after the current one, its reply arrives in prefetchReply
+	private CompletableFuture<Frame> prefetched;
+	private Frame prefetchReply;
+	private String prefetchedHandle;
+
+	// record returned by the last call to next
+	private RID current;
+
+	// the thread that opened the cursor
+	private final Thread owner = Thread.currentThread();
+
+	RecordCursor(List<String> chunks, int chunkSize, boolean forward) {
+		this.chunkList = null;
+		this.chunks = chunks;
+		this.chunkSize = chunkSize;
+		this.forward = forward;
+		this.chunkIndex = forward ? -1 : chunks.size();
+	}
+
+	/**
+	 * Reverse cursor that starts at the last chunk of the file without its chunk list.
+	 * The list is only fetched once the cursor walks past the last chunk.
+	 */
+	RecordCursor(String lastChunk, Supplier<List<String>> chunkList, int chunkSize) {
+		this.chunkList = chunkList;
+		this.chunkSize = chunkSize;
+		this.forward = false;
+		this.tail = lastChunk;
+	}
+
+	public boolean isForward() {
+		return forward;
+	}
+
+	/**
+	 * True if the calling thread opened the cursor and may use it.
+	 */
+	boolean isOwner() {
+		return owner == Thread.currentThread();
+	}
+
+	/**
+	 * True if the last record returned by the cursor is the record pivot.
+	 */
+	public boolean isAt(RID pivot) {
+		return current != null && pivot != null && current.slotNumber == pivot.slotNumber && current.chunkHandle.equals(pivot.chunkHandle);
+	}
+
+	/**
+	 * Position the cursor so the next record is the one after the pivot in scan order.
+	 * Return BadRecID if the pivot's chunk is not part of the file.
+	 */
+	public FSReturnVals seek(RID pivot) {
+		if (pivot == null) {
+			return FSReturnVals.BadRecID;
+		}
+		if (!resolveChunks()) {
+			return FSReturnVals.Fail;
+		}
+		int index = chunks.indexOf(pivot.chunkHandle);
+		if (index == -1) {
+			return FSReturnVals.BadRecID;
+		}
+		// only the records after the pivot are fetched, the chunk server skips the ones before it
+		List<TinyRec> following = new ArrayList<TinyRec>();
+		int start = forward ? pivot.slotNumber + 1 : pivot.slotNumber - 1;
+		if (start >= 1) {
+			following = client.scanChunk(pivot.chunkHandle, chunkSize, start, forward, 0);
+			if (following == null) {
+				return FSReturnVals.Fail;
+			}
+		}
+		loaded(index, pivot.chunkHandle, following);
+		tail = null;
+		current = pivot;
+		return FSReturnVals.Success;
+	}
+
+	/**
+	 * Read the next live record into rec.
+	 * Return RecDoesNotExist once the cursor is past the end of the file.
+	 */
+	public FSReturnVals next(TinyRec rec) {
+		if (tail != null) {
+			String last = tail;
+			tail = null;
+			if (!load(-1, last)) {
+				return FSReturnVals.Fail;
+			}
+		}
+		while (position == records.size()) {
+			if (!resolveChunks()) {
+				return FSReturnVals.Fail;
+			}
+			int index = forward ? chunkIndex + 1 : chunkIndex - 1;
+			if (index < 0 || index >= chunks.size()) {
+				return FSReturnVals.RecDoesNotExist;
+			}
+			if (!load(index, chunks.get(index))) {
+				return FSReturnVals.Fail;
+			}
+		}
+		TinyRec next = records.get(position++);
+		rec.setRID(next.getRID());
+		rec.setPayload(next.getPayload());
+		current = next.getRID();
+		return FSReturnVals.Success;
+	}
+
+	/**
+	 * Drop a deleted record from the decoded chunk so the cursor does not return it.
+	 */
+	void forget(RID deleted) {
+		if (deleted.chunkHandle.equals(prefetchedHandle)) {
+			// the reply of the dropped read may still arrive, the next one gets a new frame
+			prefetched = null;
+			prefetchedHandle = null;
+			prefetchReply = null;
+		}
+		for (int i = 0; i < records.size(); i++) {
+			RID id = records.get(i).getRID();
+			if (id.slotNumber == deleted.slotNumber && id.chunkHandle.equals(deleted.chunkHandle)) {
+				records.remove(i);
+				if (i < position) position--;
+				return;
+			}
+		}
+	}
+
+	// fetch the chunk list of a cursor opened at the last chunk and find that chunk in it
+	private boolean resolveChunks() {
+		if (chunks != null) {
+			return true;
+		}
+		chunks = chunkList.get();
+		if (chunks == null) {
+			return false;
+		}
+		chunkIndex = chunkHandle == null ? chunks.size() : chunks.indexOf(chunkHandle);
+		return chunkIndex != -1;
+	}
+
+	// load the chunk at index in the chunk list, -1 if the list is not known yet
+	private boolean load(int index, String handle) {
+		if (chunkBuffer == null) chunkBuffer = new byte[chunkSize];
+		byte[] chunk = chunkBuffer;
+		int length = -1;
+		if (handle.equals(prefetchedHandle)) {
+			try {
+				length = prefetched.get().getBlock(chunk, 0);
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
+			}
+			prefetched = null;
+			prefetchedHandle = null;
+		}
+		if (length == -1) {
+			length = client.readChunk(handle, 0, chunkSize, chunkSize, chunk);
+		}
+		if (length == -1) {
+			return false;
+		}
+		List<TinyRec> records = decode(handle, chunk, length, chunkSize);
+		if (records == null) {
+			return false;
+		}
+		if (!forward) {
+			Collections.reverse(records);
+		}
+		loaded(index, handle, records);
+		return true;
+	}
+
+	// make the records the ones of the chunk at index and prefetch the chunk after it
+	private void loaded(int index, String handle, List<TinyRec> records) {
+		this.records = records;
+		chunkHandle = handle;
+		chunkIndex = index;
+		position = 0;
+
+		if (prefetched != null) {
+			// a read of another chunk is still in flight into prefetchReply, the next one gets a new frame
+			prefetched = null;
+			prefetchedHandle = null;
+			prefetchReply = null;
+		}
+		int following = forward ? index + 1 : index - 1;
+		if (index != -1 && following >= 0 && following < chunks.size()) {
+			if (prefetchReply == null) prefetchReply = new Frame(0);
+			prefetchedHandle = chunks.get(following);
+			prefetched = client.submitReadChunk(prefetchedHandle, 0, chunkSize, prefetchReply);
+		}
+	}
+
+	/**
+	 * Decode the live records of a chunk image in slot order.
+	 * The header holds the number of records and the slot directory grows down from
+	 * the end of the chunk, a slot of -1 is a deleted record.
+	 * The image is the first length bytes of chunk, the chunk is chunkSize bytes long so the
+	 * slots are placed by chunkSize. Return null if the image is not a chunk of that size.
+	 */
+	static List<TinyRec> decode(String chunkHandle, byte[] chunk, int length, int chunkSize) {
+		if (length < chunkSize) return null;
+		ByteBuffer buf = ByteBuffer.wrap(chunk, 0, chunkSize);
+		int numRecords = buf.getInt(0);
+		if (numRecords < 0 || ClientRec.CHUNK_HEADER_SIZE + numRecords * ClientRec.RECORD_SLOT_SIZE > chunkSize) return null;
+		List<TinyRec> records = new ArrayList<TinyRec>(numRecords);
+		for (int slot = 1; slot <= numRecords; slot++) {
+			int recordOffset = buf.getInt(chunkSize - slot * ClientRec.RECORD_SLOT_SIZE);
+			if (recordOffset == -1) continue;
+
+			int recordSize = buf.getInt(recordOffset - ClientRec.RECORD_HEADER_SIZE);
+			byte[] payload = new byte[recordSize];
+			System.arraycopy(chunk, recordOffset, payload, 0, recordSize);
+
+			TinyRec rec = new TinyRec();
+			rec.setRID(new RID(chunkHandle, slot));
+			rec.setPayload(payload);
+			records.add(rec);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,375 @@
+package com.client;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.client.ClientFS.FSReturnVals;
+
+/**
+ * A TinyFS file as a byte stream, see ClientFS.OpenChannel.
+ * Chunk i of the file holds bytes [i * chunkSize, (i + 1) * chunkSize) and the master keeps
+ * the length of the file. Reads keep the next chunks of the file in flight so a sequential
+ * read waits for the network once per window instead of once per chunk, and writes gather a
+ * chunk and upload it while the following chunks are filled. Writes become visible to other
+ * clients, and the new length at the master, on flush and close.
+ * A channel is meant for one thread, and a file for one writer at a time. Files written
+ * through a channel hold bytes, not records; ClientRec cannot read them.
+ */
+public class TinyFileChannel implements SeekableByteChannel {
+	// chunks read ahead and chunk writes in flight per channel, set with -Dtinyfs.client.window
+	public static final int DefaultWindow = Integer.getInteger("tinyfs.client.window", 8);
+
+	private final Client client;
+	private final ConnectionPool master;
+	private final String path;
+	private final int chunkSize;
+	private final boolean writable;
+	private int window = DefaultWindow;
+
+	// chunk handles of the file in order, chunks added by this channel and not uploaded yet
+	private final List<String> chunks;
+	private final Set<Integer> fresh = new HashSet<Integer>();
+
+	private long position;
+	private long size;
+	// length the master knows
+	private long committedSize;
+	private boolean open = true;
+
+	// a chunk read in flight or received, its reply holds the first length bytes of the chunk
+	private static class Prefetch {
+		final Frame reply;
+		final CompletableFuture<Frame> done;
+		final int length;
+
+		Prefetch(Frame reply, CompletableFuture<Frame> done, int length) {
+			this.reply = reply;
+			this.done = done;
+			this.length = length;
+		}
+	}
+
+	private final Map<Integer, Prefetch> prefetched = new HashMap<Integer, Prefetch>();
+	// reply frames of finished reads, reused by later reads
+	private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+
+	// the chunk being written and its bytes written since it was started, [dirtyFrom, dirtyTo)
+	private byte[] buffer;
+	private int bufferIndex = -1;
+	private int dirtyFrom;
+	private int dirtyTo;
+	// uploads in flight by chunk index, oldest first
+	private final LinkedHashMap<Integer, CompletableFuture<Boolean>> uploads = new LinkedHashMap<Integer, CompletableFuture<Boolean>>();
+
+	TinyFileChannel(Client client, ConnectionPool master, FileHandle ofh, boolean writable) throws IOException {
+		this.client = client;
+		this.master = master;
+		this.path = ofh.filepath;
+		this.chunkSize = ofh.chunkSize;
+		this.writable = writable;
+
+		// the length and the chunk list in one round trip
+		Batch batch = new Batch();
+		batch.add(new Frame(ClientFS.GET_FILE_LENGTH_COMMAND).putString(path));
+		batch.add(new Frame(ClientRec.GET_CHUNKS_COMMAND).putString(path));
+		Frame[] replies = batch.call(master);
+		this.size = this.committedSize = replies[0].getLong();
+		int count = replies[1].getInt();
+		if (size < 0 || count < 0)
+			throw new FileNotFoundException(path);
+		this.chunks = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			chunks.add(replies[1].getString());
+		}
+		// chunks past the end may hold bytes of a longer past, they are zeroed when the file grows over them
+		for (long i = (size + chunkSize - 1) / chunkSize; i < count; i++) {
+			fresh.add((int) i);
+		}
+	}
+
+	/**
+	 * Set how many chunks are read ahead and written concurrently, 1 for one chunk at a time.
+	 */
+	public TinyFileChannel setWindow(int chunks) {
+		this.window = Math.max(1, chunks);
+		return this;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (position >= size) return -1;
+		if (!dst.hasRemaining()) return 0;
+		// reads see the writes of the channel
+		if (bufferIndex != -1 || !uploads.isEmpty())
+			flushChunks();
+
+		int read = 0;
+		while (dst.hasRemaining() && position < size) {
+			int index = (int) (position / chunkSize);
+			int within = (int) (position % chunkSize);
+			int n = (int) Math.min(dst.remaining(), Math.min(chunkSize - within, size - position));
+
+			Frame reply = fetch(index);
+			// a chunk that was never written reads as zeros
+			if (reply == null || reply.getIntAt(0) < 0) {
+				for (int i = 0; i < n; i++) dst.put((byte) 0);
+			} else {
+				dst.put(reply.array(), 4 + within, n);
+			}
+			position += n;
+			read += n;
+			// stop at a chunk that has not arrived yet once something was read
+			if (dst.hasRemaining() && position < size && !arrived((int) (position / chunkSize)))
+				break;
+		}
+		return read;
+	}
+
+	// the reply of the chunk, null past the chunks of the file; keeps the next window of chunks in flight
+	private Frame fetch(int index) throws IOException {
+		Iterator<Map.Entry<Integer, Prefetch>> it = prefetched.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Prefetch> e = it.next();
+			if (e.getKey() < index || e.getKey() >= index + window) {
+				// a seek left the window, a read still in flight keeps its frame
+				if (e.getValue().done.isDone()) frames.push(e.getValue().reply);
+				it.remove();
+			}
+		}
+		int last = (int) Math.min(chunks.size(), (size + chunkSize - 1) / chunkSize);
+		for (int i = index; i < Math.min(index + window, last); i++) {
+			// only the bytes of the last chunk that belong to the file
+			int length = (int) Math.min(chunkSize, size - (long) i * chunkSize);
+			Prefetch p = prefetched.get(i);
+			if (p != null && p.length >= length) continue;
+			// read while the chunk was the last one and the file grew past it since
+			if (p != null) dropPrefetch(i);
+			Frame reply = frames.isEmpty() ? new Frame(0) : frames.pop();
+			prefetched.put(i, new Prefetch(reply, client.submitReadChunk(chunks.get(i), 0, length, reply), length));
+		}
+		Prefetch p = prefetched.get(index);
+		if (p == null) return null;
+		try {
+			return p.done.join();
+		} catch (CompletionException e) {
+			prefetched.remove(index);
+			throw failure("Failed to read chunk " + index + " of " + path, e);
+		}
+	}
+
+	private boolean arrived(int index) {
+		Prefetch p = prefetched.get(index);
+		return p != null && p.done.isDone();
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		if (!writable) throw new NonWritableChannelException();
+
+		int written = 0;
+		while (src.hasRemaining()) {
+			int index = (int) (position / chunkSize);
+			int within = (int) (position % chunkSize);
+			// the dirty range of a chunk stays contiguous so an upload never overwrites bytes it did not get
+			if (bufferIndex != -1 && (index != bufferIndex || within < dirtyFrom || within > dirtyTo))
+				upload();
+			if (bufferIndex == -1)
+				startChunk(index, within);
+
+			int n = Math.min(src.remaining(), chunkSize - within);
+			src.get(buffer, within, n);
+			dirtyTo = Math.max(dirtyTo, within + n);
+			position += n;
+			written += n;
+			size = Math.max(size, position);
+			dropPrefetch(index);
+			if (dirtyFrom == 0 && dirtyTo == chunkSize)
+				upload();
+		}
+		return written;
+	}
+
+	private void startChunk(int index, int within) {
+		if (buffer == null) buffer = new byte[chunkSize];
+		// a new chunk is uploaded whole, the bytes nobody wrote are zeros
+		else Arrays.fill(buffer, (byte) 0);
+		bufferIndex = index;
+		dirtyFrom = dirtyTo = within;
+	}
+
+	// send the written part of the buffered chunk, at most window uploads are in flight
+	private void upload() throws IOException {
+		if (bufferIndex == -1) return;
+		int index = bufferIndex;
+		bufferIndex = -1;
+		addChunks(index + 1);
+
+		// two uploads of the same chunk could overtake each other on different connections
+		CompletableFuture<Boolean> prior = uploads.remove(index);
+		if (prior != null) await(index, prior);
+		while (uploads.size() >= window) {
+			Map.Entry<Integer, CompletableFuture<Boolean>> oldest = uploads.entrySet().iterator().next();
+			uploads.remove(oldest.getKey());
+			await(oldest.getKey(), oldest.getValue());
+		}
+
+		boolean whole = fresh.remove(index);
+		int from = whole ? 0 : dirtyFrom;
+		int to = whole ? chunkSize : dirtyTo;
+		uploads.put(index, client.writeChunkAsync(chunks.get(index), buffer, from, to - from, from));
+	}
+
+	private void await(int index, CompletableFuture<Boolean> upload) throws IOException {
+		boolean ok;
+		try {
+			ok = upload.join();
+		} catch (CompletionException e) {
+			throw failure("Failed to write chunk " + index + " of " + path, e);
+		}
+		if (!ok) throw new IOException("The chunk server refused chunk " + index + " of " + path);
+	}
+
+	// give the file at least count chunks, the new ones in one round trip to the master
+	private void addChunks(int count) throws IOException {
+		if (chunks.size() >= count) return;
+		Batch batch = new Batch();
+		for (int i = chunks.size(); i < count; i++) {
+			batch.add(new Frame(ClientRec.ADD_CHUNK_COMMAND).putString(path));
+		}
+		for (Frame reply : batch.call(master)) {
+			String handle = reply.getString();
+			if (handle == null) throw new FileNotFoundException(path);
+			fresh.add(chunks.size());
+			chunks.add(handle);
+		}
+	}
+
+	private void dropPrefetch(int index) {
+		Prefetch p = prefetched.remove(index);
+		if (p != null && p.done.isDone()) frames.push(p.reply);
+	}
+
+	// upload the buffered chunk, zero the chunks the file grew over without writing them, and wait for every upload
+	private void flushChunks() throws IOException {
+		upload();
+		long covered = (size + chunkSize - 1) / chunkSize;
+		for (Integer index : fresh.toArray(new Integer[0])) {
+			if (index >= covered) continue;
+			startChunk(index, 0);
+			upload();
+		}
+		while (!uploads.isEmpty()) {
+			Map.Entry<Integer, CompletableFuture<Boolean>> oldest = uploads.entrySet().iterator().next();
+			uploads.remove(oldest.getKey());
+			await(oldest.getKey(), oldest.getValue());
+		}
+	}
+
+	/**
+	 * Write the buffered bytes to the chunk server and publish the length of the file at the master.
+	 */
+	public void flush() throws IOException {
+		ensureOpen();
+		flushChunks();
+		publishSize();
+	}
+
+	private void publishSize() throws IOException {
+		if (size == committedSize) return;
+		Frame reply = master.call(new Frame(ClientFS.SET_FILE_LENGTH_COMMAND).putString(path).putLong(size), new Frame(0));
+		FSReturnVals status = FSReturnVals.values()[reply.getInt()];
+		if (status != FSReturnVals.Success)
+			throw new IOException("The master did not take the length of " + path + ": " + status);
+		committedSize = size;
+	}
+
+	public long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	public TinyFileChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) throw new IllegalArgumentException("Negative position " + newPosition);
+		position = newPosition;
+		return this;
+	}
+
+	public long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+
+	/**
+	 * Cut the file to the size. The chunks past the end stay allocated and are reused when
+	 * the file grows again, zeroed.
+	 */
+	public TinyFileChannel truncate(long newSize) throws IOException {
+		ensureOpen();
+		if (!writable) throw new NonWritableChannelException();
+		if (newSize < 0) throw new IllegalArgumentException("Negative size " + newSize);
+		if (newSize < size) {
+			flushChunks();
+			// bytes past the end read as zeros once the file grows again
+			int index = (int) (newSize / chunkSize);
+			int within = (int) (newSize % chunkSize);
+			for (int i = within == 0 ? index : index + 1; i < chunks.size(); i++) {
+				fresh.add(i);
+			}
+			if (within != 0 && index < chunks.size() && !fresh.contains(index))
+				await(index, client.writeChunkAsync(chunks.get(index), new byte[chunkSize - within], 0, chunkSize - within, within));
+			size = newSize;
+			publishSize();
+			for (Prefetch p : prefetched.values()) {
+				if (p.done.isDone()) frames.push(p.reply);
+			}
+			prefetched.clear();
+		}
+		position = Math.min(position, newSize);
+		return this;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public void close() throws IOException {
+		if (!open) return;
+		try {
+			if (writable) flush();
+		} finally {
+			open = false;
+			prefetched.clear();
+			frames.clear();
+			buffer = null;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!open) throw new ClosedChannelException();
+	}
+
+	private static IOException failure(String message, CompletionException e) {
+		return e.getCause() instanceof IOException ? new IOException(message, e.getCause()) : new IOException(message, e);
+	}
+}
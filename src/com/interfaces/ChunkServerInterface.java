@@ -9,7 +9,9 @@ import java.io.File;
  */
 public interface ChunkServerInterface {
 
-	public static final int ChunkSize = 4 * 1024; //4 KB chunk sizes
+	public static final int ChunkSize = 4 * 1024; //4 KB default chunk size
+	public static final int MaxChunkSize = 64 * 1024 * 1024; //Largest chunk size a file may use
+	public static final int DefaultChunkSize = Integer.getInteger("tinyfs.chunksize", ChunkSize); //Chunk size of files created without one, set per cluster with -Dtinyfs.chunksize on the master and the chunk servers
 	
 	/**
 	 * Return the chunkhandle for a newly created chunk.
@@ -0,0 +1,75 @@
+package com.interfaces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage engine used by the TinyFS ChunkServer to keep the bytes of its chunks.
+ * Implementations are selected when the chunk server starts.
+ */
+public interface ChunkStore {
+
+	/**
+	 * Store the chunk image under ChunkHandle, replacing the chunk if it exists.
+	 */
+	public void createChunk(String ChunkHandle, byte[] image) throws IOException;
+
+	/**
+	 * Write the byte array payload to the ChunkHandle at the specified offset.
+	 * A chunk that does not exist yet is created before writing into it.
+	 */
+	public boolean writeChunk(String ChunkHandle, byte[] payload, int offset) throws IOException;
+
+	/**
+	 * Read the specified NumberOfBytes from the target chunk starting at the specified offset.
+	 * Return null if the chunk does not exist.
+	 */
+	public byte[] readChunk(String ChunkHandle, int offset, int NumberOfBytes) throws IOException;
+
+	/**
+	 * Write head and then NumberOfBytes of the target chunk starting at offset to the channel,
+	 * straight from the storage to the socket where the store can, e.g. with FileChannel.transferTo.
+	 * Bytes past the end of the chunk are sent as zeros.
+	 * Return false and write nothing if the chunk does not exist.
+	 */
+	public default boolean transferChunk(String ChunkHandle, int offset, int NumberOfBytes, ByteBuffer head, WritableByteChannel target) throws IOException {
+		byte[] data = readChunk(ChunkHandle, offset, NumberOfBytes);
+		if (data == null) return false;
+		while (head.hasRemaining()) {
+			target.write(head);
+		}
+		ByteBuffer body = ByteBuffer.wrap(data);
+		while (body.hasRemaining()) {
+			target.write(body);
+		}
+		return true;
+	}
+
+	/**
+	 * Return the length of the chunk in bytes, -1 if the chunk does not exist.
+	 * A chunk is as long as the image it was created with.
+	 */
+	public int chunkLength(String ChunkHandle) throws IOException;
+
+	/**
+	 * Delete the chunk and release its storage, false if the chunk does not exist.
+	 */
+	public boolean deleteChunk(String ChunkHandle) throws IOException;
+
+	/**
+	 * Move the chunk stored under from to the handle to, replacing the chunk stored there.
+	 * Return false if there is no chunk under from.
+	 */
+	public boolean renameChunk(String from, String to) throws IOException;
+
+	/**
+	 * Return the largest numeric chunk handle in the store, 0 if there is none.
+	 */
+	public long highestHandle();
+
+	/**
+	 * Flush and release the resources held by the store.
+	 */
+	public void close() throws IOException;
+}